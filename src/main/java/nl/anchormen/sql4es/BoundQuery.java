@@ -0,0 +1,215 @@
+package nl.anchormen.sql4es;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Search request built once for a parameterized query which is executed by replacing its parameters
+ * with the values bound. The query is planned using a marker literal for each parameter, the markers
+ * are then located within the request source which is split into fixed parts and parameter slots.
+ *
+ * The type of request Elasticsearch executes may depend on the values used (i.e. strings containing
+ * wildcards result in a wildcard query) and parameters are therefore classified in a shape, see
+ * {@link #getShape(Object[])}. A BoundQuery is only valid for the shape it was created for. Parameters
+ * which do not end up in the request source as a value (for example LIMIT ? or calculations in the
+ * SELECT) cannot be bound in which case the query must be executed as a regular statement.
+ *
+ * @author cversloot
+ *
+ */
+public class BoundQuery {
+
+	private static final long LONG_MARKER = 7318000000000000000L;
+	private static final String STRING_MARKER = "sql4esparam";
+
+	private final ESQueryState.Plan plan;
+	private final int offset;
+	private final List<String> parts = new ArrayList<String>();
+	private final List<Slot> slots = new ArrayList<Slot>();
+
+	private BoundQuery(ESQueryState.Plan plan, int offset){
+		this.plan = plan;
+		this.offset = offset;
+	}
+
+	/**
+	 * Returns the shape of the provided parameters consisting of a character per parameter indicating its
+	 * kind: L (integer), D (decimal), S (string), W (string containing wildcards) or P (string containing
+	 * spaces). Returns null if any of the parameters is of a type which cannot be bound (null, boolean,
+	 * arrays etc). Dates must be provided as formatted strings.
+	 * @param params
+	 * @return
+	 */
+	public static String getShape(Object[] params){
+		StringBuilder shape = new StringBuilder(params.length);
+		for(Object param : params){
+			if(param instanceof Long || param instanceof Integer || param instanceof Short || param instanceof Byte){
+				shape.append('L');
+			}else if(param instanceof BigDecimal){
+				shape.append(((BigDecimal)param).scale() > 0 ? 'D' : 'L');
+			}else if(param instanceof Double || param instanceof Float){
+				double value = ((Number)param).doubleValue();
+				if(Double.isNaN(value) || Double.isInfinite(value)) return null;
+				shape.append('D');
+			}else if(param instanceof String){
+				String value = (String)param;
+				if(value.indexOf('%') >= 0 || value.indexOf('_') >= 0) shape.append('W');
+				else if(value.indexOf(' ') >= 0) shape.append('P');
+				else shape.append('S');
+			}else return null;
+		}
+		return shape.toString();
+	}
+
+	/**
+	 * Returns the SQL literal to use for the parameter with the provided number (starting at 1) and kind
+	 * @param nr
+	 * @param kind
+	 * @return
+	 */
+	public static String getMarker(int nr, char kind){
+		switch(kind){
+			case 'L': return Long.toString(LONG_MARKER + nr);
+			case 'D': return Double.toString(0.7318 + nr / 1e7);
+			case 'W': return "'"+STRING_MARKER+nr+"x%'";
+			case 'P': return "'"+STRING_MARKER+nr+"x y'";
+			default: return "'"+STRING_MARKER+nr+"x'";
+		}
+	}
+
+	/**
+	 * Creates the BoundQuery for the provided plan which has been built using the markers for the
+	 * specified shape. Returns null if any of the markers does not occur within the request source.
+	 * @param plan
+	 * @param offset the OFFSET used by the query
+	 * @param shape
+	 * @return
+	 */
+	public static BoundQuery create(ESQueryState.Plan plan, int offset, String shape){
+		String source = plan.getSource();
+		List<Slot> found = new ArrayList<Slot>();
+		for(int i=0; i<shape.length(); i++){
+			char kind = shape.charAt(i);
+			int before = found.size();
+			if(kind == 'L' || kind == 'D'){
+				find(source, getMarker(i+1, kind), i, false, true, found);
+			}else{
+				String marker = getMarker(i+1, kind);
+				marker = marker.substring(1, marker.length()-1);
+				find(source, '"'+marker+'"', i, false, false, found);
+				// wildcard queries use * and ? instead of % and _
+				if(kind == 'W') find(source, '"'+toWildcard(marker)+'"', i, true, false, found);
+			}
+			if(found.size() == before) return null;
+		}
+		Collections.sort(found);
+		BoundQuery query = new BoundQuery(plan, offset);
+		int pos = 0;
+		for(Slot slot : found){
+			if(slot.start < pos) return null; // overlapping markers, should not happen
+			query.parts.add(source.substring(pos, slot.start));
+			query.slots.add(slot);
+			pos = slot.end;
+		}
+		query.parts.add(source.substring(pos));
+		return query;
+	}
+
+	private static void find(String source, String token, int param, boolean wildcard, boolean numeric, List<Slot> found){
+		int idx = source.indexOf(token);
+		while(idx >= 0){
+			int end = idx + token.length();
+			if(!numeric || (!isNumberChar(source, idx-1) && !isNumberChar(source, end))){
+				found.add(new Slot(idx, end, param, wildcard));
+			}
+			idx = source.indexOf(token, end);
+		}
+	}
+
+	private static boolean isNumberChar(String source, int idx){
+		if(idx < 0 || idx >= source.length()) return false;
+		char c = source.charAt(idx);
+		return Character.isDigit(c) || c == '.' || c == '-' || c == '+' || c == 'e' || c == 'E';
+	}
+
+	private static String toWildcard(String value){
+		return value.replace('%', '*').replace('_', '?');
+	}
+
+	/**
+	 * Builds the request source using the provided parameters which must have the shape this query was created for
+	 * @param params
+	 * @return
+	 */
+	public String bind(Object[] params){
+		StringBuilder sb = new StringBuilder(parts.get(0));
+		for(int i=0; i<slots.size(); i++){
+			Slot slot = slots.get(i);
+			Object value = params[slot.param];
+			if(value instanceof String){
+				String str = (String)value;
+				appendJsonString(sb, slot.wildcard ? toWildcard(str) : str);
+			}else if(value instanceof BigDecimal){
+				BigDecimal bd = (BigDecimal)value;
+				sb.append(bd.scale() > 0 ? Double.toString(bd.doubleValue()) : bd.toBigInteger().toString());
+			}else if(value instanceof Float){
+				// same value as obtained by parsing the float within sql
+				sb.append(Double.toString(Double.parseDouble(value.toString())));
+			}else if(value instanceof Double){
+				sb.append(Double.toString((Double)value));
+			}else sb.append(value.toString());
+			sb.append(parts.get(i+1));
+		}
+		return sb.toString();
+	}
+
+	private static void appendJsonString(StringBuilder sb, String value){
+		sb.append('"');
+		for(int i=0; i<value.length(); i++){
+			char c = value.charAt(i);
+			switch(c){
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if(c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+					else sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	public ESQueryState.Plan getPlan(){
+		return plan;
+	}
+
+	public int getOffset(){
+		return offset;
+	}
+
+	/**
+	 * Location of a parameter within the request source
+	 */
+	private static class Slot implements Comparable<Slot>{
+		private final int start;
+		private final int end;
+		private final int param;
+		private final boolean wildcard;
+
+		private Slot(int start, int end, int param, boolean wildcard){
+			this.start = start;
+			this.end = end;
+			this.param = param;
+			this.wildcard = wildcard;
+		}
+
+		@Override
+		public int compareTo(Slot o) {
+			return Integer.compare(start, o.start);
+		}
+	}
+}
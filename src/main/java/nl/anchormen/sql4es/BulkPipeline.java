@@ -0,0 +1,305 @@
+package nl.anchormen.sql4es;
+
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteRequestBuilder;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.rest.RestStatus;
+
+import nl.anchormen.sql4es.model.Utils;
+
+/**
+ * Sends index, update and delete requests to Elasticsearch using bulk requests. Requests are collected
+ * into a bulk which is sent when it holds the maximum number of actions or bytes, or when the flush
+ * interval has passed since the previous bulk was sent (checked when requests are added). Bulks are
+ * executed asynchronously with a maximum number of bulks in flight. Adding requests blocks when that
+ * maximum has been reached until one of the bulks in flight completes.
+ *
+ * The items of each bulk response are inspected. Items rejected by Elasticsearch because it is too
+ * busy (status 429, i.e. a full bulk queue) are sent again, without the items which succeeded, using
+ * an exponential backoff with jitter. Each bulk is retried at most the configured number of times after
+ * which remaining rejections are considered to be failures. Failed items are not counted and can be
+ * obtained through {@link #isFailed(int)} and {@link #getWarnings()}.
+ *
+ * A pipeline is used for a single write statement, {@link #close()} sends the remaining requests and
+ * waits for all bulks (and their retries) to complete.
+ *
+ * @author cversloot
+ *
+ */
+public class BulkPipeline implements RequestSink{
+
+	private static final int MAX_WARNINGS = 100;
+	private static ScheduledExecutorService scheduler;
+
+	private final Client client;
+	private final int maxActions;
+	private final long maxBytes;
+	private final long flushIntervalMs;
+	private final int maxInFlight;
+	private final int maxRetries;
+	private final long retryBackoffMs;
+	private final Semaphore inFlight;
+	private final AtomicInteger count = new AtomicInteger();
+
+	// positions (the order in which they were added) of failed requests and the first failure messages
+	private final BitSet failed = new BitSet();
+	private final List<String> failures = new ArrayList<String>();
+	private int failedCount = 0;
+
+	private BulkRequest bulk = new BulkRequest();
+	private List<Integer> positions = new ArrayList<Integer>();
+	private int added = 0;
+	private long lastFlush = System.currentTimeMillis();
+	private volatile Throwable failure = null;
+	private boolean closed = false;
+
+	/**
+	 * @param client
+	 * @param maxActions the maximum number of requests within a single bulk
+	 * @param maxBytes the maximum (estimated) size of a single bulk
+	 * @param flushIntervalMs the maximum time requests are held before they are sent, 0 to disable
+	 * @param maxInFlight the maximum number of bulks executed concurrently
+	 * @param maxRetries the maximum number of times rejected items of a bulk are sent again
+	 * @param retryBackoffMs the initial time to wait before rejected items are sent again
+	 */
+	public BulkPipeline(Client client, int maxActions, long maxBytes, long flushIntervalMs, int maxInFlight,
+			int maxRetries, long retryBackoffMs){
+		this.client = client;
+		this.maxActions = Math.max(1, maxActions);
+		this.maxBytes = maxBytes;
+		this.flushIntervalMs = flushIntervalMs;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.maxRetries = Math.max(0, maxRetries);
+		this.retryBackoffMs = Math.max(1, retryBackoffMs);
+		this.inFlight = new Semaphore(this.maxInFlight);
+	}
+
+	/**
+	 * Creates a pipeline configured using the bulk properties provided
+	 * @param client
+	 * @param props
+	 * @return
+	 */
+	public static BulkPipeline create(Client client, Properties props){
+		return new BulkPipeline(client,
+				Utils.getIntProp(props, Utils.PROP_BULK_ACTIONS, 1000),
+				Utils.getIntProp(props, Utils.PROP_BULK_SIZE_MB, 5) * 1024L * 1024L,
+				Utils.getIntProp(props, Utils.PROP_BULK_FLUSH_INTERVAL_MS, 1000),
+				Utils.getIntProp(props, Utils.PROP_BULK_CONCURRENT_REQUESTS, 2),
+				Utils.getIntProp(props, Utils.PROP_BULK_RETRY_MAX, 5),
+				Utils.getIntProp(props, Utils.PROP_BULK_RETRY_BACKOFF_MS, 50));
+	}
+
+	/**
+	 * Adds the provided request to the current bulk and sends the bulk if it is full.
+	 * @param request an index, update or delete request (or builder)
+	 * @throws SQLException if the request cannot be bulked or a previous bulk failed
+	 */
+	public void add(Object request) throws SQLException{
+		if(closed) throw new SQLException("Unable to add requests to a closed bulk pipeline");
+		checkFailure();
+		if(request instanceof IndexRequest)	bulk.add((IndexRequest)request);
+		else if(request instanceof UpdateRequest) bulk.add((UpdateRequest)request);
+		else if(request instanceof DeleteRequest) bulk.add((DeleteRequest)request);
+		else if(request instanceof IndexRequestBuilder) bulk.add(((IndexRequestBuilder)request).request());
+		else if(request instanceof UpdateRequestBuilder) bulk.add(((UpdateRequestBuilder)request).request());
+		else if(request instanceof DeleteRequestBuilder) bulk.add(((DeleteRequestBuilder)request).request());
+		else throw new SQLException("Type "+request.getClass()+" cannot be added to a bulk request");
+		positions.add(added++);
+
+		if(bulk.numberOfActions() >= maxActions || bulk.estimatedSizeInBytes() >= maxBytes
+				|| (flushIntervalMs > 0 && System.currentTimeMillis() - lastFlush >= flushIntervalMs)){
+			flush();
+		}
+	}
+
+	/**
+	 * Sends the current bulk, blocking while the maximum number of bulks is in flight
+	 * @throws SQLException
+	 */
+	public void flush() throws SQLException{
+		lastFlush = System.currentTimeMillis();
+		if(bulk.numberOfActions() == 0) return;
+		BulkRequest request = bulk;
+		List<Integer> requestPositions = positions;
+		bulk = new BulkRequest();
+		positions = new ArrayList<Integer>();
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for bulk requests to complete", e);
+		}
+		try{
+			send(request, requestPositions, 0);
+		}catch(RuntimeException e){
+			inFlight.release();
+			throw new SQLException("Unable to execute bulk request: "+e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Executes the bulk asynchronously. The permit acquired for the bulk is released when it completed,
+	 * which is after all retries have been done.
+	 * @param request
+	 * @param requestPositions the positions of the requests within the bulk
+	 * @param attempt the number of times the requests have been sent before
+	 */
+	private void send(final BulkRequest request, final List<Integer> requestPositions, final int attempt){
+		client.bulk(request, new ActionListener<BulkResponse>(){
+			@Override
+			public void onResponse(BulkResponse response) {
+				BulkRequest retry = new BulkRequest();
+				List<Integer> retryPositions = new ArrayList<Integer>();
+				for(BulkItemResponse item : response.getItems()){
+					if(!item.isFailed()){
+						count.incrementAndGet();
+					}else if(attempt < maxRetries && item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS){
+						retry.add(request.requests().get(item.getItemId()));
+						retryPositions.add(requestPositions.get(item.getItemId()));
+					}else{
+						addFailure(requestPositions.get(item.getItemId()), item.getFailureMessage());
+					}
+				}
+				if(retry.numberOfActions() > 0) schedule(retry, retryPositions, attempt + 1);
+				else inFlight.release();
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				if(attempt < maxRetries && ExceptionsHelper.status(e) == RestStatus.TOO_MANY_REQUESTS){
+					schedule(request, requestPositions, attempt + 1);
+				}else{
+					failure = e;
+					inFlight.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sends the requests again after waiting for an exponentially growing delay with jitter
+	 */
+	private void schedule(final BulkRequest request, final List<Integer> requestPositions, final int attempt){
+		long delay = retryBackoffMs << Math.min(attempt - 1, 20);
+		delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+		try{
+			getScheduler().schedule(new Runnable(){
+				@Override
+				public void run() {
+					try{
+						send(request, requestPositions, attempt);
+					}catch(RuntimeException e){
+						failure = e;
+						inFlight.release();
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}catch(RuntimeException e){
+			failure = e;
+			inFlight.release();
+		}
+	}
+
+	private synchronized void addFailure(int position, String message){
+		failed.set(position);
+		failedCount++;
+		if(failures.size() < MAX_WARNINGS) failures.add(message);
+	}
+
+	/**
+	 * Sends the remaining requests and waits for all bulks to complete
+	 * @return the number of requests executed
+	 * @throws SQLException if any of the bulks failed
+	 */
+	public int close() throws SQLException{
+		if(!closed){
+			closed = true;
+			flush();
+			try {
+				inFlight.acquire(maxInFlight);
+				inFlight.release(maxInFlight);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for bulk requests to complete", e);
+			}
+		}
+		checkFailure();
+		return count.get();
+	}
+
+	/**
+	 * @return the number of requests added to this pipeline
+	 */
+	public int getRequestCount(){
+		return added;
+	}
+
+	/**
+	 * @return the number of requests which failed (after retries), only complete after {@link #close()}
+	 */
+	public synchronized int getFailedCount(){
+		return failedCount;
+	}
+
+	/**
+	 * Returns true if the request at the specified position (the order in which requests were added) failed,
+	 * only complete after {@link #close()}
+	 * @param position
+	 * @return
+	 */
+	public synchronized boolean isFailed(int position){
+		return failed.get(position);
+	}
+
+	/**
+	 * @return warnings describing the failed requests (up to a maximum) or null if none of them failed
+	 */
+	public synchronized SQLWarning getWarnings(){
+		if(failedCount == 0) return null;
+		SQLWarning warning = new SQLWarning(failedCount+" of "+added+" requests failed");
+		for(String message : failures) warning.setNextWarning(new SQLWarning(message));
+		return warning;
+	}
+
+	private static synchronized ScheduledExecutorService getScheduler(){
+		if(scheduler == null){
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "sql4es-bulk-retry");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return scheduler;
+	}
+
+	private void checkFailure() throws SQLException{
+		if(failure != null) throw new SQLException("Bulk request failed: "+failure.getMessage(), failure);
+	}
+}
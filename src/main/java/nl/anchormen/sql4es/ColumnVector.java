@@ -0,0 +1,795 @@
+package nl.anchormen.sql4es;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds all values of a single column of an {@link ESResultSet}. Values are stored in a typed array
+ * depending on the values added: integer numbers and booleans in a long[], floating point numbers in a
+ * double[] and strings as codes referring to a dictionary holding each distinct string once. Null values
+ * are kept in a bitmap. The class of the values added is remembered so that {@link #get(int)} returns
+ * the same objects as were added (an Integer remains an Integer).
+ *
+ * A vector starts without any storage and picks its kind when the first non-null value is added. A vector
+ * holding integer numbers is promoted to one holding doubles when floating point numbers are added, as long
+ * as all its numbers can be represented exactly as doubles. It is converted into a vector holding plain 
+ * objects when values of different kinds are added (for example strings and numbers), when other objects
+ * are added (dates, arrays, nested results) or when the strings added have too many distinct values for a 
+ * dictionary to be useful.
+ *
+ * The values held in memory can be moved to a {@link SpillFile} using {@link #spill(SpillFile)}, after
+ * which they are read from a memory mapping of the file. Spilled rows are read only, setting the value
+ * of a spilled row moves all values back into memory. Each spilled segment keeps the kind it was written
+ * with, promoting or converting a vector only affects the rows held in memory. The null bitmap and
+ * dictionary are never spilled.
+ *
+ * Reading a row beyond the size of the vector returns null, which happens for columns added to the
+ * heading after rows have been added.
+ *
+ * @author cversloot
+ *
+ */
+public class ColumnVector {
+
+	private static final byte EMPTY = 0;
+	private static final byte LONG = 1;
+	private static final byte DOUBLE = 2;
+	private static final byte STRING = 3;
+	private static final byte OBJECT = 4;
+
+	// classes of the values added, the first five are stored as long, the next two as double
+	private static final byte T_BOOLEAN = 1;
+	private static final byte T_BYTE = 2;
+	private static final byte T_SHORT = 3;
+	private static final byte T_INTEGER = 4;
+	private static final byte T_LONG = 5;
+	private static final byte T_FLOAT = 6;
+	private static final byte T_DOUBLE = 7;
+	private static final byte T_STRING = 8;
+	private static final byte T_OBJECT = 9;
+
+	private static final int MAX_DICTIONARY = 1 << 16;
+	private static final int MIN_CARDINALITY_CHECK = 1024;
+	private static final int SPILL_CHUNK = 1 << 16;
+	private static final long MAX_EXACT_LONG = 1L << 53; // larger longs cannot be represented exactly as doubles
+
+	private byte kind = EMPTY;
+	private byte type = 0;
+	private byte[] types = null; // only used when values of different classes have been added
+	private int size = 0;
+	private int capacity;
+	private final BitSet nulls = new BitSet();
+
+	// the in memory arrays hold the rows starting at the number of spilled rows
+	private long[] longs;
+	private double[] doubles;
+	private int[] codes;
+	private List<String> dictionary;
+	private Map<String, Integer> dictionaryIndex;
+	private int[] ranks; // position of each dictionary entry within the sorted dictionary
+	private Object[] objects;
+	private long valueBytes = 0; // estimated size of the dictionary or the objects held in memory
+	private boolean promotable = true; // false if the longs added include booleans or cannot be held as doubles
+
+	private int spilled = 0;
+	private List<Segment> segments;
+	private Segment lastSegment;
+	private long segmentBytes = 0; // estimated size of dictionaries only used by spilled segments
+
+	public ColumnVector(){
+		this(16);
+	}
+
+	public ColumnVector(int capacity){
+		this.capacity = Math.max(1, capacity);
+	}
+
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Adds a value to the end of this vector
+	 * @param value
+	 */
+	public void add(Object value){
+		set(size, value);
+	}
+
+	/**
+	 * Sets the value of the specified row. The vector is extended with nulls if the row is beyond its size.
+	 * @param row
+	 * @param value
+	 */
+	public void set(int row, Object value){
+		if(row >= size){
+			ensureCapacity(row + 1 - spilled);
+			if(row > size) nulls.set(size, row);
+			size = row + 1;
+		}
+		if(value == null){
+			nulls.set(row);
+			if(kind == OBJECT && row >= spilled){
+				valueBytes -= estimateSize(objects[row - spilled]);
+				objects[row - spilled] = null;
+			}
+			return;
+		}
+		if(row < spilled) unspill();
+		nulls.clear(row);
+		byte valueType = typeOf(value);
+		byte valueKind = kindOf(valueType);
+		if(kind == EMPTY) init(valueKind, valueType);
+		else if(kind == LONG && valueKind == DOUBLE && promotable) toDoubles();
+		else if(kind == DOUBLE && valueKind == LONG && valueType != T_BOOLEAN && isExact(((Number)value).longValue())){
+			valueKind = DOUBLE; // held as double, its class is kept within the types
+		}
+		if(kind != valueKind && kind != OBJECT) toObjects();
+
+		int idx = row - spilled;
+		switch(kind){
+			case LONG:
+				longs[idx] = valueType == T_BOOLEAN ? (((Boolean)value) ? 1 : 0) : ((Number)value).longValue();
+				if(valueType == T_BOOLEAN || !isExact(longs[idx])) promotable = false;
+				setType(row, valueType);
+				break;
+			case DOUBLE:
+				doubles[idx] = ((Number)value).doubleValue();
+				setType(row, valueType);
+				break;
+			case STRING:
+				Integer code = dictionaryIndex.get(value);
+				if(code == null && (dictionary.size() >= MAX_DICTIONARY ||
+						(size >= MIN_CARDINALITY_CHECK && dictionary.size() > size / 2))){
+					toObjects();
+					objects[row - spilled] = value;
+					valueBytes += estimateSize(value);
+				}else{
+					if(code == null){
+						code = dictionary.size();
+						dictionary.add((String)value);
+						dictionaryIndex.put((String)value, code);
+						valueBytes += 48 + estimateSize(value);
+					}
+					codes[idx] = code;
+				}
+				break;
+			default:
+				valueBytes += estimateSize(value) - estimateSize(objects[idx]);
+				objects[idx] = value;
+		}
+	}
+
+	/**
+	 * Sets the value of the specified row to a double without creating an object when this vector holds 
+	 * doubles or is empty
+	 * @param row
+	 * @param value
+	 */
+	public void setDouble(int row, double value){
+		if(row < spilled || (kind != EMPTY && kind != DOUBLE)){
+			set(row, value);
+			return;
+		}
+		if(row >= size){
+			ensureCapacity(row + 1 - spilled);
+			if(row > size) nulls.set(size, row);
+			size = row + 1;
+		}
+		if(kind == EMPTY) init(DOUBLE, T_DOUBLE);
+		nulls.clear(row);
+		doubles[row - spilled] = value;
+		setType(row, T_DOUBLE);
+	}
+
+	/**
+	 * @param row
+	 * @return the value of the specified row or null if it does not have a value
+	 */
+	public Object get(int row){
+		if(isNull(row)) return null;
+		if(row < spilled) return spilledValue(row);
+		int idx = row - spilled;
+		switch(kind){
+			case LONG: return box(longs[idx], getType(row));
+			case DOUBLE: return box(doubles[idx], getType(row));
+			case STRING: return dictionary.get(codes[idx]);
+			default: return objects[idx];
+		}
+	}
+
+	/**
+	 * Reads the value of a spilled row using the kind of the segment holding it
+	 */
+	private Object spilledValue(int row){
+		Segment segment = segment(row);
+		int idx = row - segment.start;
+		switch(segment.kind){
+			case LONG: return box(segment.longs.get(idx), getType(row));
+			case DOUBLE: return box(segment.doubles.get(idx), getType(row));
+			case STRING: return segment.dictionary.get(segment.codes.get(idx));
+			default: return SpillFile.decode(segment.objects, segment.offsets.get(idx));
+		}
+	}
+
+	private static Object box(long value, byte type){
+		switch(type){
+			case T_BOOLEAN: return value == 1;
+			case T_BYTE: return (byte)value;
+			case T_SHORT: return (short)value;
+			case T_INTEGER: return (int)value;
+			default: return value;
+		}
+	}
+
+	private static Object box(double value, byte type){
+		switch(type){
+			case T_BYTE: return (byte)value;
+			case T_SHORT: return (short)value;
+			case T_INTEGER: return (int)value;
+			case T_LONG: return (long)value;
+			case T_FLOAT: return (float)value;
+			default: return value;
+		}
+	}
+
+	public boolean isNull(int row){
+		return row >= size || nulls.get(row);
+	}
+
+	/**
+	 * @param row
+	 * @return true if the specified row holds a Number
+	 */
+	public boolean isNumber(int row){
+		if(isNull(row)) return false;
+		if(kind == LONG) return getType(row) != T_BOOLEAN;
+		if(kind == DOUBLE) return true;
+		return kind == OBJECT && objectAt(row) instanceof Number;
+	}
+
+	/**
+	 * Returns the value of the specified row as a long without creating any objects for numeric vectors.
+	 * Throws a ClassCastException if the value is not a Number and a NullPointerException if it is null
+	 * @param row
+	 * @return
+	 */
+	public long getLong(int row){
+		if(kind == LONG && !isNull(row) && getType(row) != T_BOOLEAN) return longAt(row);
+		if(kind == DOUBLE && !isNull(row)) return (long)doubleAt(row);
+		return ((Number)get(row)).longValue();
+	}
+
+	/**
+	 * Returns the value of the specified row as a double without creating any objects for numeric vectors.
+	 * Throws a ClassCastException if the value is not a Number and a NullPointerException if it is null
+	 * @param row
+	 * @return
+	 */
+	public double getDouble(int row){
+		if(kind == DOUBLE && !isNull(row)) return doubleAt(row);
+		if(kind == LONG && !isNull(row) && getType(row) != T_BOOLEAN) return longAt(row);
+		return ((Number)get(row)).doubleValue();
+	}
+
+	/**
+	 * Compares the non-null values of two rows. Numbers are compared numerically and strings
+	 * lexicographically, other values are considered to be equal.
+	 * @param row1
+	 * @param row2
+	 * @return
+	 * @throws ClassCastException if the values cannot be compared with each other
+	 */
+	public int compare(int row1, int row2){
+		return compare(row1, this, row2);
+	}
+
+	/**
+	 * Compares the non-null value of a row within this vector with the non-null value of a row within the
+	 * other vector. Vectors of the same kind are compared using their primitive values, strings sharing
+	 * a dictionary are compared using the position of their code within the sorted dictionary.
+	 * @param row1
+	 * @param other
+	 * @param row2
+	 * @return
+	 * @throws ClassCastException if the values cannot be compared with each other
+	 */
+	public int compare(int row1, ColumnVector other, int row2){
+		if(kind == other.kind && (kind != STRING || dictionary == other.dictionary)) switch(kind){
+			case LONG:
+				if(getType(row1) == T_BOOLEAN || other.getType(row2) == T_BOOLEAN) return 0;
+				return Long.compare(longAt(row1), other.longAt(row2));
+			case DOUBLE: return Double.compare(doubleAt(row1), other.doubleAt(row2));
+			case STRING:
+				int code1 = codeAt(row1);
+				int code2 = other.codeAt(row2);
+				if(code1 == code2) return 0;
+				int[] ranks = ranks();
+				return Integer.compare(ranks[code1], ranks[code2]);
+		}
+		Object o1 = get(row1);
+		Object o2 = other.get(row2);
+		if(o1 instanceof String) return ((String)o1).compareTo((String)o2);
+		if(o1 instanceof Number) return Double.compare(((Number)o1).doubleValue(), ((Number)o2).doubleValue());
+		return 0;
+	}
+
+	/**
+	 * Returns the position of each dictionary entry within the sorted dictionary, computed again when
+	 * strings have been added to the dictionary (which may be shared with other vectors)
+	 */
+	private int[] ranks(){
+		if(ranks == null || ranks.length != dictionary.size()){
+			Integer[] sorted = new Integer[dictionary.size()];
+			for(int i=0; i<sorted.length; i++) sorted[i] = i;
+			Arrays.sort(sorted, new Comparator<Integer>(){
+				@Override
+				public int compare(Integer code1, Integer code2) {
+					return dictionary.get(code1).compareTo(dictionary.get(code2));
+				}
+			});
+			int[] ranks = new int[sorted.length];
+			for(int i=0; i<sorted.length; i++) ranks[sorted[i]] = i;
+			this.ranks = ranks;
+		}
+		return ranks;
+	}
+
+	/**
+	 * Creates a new vector holding the values of the specified rows in the order provided
+	 * @param rows
+	 * @param count the number of rows to take from the array
+	 * @return
+	 */
+	public ColumnVector select(int[] rows, int count){
+		ColumnVector copy = new ColumnVector(count);
+		copy.append(this, rows, 0, count);
+		return copy;
+	}
+
+	/**
+	 * Creates a new vector holding the values of the rows from (inclusive) to (exclusive)
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public ColumnVector slice(int from, int to){
+		int count = Math.max(0, to - from);
+		ColumnVector copy = new ColumnVector(count);
+		copy.append(this, null, from, count);
+		return copy;
+	}
+
+	/**
+	 * Appends rows of the source vector to this vector. The rows appended are rows[from] to rows[from+count-1]
+	 * or, if no rows are provided, the rows from until from+count.
+	 * @param source
+	 * @param rows
+	 * @param from
+	 * @param count
+	 */
+	public void append(ColumnVector source, int[] rows, int from, int count){
+		if(count <= 0) return;
+		if(kind == EMPTY && source.kind != EMPTY){
+			init(source.kind, source.type);
+			if(kind == STRING){
+				// codes can be copied as both vectors use the same dictionary
+				dictionary = source.dictionary;
+				dictionaryIndex = source.dictionaryIndex;
+				ranks = source.ranks;
+				valueBytes = source.valueBytes;
+			}
+		}
+		boolean typed = kind == source.kind && (kind != STRING || dictionary == source.dictionary);
+		if(typed && !source.promotable) promotable = false;
+		ensureCapacity(size + count - spilled);
+		for(int i=0; i<count; i++){
+			int row = rows == null ? from + i : rows[from + i];
+			int target = size;
+			if(!typed || source.isNull(row)){
+				set(target, source.get(row));
+				continue;
+			}
+			size++;
+			int idx = target - spilled;
+			switch(kind){
+				case LONG: longs[idx] = source.longAt(row); setType(target, source.getType(row)); break;
+				case DOUBLE: doubles[idx] = source.doubleAt(row); setType(target, source.getType(row)); break;
+				case STRING: codes[idx] = source.codeAt(row); break;
+				default:
+					objects[idx] = source.objectAt(row);
+					valueBytes += estimateSize(objects[idx]);
+			}
+		}
+	}
+
+	/**
+	 * Writes the values held in memory to the provided file and releases them. Vectors holding values
+	 * which cannot be written (nested results for example) are kept in memory.
+	 * @param file
+	 * @return true if the values have been spilled
+	 * @throws IOException
+	 */
+	public boolean spill(SpillFile file) throws IOException{
+		int count = size - spilled;
+		if(kind == EMPTY || count == 0) return false;
+		Segment segment = new Segment(spilled, count, kind, type);
+		switch(kind){
+			case LONG:
+				segment.longs = write(file, count, 8, new Writer(){
+					public void write(ByteBuffer buffer, int from, int to){
+						for(int i=from; i<to; i++) buffer.putLong(longs[i]);
+					}
+				}).asLongBuffer();
+				break;
+			case DOUBLE:
+				segment.doubles = write(file, count, 8, new Writer(){
+					public void write(ByteBuffer buffer, int from, int to){
+						for(int i=from; i<to; i++) buffer.putDouble(doubles[i]);
+					}
+				}).asDoubleBuffer();
+				break;
+			case STRING:
+				segment.dictionary = dictionary;
+				segment.codes = write(file, count, 4, new Writer(){
+					public void write(ByteBuffer buffer, int from, int to){
+						for(int i=from; i<to; i++) buffer.putInt(codes[i]);
+					}
+				}).asIntBuffer();
+				break;
+			default:
+				if(!spillObjects(file, segment, count)) return false;
+		}
+		if(types != null){
+			segment.types = write(file, count, 1, new Writer(){
+				public void write(ByteBuffer buffer, int from, int to){
+					buffer.put(types, from, to - from);
+				}
+			});
+		}
+		if(segments == null) segments = new ArrayList<Segment>();
+		segments.add(segment);
+		spilled = size;
+		capacity = 16;
+		types = null;
+		if(longs != null) longs = new long[capacity];
+		if(doubles != null) doubles = new double[capacity];
+		if(codes != null) codes = new int[capacity];
+		if(objects != null){
+			objects = new Object[capacity];
+			valueBytes = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Encodes the objects held in memory into the file, offsets of the values are written to the file as well
+	 * @return false if any of the values cannot be spilled
+	 */
+	private boolean spillObjects(SpillFile file, Segment segment, int count) throws IOException{
+		int[] offsets = new int[count + 1];
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		long start = -1;
+		int written = 0;
+		try{
+			for(int i=0; i<count; i++){
+				if(written + (long)bytes.size() > Integer.MAX_VALUE) return false;
+				offsets[i] = written + bytes.size();
+				SpillFile.encode(nulls.get(spilled + i) ? null : objects[i], out);
+				if(bytes.size() >= SPILL_CHUNK){
+					long position = file.append(ByteBuffer.wrap(bytes.toByteArray()));
+					if(start < 0) start = position;
+					written += bytes.size();
+					bytes.reset();
+				}
+			}
+		}catch(IllegalArgumentException e){
+			// values which cannot be written to disk, the region written is left unused
+			return false;
+		}
+		out.flush();
+		long position = file.append(ByteBuffer.wrap(bytes.toByteArray()));
+		if(start < 0) start = position;
+		written += bytes.size();
+		offsets[count] = written;
+		segment.objects = file.map(start, written);
+
+		final int[] offs = offsets;
+		segment.offsets = write(file, count + 1, 4, new Writer(){
+			public void write(ByteBuffer buffer, int from, int to){
+				for(int i=from; i<to; i++) buffer.putInt(offs[i]);
+			}
+		}).asIntBuffer();
+		return true;
+	}
+
+	/**
+	 * Writes a number of fixed width values to the file in chunks and returns the mapping of all of them
+	 */
+	private ByteBuffer write(SpillFile file, int count, int width, Writer writer) throws IOException{
+		ByteBuffer buffer = ByteBuffer.allocate(Math.min(count, SPILL_CHUNK) * width);
+		long start = -1;
+		for(int from=0; from<count; from+=SPILL_CHUNK){
+			int to = Math.min(count, from + SPILL_CHUNK);
+			buffer.clear();
+			writer.write(buffer, from, to);
+			buffer.flip();
+			long position = file.append(buffer);
+			if(start < 0) start = position;
+		}
+		return file.map(start, count * width);
+	}
+
+	/**
+	 * @return true if any of the rows of this vector have been spilled to disk
+	 */
+	public boolean isSpilled(){
+		return spilled > 0;
+	}
+
+	/**
+	 * Rough estimate of the heap used by this vector, spilled values are not included
+	 * @return
+	 */
+	public long estimateSize(){
+		long bytes = 64 + (size >> 3) + (types == null ? 0 : capacity) + (segments == null ? 0 : 64 * segments.size()) + segmentBytes;
+		switch(kind){
+			case LONG: return bytes + 8L * capacity;
+			case DOUBLE: return bytes + 8L * capacity;
+			case STRING: return bytes + 4L * capacity + valueBytes;
+			case OBJECT: return bytes + 8L * capacity + valueBytes;
+			default: return bytes;
+		}
+	}
+
+	/**
+	 * @return true if this vector holds plain objects instead of primitive values or dictionary codes
+	 */
+	public boolean holdsObjects(){
+		return kind == OBJECT;
+	}
+
+	/**
+	 * @return true if this vector holds any {@link java.sql.ResultSet} (nested results)
+	 */
+	public boolean holdsResultSets(){
+		if(kind != OBJECT) return false;
+		for(int i=0; i<size - spilled; i++) if(objects[i] instanceof java.sql.ResultSet) return true;
+		return false;
+	}
+
+	/**
+	 * Rough estimate of the heap used by a single value
+	 * @param value
+	 * @return
+	 */
+	public static long estimateSize(Object value){
+		if(value == null) return 0;
+		if(value instanceof String) return 40 + 2 * ((String)value).length();
+		if(value instanceof ESResultSet) return ((ESResultSet)value).estimateSize();
+		if(value instanceof ESArray){
+			long size = 32;
+			try {
+				for(Object o : (Object[])((ESArray)value).getArray()) size += 8 + estimateSize(o);
+			} catch (Exception e) {
+				// unable to read array, keep minimal estimate
+			}
+			return size;
+		}
+		return 24;
+	}
+
+	private long longAt(int row){
+		if(row >= spilled) return longs[row - spilled];
+		Segment segment = segment(row);
+		return segment.longs.get(row - segment.start);
+	}
+
+	private double doubleAt(int row){
+		if(row >= spilled) return doubles[row - spilled];
+		Segment segment = segment(row);
+		if(segment.kind == LONG) return segment.longs.get(row - segment.start); // spilled before promotion
+		return segment.doubles.get(row - segment.start);
+	}
+
+	private int codeAt(int row){
+		if(row >= spilled) return codes[row - spilled];
+		Segment segment = segment(row);
+		return segment.codes.get(row - segment.start);
+	}
+
+	private Object objectAt(int row){
+		if(row >= spilled) return objects[row - spilled];
+		return spilledValue(row);
+	}
+
+	private byte getType(int row){
+		if(row < spilled){
+			Segment segment = segment(row);
+			return segment.types == null ? segment.type : segment.types.get(row - segment.start);
+		}
+		return types == null ? type : types[row - spilled];
+	}
+
+	private void setType(int row, byte valueType){
+		if(types == null){
+			if(valueType == type) return;
+			types = new byte[capacity];
+			Arrays.fill(types, 0, size - spilled, type);
+		}
+		types[row - spilled] = valueType;
+	}
+
+	/**
+	 * Finds the spilled segment holding the provided row
+	 */
+	private Segment segment(int row){
+		Segment segment = lastSegment;
+		if(segment != null && row >= segment.start && row < segment.start + segment.count) return segment;
+		int low = 0;
+		int high = segments.size() - 1;
+		while(low < high){
+			int mid = (low + high + 1) >>> 1;
+			if(segments.get(mid).start <= row) low = mid;
+			else high = mid - 1;
+		}
+		return lastSegment = segments.get(low);
+	}
+
+	private static byte typeOf(Object value){
+		if(value instanceof Integer) return T_INTEGER;
+		if(value instanceof Long) return T_LONG;
+		if(value instanceof Double) return T_DOUBLE;
+		if(value instanceof String) return T_STRING;
+		if(value instanceof Float) return T_FLOAT;
+		if(value instanceof Boolean) return T_BOOLEAN;
+		if(value instanceof Short) return T_SHORT;
+		if(value instanceof Byte) return T_BYTE;
+		return T_OBJECT;
+	}
+
+	private static boolean isExact(long value){
+		return value >= -MAX_EXACT_LONG && value <= MAX_EXACT_LONG;
+	}
+
+	private static byte kindOf(byte type){
+		if(type <= T_LONG) return LONG;
+		if(type <= T_DOUBLE) return DOUBLE;
+		if(type == T_STRING) return STRING;
+		return OBJECT;
+	}
+
+	private void init(byte kind, byte type){
+		this.kind = kind;
+		this.type = type;
+		switch(kind){
+			case LONG: longs = new long[capacity]; break;
+			case DOUBLE: doubles = new double[capacity]; break;
+			case STRING:
+				codes = new int[capacity];
+				dictionary = new ArrayList<String>();
+				dictionaryIndex = new HashMap<String, Integer>();
+				break;
+			default: objects = new Object[capacity];
+		}
+	}
+
+	/**
+	 * Promotes this vector holding longs into one holding doubles. The class of each value is kept within
+	 * the types, spilled segments keep holding longs.
+	 */
+	private void toDoubles(){
+		double[] values = new double[capacity];
+		for(int i=0; i<size - spilled; i++) values[i] = longs[i];
+		this.kind = DOUBLE;
+		this.longs = null;
+		this.doubles = values;
+	}
+
+	/**
+	 * Converts the rows held in memory into plain objects. Spilled segments are read only and keep their 
+	 * kind, which means that the rows held on disk are not read back into memory.
+	 */
+	private void toObjects(){
+		int count = size - spilled;
+		Object[] values = new Object[Math.max(count, capacity)];
+		long bytes = 0;
+		for(int i=0; i<count; i++) bytes += estimateSize(values[i] = get(spilled + i));
+		// the dictionary is still used by spilled segments
+		if(kind == STRING && spilled > 0) segmentBytes += valueBytes;
+		this.kind = OBJECT;
+		this.type = T_OBJECT;
+		this.types = null;
+		this.longs = null;
+		this.doubles = null;
+		this.codes = null;
+		this.dictionary = null;
+		this.dictionaryIndex = null;
+		this.ranks = null;
+		this.objects = values;
+		this.valueBytes = bytes;
+		this.capacity = values.length;
+	}
+
+	/**
+	 * Moves all spilled values back into memory
+	 */
+	private void unspill(){
+		ColumnVector copy = new ColumnVector(Math.max(size, capacity));
+		copy.append(this, null, 0, size);
+		this.kind = copy.kind;
+		this.type = copy.type;
+		this.types = copy.types;
+		this.longs = copy.longs;
+		this.doubles = copy.doubles;
+		this.codes = copy.codes;
+		this.dictionary = copy.dictionary;
+		this.dictionaryIndex = copy.dictionaryIndex;
+		this.objects = copy.objects;
+		this.valueBytes = copy.valueBytes;
+		this.promotable = copy.promotable;
+		this.capacity = copy.capacity;
+		this.spilled = 0;
+		this.segments = null;
+		this.lastSegment = null;
+		this.segmentBytes = 0;
+	}
+
+	/**
+	 * Makes sure the in memory arrays can hold the required number of rows
+	 */
+	private void ensureCapacity(int required){
+		if(required <= capacity) return;
+		int newCapacity = Math.max(required, capacity + (capacity >> 1) + 1);
+		if(longs != null) longs = Arrays.copyOf(longs, newCapacity);
+		if(doubles != null) doubles = Arrays.copyOf(doubles, newCapacity);
+		if(codes != null) codes = Arrays.copyOf(codes, newCapacity);
+		if(objects != null) objects = Arrays.copyOf(objects, newCapacity);
+		if(types != null) types = Arrays.copyOf(types, newCapacity);
+		capacity = newCapacity;
+	}
+
+	/**
+	 * Writes part of the in memory values into a buffer
+	 */
+	private interface Writer {
+		public void write(ByteBuffer buffer, int from, int to);
+	}
+
+	/**
+	 * Rows written to a spill file
+	 */
+	private static class Segment {
+		private final int start;
+		private final int count;
+		private final byte kind;
+		private final byte type;
+		private ByteBuffer types;
+		private List<String> dictionary;
+		private LongBuffer longs;
+		private DoubleBuffer doubles;
+		private IntBuffer codes;
+		private IntBuffer offsets;
+		private ByteBuffer objects;
+
+		private Segment(int start, int count, byte kind, byte type){
+			this.start = start;
+			this.count = count;
+			this.kind = kind;
+			this.type = type;
+		}
+	}
+}
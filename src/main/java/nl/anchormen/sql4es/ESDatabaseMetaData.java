@@ -37,6 +37,8 @@ import nl.anchormen.sql4es.model.Utils;
  */
 public class ESDatabaseMetaData implements DatabaseMetaData{
 	
+	public static final String DOC_VALUES_COLUMN = "ES_DOC_VALUES";
+	
 	private String host;
 	private int port;
 	private Client client;
@@ -905,6 +907,7 @@ public class ESDatabaseMetaData implements DatabaseMetaData{
 		heading.add(new Column("SOURCE_DATA_TYPE"));
 		heading.add(new Column("IS_AUTOINCREMENT"));
 		heading.add(new Column("IS_GENERATEDCOLUMN"));
+		heading.add(new Column(DOC_VALUES_COLUMN)); // driver specific, indicates if a field can be read from doc values
 		ESResultSet result = new ESResultSet(heading, 0, heading.getColumnCount());
 		//if(catalog != null && !catalog.equals(Utils.CATALOG)) return result;
 		
@@ -928,6 +931,7 @@ public class ESDatabaseMetaData implements DatabaseMetaData{
 					row.set(11, "The document _id used by elasticsearch");
 					row.set(22, "YES");
 					row.set(23, "YES");
+					row.set(24, "NO");
 					result.add(row);
 					
 					row = result.getNewRow();				
@@ -940,6 +944,7 @@ public class ESDatabaseMetaData implements DatabaseMetaData{
 					row.set(11, "The type a record is part of");
 					row.set(22, "NO");
 					row.set(23, "YES");
+					row.set(24, "NO");
 					result.add(row);
 					
 					row = result.getNewRow();				
@@ -952,6 +957,7 @@ public class ESDatabaseMetaData implements DatabaseMetaData{
 					row.set(11, "The index a record is part of");
 					row.set(22, "NO");
 					row.set(23, "YES");
+					row.set(24, "NO");
 					result.add(row);
 					
 					MappingMetaData typeMd = indices.get(index.value).getMappings().get(type.value);
@@ -970,7 +976,7 @@ public class ESDatabaseMetaData implements DatabaseMetaData{
 
 	@SuppressWarnings("unchecked")
 	private int addColumnInfo(Map<String, Object> info, String parent, int nextIndex, String esType, ESResultSet result, 
-			String columnNamePattern, boolean lateral){
+			String columnNamePattern, boolean lateral) throws SQLException{
 		List<Object> row = result.getNewRow();				
 		for(String key : info.keySet()){
 			String colName = parent != null ? parent+"."+key : key;
@@ -1008,6 +1014,7 @@ public class ESDatabaseMetaData implements DatabaseMetaData{
 				row.set(6, 1);
 				row.set(11, properties.toString());
 				row.set(5, type); 
+				row.set(24, hasDocValues(type, properties) ? "YES" : "NO");
 				switch (type){
 					case "string" :
 						row.set(4, Heading.getTypeIdForObject(new String())); 
@@ -1055,6 +1062,32 @@ public class ESDatabaseMetaData implements DatabaseMetaData{
 		return nextIndex;
 	}
 	
+	/**
+	 * Determines if the values of a field can be read from doc values based on its mapping. Elasticsearch
+	 * stores doc values by default for numeric and date fields and for strings which are not analyzed.
+	 * Booleans are excluded because their doc values are not returned as booleans.
+	 * @param type
+	 * @param properties
+	 * @return
+	 */
+	private static boolean hasDocValues(String type, Map<String, Object> properties){
+		if(Boolean.FALSE.equals(properties.get("doc_values")) || "false".equals(properties.get("doc_values"))) return false;
+		switch (type){
+			case "long" :
+			case "integer" :
+			case "double" :
+			case "float" :
+			case "date" :
+			case "short" :
+			case "byte" :
+				return true;
+			case "string" :
+				return "not_analyzed".equals(properties.get("index"));
+			default :
+				return false;
+		}
+	}
+	
 	@Override
 	public ResultSet getColumnPrivileges(String catalog, String schema, String table, String columnNamePattern)
 			throws SQLException {
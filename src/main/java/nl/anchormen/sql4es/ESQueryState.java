@@ -1,34 +1,56 @@
 package nl.anchormen.sql4es;
 
+import java.io.File;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.function.Function;
 
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptService.ScriptType;
 import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregation;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregatorBuilder;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregatorBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.bucket.terms.TermsBuilder;
 import org.elasticsearch.search.sort.SortOrder;
 
 import com.facebook.presto.sql.tree.Explain;
 import com.facebook.presto.sql.tree.Query;
 import com.facebook.presto.sql.tree.QueryBody;
 
+import nl.anchormen.sql4es.jdbc.ESConnection;
 import nl.anchormen.sql4es.jdbc.ESStatement;
 import nl.anchormen.sql4es.model.Column;
 import nl.anchormen.sql4es.model.Heading;
 import nl.anchormen.sql4es.model.OrderBy;
+import nl.anchormen.sql4es.model.QuerySource;
 import nl.anchormen.sql4es.model.Utils;
 import nl.anchormen.sql4es.model.Column.Operation;
+import nl.anchormen.sql4es.model.expression.ColumnReference;
+import nl.anchormen.sql4es.model.expression.ICalculation;
 import nl.anchormen.sql4es.model.expression.IComparison;
+import nl.anchormen.sql4es.model.expression.SimpleCalculation;
 import nl.anchormen.sql4es.parse.se.SearchAggregationParser;
 import nl.anchormen.sql4es.parse.se.SearchHitParser;
+import nl.anchormen.sql4es.parse.sql.ExpressionScriptBuilder;
 import nl.anchormen.sql4es.parse.sql.ParseResult;
 import nl.anchormen.sql4es.parse.sql.QueryParser;
 
@@ -51,11 +73,36 @@ public class ESQueryState{
 	
 	// state definition
 	private int maxRows = -1;
-	private SearchRequestBuilder request;
+	private String source = null;
 	private SearchRequestBuilder requestExecutor;
 
+	private int resultSetType = ResultSet.TYPE_SCROLL_INSENSITIVE;
+
 	private ESResultSet result = null;
-	private SearchResponse esResponse;
+	private String scrollId = null;
+	private ScrollPrefetcher prefetcher = null;
+	private ParallelScroll parallelScroll = null;
+	private MemoryBreaker breaker = null;
+	private String[] indices;
+	private boolean scan = false;
+	private int offset = 0;
+	private int skipHits = 0;
+	private TermsBuilder partitionAgg = null;
+	private int partitionSize = 0;
+	private String partitionField = null;
+	private QueryBuilder partitionQuery = null;
+	private String[] partitionTypes = null;
+	private boolean partitionCache = false;
+	private Object partitionKey = null;
+	private long rowsRead = 0;
+	private Map<Column, String> pipelineColumns = new IdentityHashMap<Column, String>();
+	private Map<String, Aggregation> pipelineResults = new HashMap<String, Aggregation>();
+	private boolean pipelineOnly = false;
+	private boolean countOnly = false;
+	private long hitsRead = 0;
+	private long totalHits = 0;
+	private boolean streamable = false;
+	private boolean useLateral = true;
 	private Heading heading = new Heading();;
 	private int limit = -1;
 	private IComparison having = null;
@@ -76,7 +123,9 @@ public class ESQueryState{
 	
 	/**
 	 * Builds the Elasticsearch query to be executed on the specified indexes. This function refreshes the 
-	 * state after which it is not possible to retrieve results for any previously build queries. 
+	 * state after which it is not possible to retrieve results for any previously build queries. If the 
+	 * connection has a {@link PlanCache} the plan built for the same sql, indexes, offset and max rows is
+	 * reused instead of parsing the query again.
 	 * @param sql
 	 * @param indices
 	 * @return 
@@ -84,18 +133,31 @@ public class ESQueryState{
 	 */
 	@SuppressWarnings("unchecked")
 	public ParseResult buildRequest(String sql, QueryBody query, String... indices) throws SQLException {
-		if(this.esResponse != null && this.esResponse.getScrollId() != null){
-			client.prepareClearScroll().addScrollId(this.esResponse.getScrollId()).execute();
-		}
-		this.request = client.prepareSearch(indices);
+		clearScroll();
+		this.indices = indices;
+		this.source = null;
 		this.requestExecutor = client.prepareSearch(indices);
+		PlanCache cache = null;
+		String planKey = null;
+		if(statement.getConnection() instanceof ESConnection){
+			cache = ((ESConnection)statement.getConnection()).getPlanCache();
+		}
+		if(cache != null){
+			planKey = "plan\u0000"+String.join(",", indices)+"\u0000"+offset+"\u0000"+maxRows+"\u0000"+sql;
+			Plan plan = (Plan)cache.get(planKey);
+			if(plan != null) return usePlan(plan);
+		}
+		SearchRequestBuilder request = client.prepareSearch(indices);
 		Map<String, Map<String, Integer>> esInfo = (Map<String, Map<String, Integer>>)Utils.getObjectProperty(props, Utils.PROP_TABLE_COLUMN_MAP);
 		ParseResult parseResult =  parser.parse(sql, query, maxRows, this.statement.getConnection().getClientInfo(), esInfo);
 		buildQuery(request, parseResult);
+		preparePipelines(request, parseResult);
 		this.heading = parseResult.getHeading();
 		having = parseResult.getHaving();
 		orderings = parseResult.getSorts();
 		this.limit = parseResult.getLimit();
+		// results consumed by a pipeline query must be able to scroll back 
+		this.streamable = parseResult.getParent() == null;
 		
 		// add highlighting
 		for(Column column : heading.columns()){
@@ -104,9 +166,166 @@ public class ESQueryState{
 						Utils.getIntProp(props, Utils.PROP_FRAGMENT_NUMBER, 1));
 			}
 		}
+		if(parseResult.getAggregation() == null){
+			if(Utils.getBooleanProp(props, Utils.PROP_CALCULATIONS_PUSHDOWN, false)) addScriptFields(request, heading);
+			if(Utils.getBooleanProp(props, Utils.PROP_FETCH_DOCVALUES, false)) addDocValueFields(request, parseResult);
+			addSourceFilter(request, heading);
+		}
+		this.source = request.toString();
+		// plans of queries consumed by another query are not cached as they share columns with that query
+		if(planKey != null && parseResult.getParent() == null) cache.put(planKey, getPlan(parseResult));
 		return parseResult;
 	}
 	
+	/**
+	 * Prepares this state to execute the provided plan using the specified request source instead of the
+	 * source within the plan. Used to execute plans built for prepared statements with the values bound.
+	 * @param plan
+	 * @param source
+	 * @param indices
+	 * @return
+	 */
+	public ParseResult buildRequest(Plan plan, String source, String... indices){
+		clearScroll();
+		this.indices = indices;
+		this.requestExecutor = client.prepareSearch(indices);
+		ParseResult parseResult = usePlan(plan);
+		this.source = source;
+		return parseResult;
+	}
+	
+	/**
+	 * Returns a snapshot of the state built for the provided result of {@link #buildRequest(String, QueryBody, String...)}
+	 * or null if the query is consumed by another query in which case it cannot be executed as a plan.
+	 * @param parseResult
+	 * @return
+	 */
+	public Plan getPlan(ParseResult parseResult){
+		if(parseResult.getParent() != null) return null;
+		return new Plan(this, parseResult);
+	}
+	
+	/**
+	 * Initializes this state using the provided plan, the heading is copied as it is altered while parsing results
+	 * @param plan
+	 * @return
+	 */
+	private ParseResult usePlan(Plan plan){
+		this.source = plan.source;
+		this.heading = plan.heading.copy();
+		this.having = plan.having;
+		this.orderings = plan.orderings;
+		this.limit = plan.limit;
+		this.scan = plan.scan;
+		this.skipHits = plan.skipHits;
+		this.countOnly = plan.countOnly;
+		this.streamable = true;
+		this.partitionAgg = plan.partitionAgg;
+		this.partitionSize = plan.partitionSize;
+		this.partitionField = plan.partitionField;
+		this.partitionQuery = plan.partitionQuery;
+		this.partitionTypes = plan.partitionTypes;
+		this.partitionCache = plan.partitionCache;
+		this.partitionKey = null;
+		this.rowsRead = 0;
+		this.pipelineColumns.clear();
+		this.pipelineResults.clear();
+		this.pipelineOnly = false;
+		return plan.parseResult;
+	}
+	
+	/**
+	 * Executes calculations on document fields as script fields using the expression language. Only calculations
+	 * on numeric fields within the same document can be executed this way, others are evaluated by the driver.
+	 * @param req
+	 * @param heading
+	 */
+	private void addScriptFields(SearchRequestBuilder req, Heading heading){
+		for(Column column : heading.columns()){
+			if(!column.hasCalculation()) continue;
+			Set<String> referenced = new HashSet<String>();
+			addReferencedFields(column.getCalculation(), referenced);
+			if(referenced.isEmpty()) continue; // calculations without fields only need to be evaluated once
+			String script = ExpressionScriptBuilder.build(column.getCalculation(), new Function<Column, String>(){
+				@Override
+				public String apply(Column col) {
+					if(col.getOp() != Operation.NONE || !Utils.isNumeric(col.getSqlType()) || col.getColumn().contains("'")) return null;
+					return "doc['"+col.getColumn()+"'].value";
+				}
+			});
+			if(script == null) continue;
+			req.addScriptField(column.getLabel(), new Script(script, ScriptType.INLINE, "expression", null));
+			column.setPushedDown(true);
+		}
+	}
+	
+	/**
+	 * Requests the values of selected fields from doc values (fielddata_fields) rather than the _source. This is only
+	 * done for top level fields which have doc values within all types queried (numeric, date and not_analyzed
+	 * string fields), according to the mappings loaded by the connection. 
+	 * @param req
+	 * @param info
+	 */
+	@SuppressWarnings("unchecked")
+	private void addDocValueFields(SearchRequestBuilder req, ParseResult info){
+		Map<String, Set<String>> docValueInfo = (Map<String, Set<String>>)Utils.getObjectProperty(props, Utils.PROP_TABLE_DOCVALUES_MAP);
+		if(docValueInfo == null || info.getHeading().hasAllCols()) return;
+		for(Column column : info.getHeading().columns()){
+			String field = column.getColumn();
+			if(column.hasCalculation() || column.getOp() != Operation.NONE || field.contains(".") || field.startsWith("_")) continue;
+			boolean hasDocValues = true;
+			for(QuerySource source : info.getSources()){
+				Set<String> fields = docValueInfo.get(source.getSource());
+				hasDocValues &= fields != null && fields.contains(field);
+			}
+			if(!hasDocValues) continue;
+			req.addFieldDataField(field);
+			column.setPushedDown(true);
+		}
+	}
+	
+	/**
+	 * Restricts the _source fetched to the fields present in the heading. Fields read from doc values and fields 
+	 * only used by calculations executed by Elasticsearch are not fetched and fetching _source is disabled entirely if only meta data 
+	 * (_id, _index, _type, _score) or highlights are selected. Nothing is filtered when all columns are selected.
+	 * @param req
+	 * @param heading
+	 */
+	private void addSourceFilter(SearchRequestBuilder req, Heading heading){
+		if(heading.hasAllCols()) return;
+		Set<String> pushedRefs = new HashSet<String>();
+		Set<String> clientRefs = new HashSet<String>();
+		for(Column column : heading.columns()){
+			if(!column.hasCalculation()) continue;
+			addReferencedFields(column.getCalculation(), column.isPushedDown() ? pushedRefs : clientRefs);
+		}
+		Set<String> includes = new HashSet<String>();
+		Set<String> docValueFields = new HashSet<String>();
+		for(Column column : heading.columns()){
+			String field = column.getColumn();
+			if(column.hasCalculation() || column.getOp() == Operation.HIGHLIGHT) continue;
+			if(field.equals(Heading.ID) || field.equals(Heading.INDEX) || field.equals(Heading.TYPE) || field.equals(Heading.SCORE)) continue;
+			if(column.isPushedDown()) {
+				docValueFields.add(field); // read from doc values
+				continue;
+			}
+			if(!column.isVisible() && pushedRefs.contains(field) && !clientRefs.contains(field)) continue;
+			includes.add(field);
+			includes.add(field+".*"); // the field may be the root of an object
+		}
+		for(String field : clientRefs) if(!field.startsWith("_") && !docValueFields.contains(field)) includes.add(field);
+		if(includes.isEmpty()) req.setFetchSource(false);
+		else req.setFetchSource(includes.toArray(new String[includes.size()]), null);
+	}
+	
+	private void addReferencedFields(ICalculation calc, Set<String> fields){
+		if(calc instanceof ColumnReference) fields.add(((ColumnReference)calc).getColumn().getColumn());
+		else if(calc instanceof SimpleCalculation){
+			addReferencedFields(((SimpleCalculation)calc).left(), fields);
+			addReferencedFields(((SimpleCalculation)calc).right(), fields);
+		}
+	}
+	
 	/**
 	 * Builds the Elasticsearch query object based on the parsed information from the SQL query
 	 * @param searchReq
@@ -118,10 +337,16 @@ public class ESQueryState{
 		SearchRequestBuilder req = searchReq.setTypes(types);
 		
 		// add filters and aggregations
-		if(info.getAggregation() != null){
+		this.countOnly = info.getCountOnly();
+		this.partitionAgg = null;
+		if(countOnly){
+			// counts are read from the total hits, no aggregation needed
+			if(info.getQuery() != null) req.setQuery(info.getQuery());
+		}else if(info.getAggregation() != null){
 			// when aggregating the query must be a query and not a filter
 			if(info.getQuery() != null)	req.setQuery(info.getQuery());
 			req.addAggregation(info.getAggregation());
+			if(!pushDownTopN(info)) preparePartitions(info, types);
 			
 		// ordering does not work on aggregations (has to be done in client)
 		}else if(info.getQuery() != null){
@@ -137,14 +362,28 @@ public class ESQueryState{
 		int fetchSize = Utils.getIntProp(props, Utils.PROP_FETCH_SIZE, 10000);
 		int limit = determineLimit(info.getLimit());
 		// add limit and determine to use scroll
+		this.scan = false;
+		this.skipHits = 0;
 		if(info.getAggregation() != null) {
 			req = req.setSize(0);
-		} else if(limit > 0 && limit < fetchSize){
+		} else if(limit > 0 && offset + limit <= fetchSize){
+			// the requested page can be fetched directly
+			if(offset > 0) req.setFrom(offset);
 			req.setSize(limit);
-		} else if (info.getSorts().isEmpty()){ // scrolling does not work well with sort
-			req.setSize(fetchSize); 
-			req.addSort("_doc", SortOrder.ASC);
-			req.setScroll(new TimeValue(Utils.getIntProp(props, Utils.PROP_SCROLL_TIMEOUT_SEC, 60)*1000));
+		} else {
+			// use a scroll and skip any offset client side while scrolling
+			this.skipHits = offset;
+			req.setSize(fetchSize);
+			if(info.getSorts().isEmpty()){
+				req.addSort("_doc", SortOrder.ASC);
+				this.scan = true;
+			}else{
+				// tiebreaker to get a deterministic order for documents with equal sort values
+				boolean sortsOnUid = false;
+				for(OrderBy ob : info.getSorts()) sortsOnUid |= ob.getField().equals("_uid");
+				if(!sortsOnUid) req.addSort("_uid", SortOrder.ASC);
+			}
+			req.setScroll(getScrollTimeout());
 		}
 		
 		// use query cache when this was indicated in FROM clause
@@ -152,6 +391,214 @@ public class ESQueryState{
 		req.setTimeout(TimeValue.timeValueMillis(Utils.getIntProp(props, Utils.PROP_QUERY_TIMEOUT_MS, 10000)));
 	}
 	
+	/**
+	 * Pushes the ORDER BY and LIMIT of an aggregation consisting of a single terms aggregation down into 
+	 * the order and size of that aggregation. Ordering is possible on the group key, COUNT and metrics 
+	 * calculated by Elasticsearch. If all orderings could be pushed down the sorts are removed from the 
+	 * provided ParseResult so they are not executed client side. The shard_size is set based on the 
+	 * ordering used: ordering on the key is exact, ordering on counts or metrics requires shards to 
+	 * return more buckets to get accurate results.  
+	 * @param info
+	 * @return true if the order and/or size of the aggregation has been set
+	 */
+	private boolean pushDownTopN(ParseResult info){
+		if(!info.getBucketsOrderable() || !(info.getAggregation() instanceof TermsBuilder)) return false;
+		TermsBuilder terms = (TermsBuilder)info.getAggregation();
+		List<Terms.Order> order = new ArrayList<Terms.Order>();
+		boolean exact = true;
+		for(OrderBy ob : info.getSorts()){
+			Column column = null;
+			for(Column col : info.getHeading().columns()) if(col.getIndex() == ob.getIndex()) column = col;
+			if(column == null || column.hasCalculation()) return false;
+			boolean asc = ob.getOrder() == SortOrder.ASC;
+			if(column.getOp() == Operation.NONE && column.getAggName().equals(terms.getName())){
+				order.add(Terms.Order.term(asc));
+			}else if(column.getOp() == Operation.COUNT){
+				order.add(Terms.Order.count(asc));
+				exact = false;
+			}else if((column.getOp() == Operation.AVG || column.getOp() == Operation.SUM || column.getOp() == Operation.MIN 
+					|| column.getOp() == Operation.MAX) && !column.getAggName().contains(".")){
+				order.add(Terms.Order.aggregation(column.getAggName(), asc));
+				exact = false;
+			}else return false; // unable to order on this column within elasticsearch
+		}
+		if(order.isEmpty()){
+			// without ORDER BY all buckets are fetched unless a LIMIT is specified, large limits are left to partitioning
+			int partitionSize = Utils.getIntProp(props, Utils.PROP_AGGREGATION_PARTITION_SIZE, 0);
+			if(info.getLimit() <= 0 || (partitionSize > 0 && offset + info.getLimit() > partitionSize)) return false;
+			order.add(Terms.Order.term(true)); // the lowest keys can be determined exactly
+		}
+		if(order.size() == 1) terms.order(order.get(0));
+		else terms.order(Terms.Order.compound(order));
+		info.setSorts(new ArrayList<OrderBy>());
+		
+		if(info.getLimit() > 0){
+			int size = offset + info.getLimit();
+			terms.size(size);
+			if(exact) terms.shardSize(size);
+			else terms.shardSize((int)Math.min(Integer.MAX_VALUE, size * 3L / 2 + 10));
+		}
+		return true;
+	}
+	
+	/**
+	 * Determines if the aggregation can be executed as a series of requests, each fetching a partition of the 
+	 * terms of the first GROUP BY column. Partitions are split on key ranges by ordering the terms on their 
+	 * key and requesting the next partition using a range filter on the last key received. This is only 
+	 * possible when rows do not have to be sorted or skipped client side.
+	 * @param info
+	 * @param types the types queried, which must be queried by each partition as well
+	 */
+	private void preparePartitions(ParseResult info, String[] types){
+		this.partitionAgg = null;
+		int partitionSize = Utils.getIntProp(props, Utils.PROP_AGGREGATION_PARTITION_SIZE, 0);
+		if(partitionSize <= 0 || !(info.getAggregation() instanceof TermsBuilder)) return;
+		if(!info.getSorts().isEmpty() || offset > 0 || info.getParent() != null) return;
+		TermsBuilder terms = (TermsBuilder)info.getAggregation();
+		Column column = info.getHeading().getColumnByLabel(terms.getName());
+		if(column == null) return;
+		terms.size(partitionSize).order(Terms.Order.term(true));
+		this.partitionAgg = terms;
+		this.partitionSize = partitionSize;
+		this.partitionField = column.getColumn();
+		this.partitionQuery = info.getQuery();
+		this.partitionTypes = types;
+		this.partitionCache = info.getUseCache();
+		this.partitionKey = null;
+		this.rowsRead = 0;
+	}
+	
+	/**
+	 * Translates the aggregations of the query consuming the result of this query (i.e. SELECT max(x) FROM 
+	 * (SELECT .. GROUP BY ..)) into sibling pipeline aggregations executed by Elasticsearch. This is only
+	 * possible if the result of this query is a single level of buckets which is not filtered, limited or
+	 * skipped client side. If all columns of the consuming query are pushed down the buckets are not 
+	 * parsed at all. Multiple aggregations on the same metric share a single stats_bucket.
+	 * @param req
+	 * @param info
+	 */
+	private void preparePipelines(SearchRequestBuilder req, ParseResult info){
+		this.pipelineColumns.clear();
+		this.pipelineResults.clear();
+		this.pipelineOnly = false;
+		ParseResult outer = info.getParent();
+		if(outer == null || !info.getSingleBucketLevel() || info.getHaving() != null || info.getLimit() > 0 || offset > 0) return;
+		
+		Map<Column, String> paths = new HashMap<Column, String>();
+		Map<String, Integer> pathUsage = new HashMap<String, Integer>();
+		boolean all = true;
+		for(Column column : outer.getHeading().columns()){
+			String path = getBucketsPath(column, info);
+			if(path == null){
+				all = false;
+				continue;
+			}
+			paths.put(column, path);
+			pathUsage.put(path, pathUsage.containsKey(path) ? pathUsage.get(path) + 1 : 1);
+		}
+		
+		Map<String, String> statsNames = new HashMap<String, String>();
+		for(Map.Entry<Column, String> entry : paths.entrySet()){
+			Column column = entry.getKey();
+			String path = entry.getValue();
+			String name;
+			if(pathUsage.get(path) > 1){
+				name = statsNames.get(path);
+				if(name == null){
+					name = "pipeline_stats_"+statsNames.size();
+					statsNames.put(path, name);
+					req.addAggregation(PipelineAggregatorBuilders.statsBucket(name).setBucketsPaths(path));
+				}
+			}else{
+				name = "pipeline_"+pipelineColumns.size();
+				PipelineAggregatorBuilder<?> pipeline;
+				switch(column.getOp()){
+					case MAX: pipeline = PipelineAggregatorBuilders.maxBucket(name); break;
+					case MIN: pipeline = PipelineAggregatorBuilders.minBucket(name); break;
+					case AVG: pipeline = PipelineAggregatorBuilders.avgBucket(name); break;
+					default: pipeline = PipelineAggregatorBuilders.sumBucket(name); break;
+				}
+				req.addAggregation(pipeline.setBucketsPaths(path));
+			}
+			pipelineColumns.put(column, name);
+		}
+		this.pipelineOnly = all && !paths.isEmpty();
+	}
+	
+	/**
+	 * Returns the buckets_path pointing to the metric within the buckets of this query the provided column 
+	 * (from the consuming query) aggregates or null if it cannot be executed as a pipeline aggregation
+	 * @param column
+	 * @param info
+	 * @return
+	 */
+	private String getBucketsPath(Column column, ParseResult info){
+		if(column.hasCalculation()) return null;
+		if(column.getOp() != Operation.MAX && column.getOp() != Operation.MIN && column.getOp() != Operation.AVG
+				&& column.getOp() != Operation.SUM) return null;
+		Column metric = info.getHeading().getColumnByLabel(column.getColumn());
+		if(metric == null || metric.hasCalculation()) return null;
+		String metricPath;
+		if(metric.getOp() == Operation.COUNT) metricPath = "_count";
+		else if(metric.getOp() == Operation.AVG || metric.getOp() == Operation.SUM || metric.getOp() == Operation.MIN
+				|| metric.getOp() == Operation.MAX) metricPath = metric.getAggName();
+		else return null;
+		String path = info.getAggregation().getName()+">"+metricPath;
+		// these characters have a special meaning within buckets paths
+		if(path.indexOf('.') >= 0 || path.indexOf('[') >= 0 || path.indexOf('>') != path.lastIndexOf('>')) return null;
+		return path;
+	}
+	
+	/**
+	 * @param column a column of the query consuming the result of this query
+	 * @return true if the value of the column has been calculated by a pipeline aggregation
+	 */
+	public boolean hasPipelineValue(Column column){
+		String name = pipelineColumns.get(column);
+		return name != null && pipelineResults.containsKey(name);
+	}
+	
+	/**
+	 * Returns the value calculated by the pipeline aggregation for the provided column or null if it
+	 * could not be calculated (for example because there were no buckets)
+	 * @param column a column of the query consuming the result of this query
+	 * @return
+	 */
+	public Object getPipelineValue(Column column){
+		Aggregation agg = pipelineResults.get(pipelineColumns.get(column));
+		double value;
+		if(agg instanceof Stats){
+			Stats stats = (Stats)agg;
+			switch(column.getOp()){
+				case MAX: value = stats.getMax(); break;
+				case MIN: value = stats.getMin(); break;
+				case AVG: value = stats.getAvg(); break;
+				default: value = stats.getSum(); break;
+			}
+		}else if(agg instanceof NumericMetricsAggregation.SingleValue){
+			value = ((NumericMetricsAggregation.SingleValue)agg).value();
+		}else return null;
+		if(Double.isNaN(value) || Double.isInfinite(value)) return null;
+		return value;
+	}
+	
+	/**
+	 * Fetches the next partition of a partitioned aggregation or returns null if all partitions have been fetched
+	 * @return
+	 * @throws SQLException
+	 */
+	private ESResultSet nextPartition() throws SQLException{
+		if(partitionKey == null) return null;
+		BoolQueryBuilder query = QueryBuilders.boolQuery().filter(QueryBuilders.rangeQuery(partitionField).gt(partitionKey));
+		if(partitionQuery != null) query.must(partitionQuery);
+		SearchRequestBuilder partitionReq = client.prepareSearch(indices).setQuery(query).addAggregation(partitionAgg).setSize(0)
+				.setTimeout(TimeValue.timeValueMillis(Utils.getIntProp(props, Utils.PROP_QUERY_TIMEOUT_MS, 10000)));
+		SearchRequestBuilder req = client.prepareSearch(indices).setTypes(partitionTypes).setSource(partitionReq.toString());
+		if(partitionCache) req.setRequestCache(true);
+		SearchResponse esResponse = req.execute().actionGet();
+		return convertResponse(esResponse, useLateral);
+	}
+	
 	/**
 	 * Builds the request defined within the explain statement and returns its string representation
 	 * @param sql
@@ -164,7 +611,7 @@ public class ESQueryState{
 		com.facebook.presto.sql.tree.Statement explanSt = explain.getStatement();
 		if(!(explanSt instanceof Query)) throw new SQLException("Can only EXPLAIN SELECT ... statements");
 		this.buildRequest(sql, ((Query)explanSt).getQueryBody(), indexes);
-		return this.request.toString();
+		return this.source;
 	}
 
 	/**
@@ -184,68 +631,296 @@ public class ESQueryState{
 	 * @throws SQLException
 	 */
 	ResultSet execute(boolean useLateral) throws SQLException{
-		if(request == null) throw new SQLException("Unable to execute query because it has not correctly been parsed");
-		System.out.println(request);
-		this.requestExecutor.setSource(request.toString());
-		//this.esResponse = this.client.prepareSearch(this.statement.getConnection().getSchema()).setSource(request.toString()).execute().actionGet();
-		this.esResponse = this.requestExecutor.execute().actionGet();
-		System.out.println(esResponse);
-		ESResultSet rs = convertResponse(useLateral);
-		if(rs == null) throw new SQLException("No result found for this query");
+		if(source == null) throw new SQLException("Unable to execute query because it has not correctly been parsed");
+		clearScroll();
+		resetBreaker();
+		this.requestExecutor.setSource(source);
+		this.hitsRead = 0;
+		this.useLateral = useLateral;
+		ESResultSet rs;
+		boolean scrolling;
+		if(scan && (this.parallelScroll = startParallelScroll(useLateral)) != null){
+			rs = parallelScroll.next();
+			if(rs == null) rs = new ESResultSet(this);
+			scrolling = true;
+		}else{
+			//this.esResponse = this.client.prepareSearch(this.statement.getConnection().getSchema()).setSource(request.toString()).execute().actionGet();
+			SearchResponse esResponse = this.requestExecutor.execute().actionGet();
+			this.scrollId = esResponse.getScrollId();
+			rs = convertResponse(esResponse, useLateral);
+			if(rs == null) throw new SQLException("No result found for this query");
+			scrolling = (scrollId != null && esResponse.getAggregations() == null) || (partitionAgg != null && partitionKey != null);
+			
+			// fetch subsequent pages of a scroll in the background when configured to do so (partitions are fetched on demand)
+			int prefetchDepth = Utils.getIntProp(props, Utils.PROP_SCROLL_PREFETCH_DEPTH, 0);
+			if(prefetchDepth > 0 && scrollId != null && partitionAgg == null && esResponse.getAggregations() == null){
+				long maxHits = getHitLimit() > 0 ? Math.min(totalHits, getHitLimit()) : totalHits;
+				// parsing may add columns to the heading when selecting all, which is not safe while the consumer reads it
+				boolean parseAhead = Utils.getBooleanProp(props, Utils.PROP_SCROLL_PREFETCH_PARSE, false) && !heading.hasAllCols();
+				this.prefetcher = new ScrollPrefetcher(this, client, scrollId, getScrollTimeout(), 
+						prefetchDepth, parseAhead, useLateral, hitsRead, maxHits);
+			}
+		}
+		if(scrolling && rs.getNrRows() == 0){
+			// the first page may have been skipped entirely due to an OFFSET
+			ESResultSet page = fetchPage(useLateral);
+			if(page != null) rs = page;
+		}
 		if(this.result != null) this.result.close();
+		
+		// a forward only scroll is wrapped so that pages are fetched while the ResultSet is being read
+		if(resultSetType == ResultSet.TYPE_FORWARD_ONLY && streamable && scrolling){
+			rs = new ESStreamingResultSet(this, rs);
+		}
 		this.result = rs;
 		return this.result;
 	}
+	
+	/**
+	 * Starts a scan using one scroll per shard if the scroll.parallel.threads property has been set. Returns 
+	 * null if a regular scroll must be used.
+	 * @param useLateral
+	 * @return
+	 * @throws SQLException
+	 */
+	private ParallelScroll startParallelScroll(boolean useLateral) throws SQLException{
+		int threads = Utils.getIntProp(props, Utils.PROP_SCROLL_PARALLEL_THREADS, 0);
+		if(threads <= 0) return null;
+		ParallelScroll scroll = new ParallelScroll(this, client, indices, source, getScrollTimeout(), 
+				threads, threads*2, useLateral, getHitLimit());
+		if(!scroll.start()) return null;
+		return scroll;
+	}
+	
+	private TimeValue getScrollTimeout(){
+		return new TimeValue(Utils.getIntProp(props, Utils.PROP_SCROLL_TIMEOUT_SEC, 60)*1000);
+	}
 
 	/**
 	 * Parses the result from ES and converts it into an ESResultSet object
 	 * @return
 	 * @throws SQLException
 	 */
-	private ESResultSet convertResponse(boolean useLateral) throws SQLException{
+	private ESResultSet convertResponse(SearchResponse esResponse, boolean useLateral) throws SQLException{
 		if(esResponse.getHits().getHits().length == 0 && esResponse.getScrollId() != null){
-			esResponse = client.prepareSearchScroll(esResponse.getScrollId())
-					.setScroll(new TimeValue(Utils.getIntProp(props, Utils.PROP_SCROLL_TIMEOUT_SEC, 60)*1000))
-					.execute().actionGet();
+			esResponse = scroll();
 		}
 		// parse aggregated result
-		if(esResponse.getAggregations() != null){
+		if(countOnly || esResponse.getAggregations() != null){
+			if(partitionAgg != null) updatePartitionKey(esResponse);
 			ESResultSet rs = new ESResultSet(this);
-			for(Aggregation agg : esResponse.getAggregations()){
-				aggParser.parseAggregation(agg, rs);
+			pipelineResults.clear();
+			if(countOnly) addCountRow(esResponse.getHits().getTotalHits(), rs);
+			else for(Aggregation agg : esResponse.getAggregations()){
+				if(pipelineColumns.containsValue(agg.getName())) pipelineResults.put(agg.getName(), agg);
+				else if(!pipelineOnly) aggParser.parseAggregation(agg, rs);
 			}
-			if(rs.getNrRows() == 0) return null;
+			if(rs.getNrRows() == 0 && pipelineResults.isEmpty()) return null;
 			if(having != null) rs.filterHaving(having);
 			rs.setTotal(rs.getNrRows());
 			if(!orderings.isEmpty()){
-				rs.orderBy(orderings);
+				// only the rows within the offset and limit have to be ordered
+				long top = -1;
+				if(this.limit > -1) top = offset + (partitionAgg != null ? Math.max(0, limit - rowsRead) : limit);
+				rs.orderBy(orderings, (int)Math.min(top, Integer.MAX_VALUE));
 			}
-			if(this.limit > -1) rs.limit(limit);
+			if(this.offset > 0) rs.skip(offset);
+			if(partitionAgg != null){
+				// the limit applies to all partitions together
+				if(this.limit > -1) rs.limit((int)Math.max(0, limit - rowsRead));
+				rowsRead += rs.getNrRows();
+				if(this.limit > -1 && rowsRead >= limit) partitionKey = null;
+			}else if(this.limit > -1) rs.limit(limit);
 			rs.executeComputations();
+			rs.checkMemory();
 			return rs;
 		}else{
 			// parse plain document hits
-			long total = esResponse.getHits().getTotalHits();
-			if(getLimit() > 0) total = Math.min(total, getLimit());
-			ESResultSet rs = hitParser.parse(esResponse.getHits(), this.heading, total, Utils.getIntProp(props, Utils.PROP_DEFAULT_ROW_LENGTH, 1000), useLateral, 0);
-			rs.executeComputations();
+			this.totalHits = esResponse.getHits().getTotalHits();
+			ESResultSet rs = parsePage(esResponse, useLateral, hitsRead);
+			hitsRead += esResponse.getHits().getHits().length;
+			if(esResponse.getHits().getHits().length == 0) this.totalHits = hitsRead; // scroll is exhausted
 			return rs;
 		}
 	}
 	
+	/**
+	 * Adds the single row of a count only query, all COUNT columns are set to the total number of hits
+	 * @param count
+	 * @param rs
+	 */
+	private void addCountRow(long count, ESResultSet rs) throws SQLException{
+		List<Object> row = rs.getNewRow();
+		for(Column column : rs.getHeading().columns()){
+			if(column.getOp() == Operation.COUNT) row.set(column.getIndex(), count);
+		}
+		rs.add(row);
+	}
+	
+	/**
+	 * Remembers the key of the last bucket within the partition received which is used to request
+	 * the next partition. The key is cleared when this was the last partition.
+	 * @param esResponse
+	 */
+	private void updatePartitionKey(SearchResponse esResponse){
+		Terms terms = esResponse.getAggregations().get(partitionAgg.getName());
+		if(terms == null || terms.getBuckets().size() < partitionSize) partitionKey = null;
+		else partitionKey = terms.getBuckets().get(terms.getBuckets().size()-1).getKey();
+	}
+	
+	/**
+	 * Parses the hits within the provided response into an ESResultSet. The offset indicates the number 
+	 * of hits fetched before this response. 
+	 * @param esResponse
+	 * @param useLateral
+	 * @param offset
+	 * @return
+	 * @throws SQLException
+	 */
+	ESResultSet parsePage(SearchResponse esResponse, boolean useLateral, long offset) throws SQLException{
+		long total = esResponse.getHits().getTotalHits();
+		if(getHitLimit() > 0) total = Math.min(total, getHitLimit());
+		return parsePage(esResponse, useLateral, offset, total);
+	}
+	
+	/**
+	 * Parses the hits within the provided response using the total specified instead of the total
+	 * within the response. Hits that fall within an OFFSET which could not be pushed to Elasticsearch
+	 * are skipped, which means that the ResultSet returned may be empty.
+	 * @param esResponse
+	 * @param useLateral
+	 * @param offset number of hits fetched before this response
+	 * @param total total number of hits to fetch (including any hits skipped)
+	 * @return
+	 * @throws SQLException
+	 */
+	ESResultSet parsePage(SearchResponse esResponse, boolean useLateral, long offset, long total) throws SQLException{
+		int skip = (int)Math.max(0, Math.min(skipHits - offset, esResponse.getHits().getHits().length));
+		hitParser.setSpill(getSpillBudget(), getSpillDir());
+		hitParser.setBreaker(getBreaker());
+		ESResultSet rs = hitParser.parse(esResponse.getHits(), this.heading, Math.max(0, total - skipHits), 
+				Utils.getIntProp(props, Utils.PROP_DEFAULT_ROW_LENGTH, 1000), useLateral, Math.max(0, offset - skipHits), skip);
+		rs.executeComputations();
+		rs.checkMemory();
+		return rs;
+	}
+	
+	/**
+	 * Fetches the next page from the active scroll and updates the scroll id
+	 * @return
+	 */
+	private SearchResponse scroll(){
+		SearchResponse esResponse = client.prepareSearchScroll(scrollId)
+				.setScroll(getScrollTimeout())
+				.execute().actionGet();
+		this.scrollId = esResponse.getScrollId();
+		return esResponse;
+	}
+	
+	/**
+	 * Returns true if more hits can be fetched for the current query
+	 * @return
+	 */
+	private boolean hasMoreHits(){
+		if(scrollId == null || hitsRead >= totalHits) return false;
+		return getHitLimit() <= 0 || hitsRead < getHitLimit();
+	}
+	
+	/**
+	 * @return true if subsequent pages of the current query are fetched in the background
+	 */
+	public boolean isPrefetching(){
+		return prefetcher != null;
+	}
+	
+	/**
+	 * @return true if the current query is executed using one scroll per shard
+	 */
+	public boolean isScanningInParallel(){
+		return parallelScroll != null;
+	}
+	
+	/**
+	 * @return true if all results of the current query have been fetched, i.e. no scroll, partition or 
+	 * prefetcher holds any more results
+	 */
+	public boolean isExhausted(){
+		return parallelScroll == null && prefetcher == null && (partitionAgg == null || partitionKey == null) && !hasMoreHits();
+	}
+	
+	/**
+	 * Releases any resources held for the previous query and makes the provided ResultSet, obtained from
+	 * the {@link ResultCache}, the result of this state.
+	 * @param rs
+	 * @return
+	 * @throws SQLException
+	 */
+	public ESResultSet setCachedResult(ESResultSet rs) throws SQLException{
+		clearScroll();
+		this.partitionAgg = null;
+		this.partitionKey = null;
+		if(this.result != null) this.result.close();
+		this.result = rs;
+		return rs;
+	}
+	
 	public ResultSet moreResutls(boolean useLateral) throws SQLException {
-		if(result != null && result.getOffset() + result.getNrRows() >= result.getTotal()) return null;
+		// a streaming ResultSet fetches all pages itself
+		if(result instanceof ESStreamingResultSet) return null;
 		if(result != null) result.close();
-		if(esResponse.getScrollId() != null ){
-			esResponse = client.prepareSearchScroll(esResponse.getScrollId())
-					.setScroll(new TimeValue(Utils.getIntProp(props, Utils.PROP_SCROLL_TIMEOUT_SEC, 60)*1000))
-					.execute().actionGet();
-			ESResultSet rs = convertResponse(useLateral);
-			if(rs.getNrRows() == 0) return null;
-			result = rs;
-			return result;
+		ESResultSet rs = fetchPage(useLateral);
+		if(rs == null || rs.getNrRows() == 0) return null;
+		result = rs;
+		return result;
+	}
+	
+	/**
+	 * Fetches the next page of results for the {@link ESStreamingResultSet} returned by this state.
+	 * Returns null when the scroll is exhausted or the limit has been reached.
+	 * @return
+	 * @throws SQLException
+	 */
+	ESResultSet nextPage() throws SQLException {
+		ESResultSet rs = fetchPage(useLateral);
+		if(rs == null || rs.getNrRows() == 0) return null;
+		return rs;
+	}
+	
+	/**
+	 * Gets the next page either from the prefetcher or by scrolling directly
+	 * @param useLateral
+	 * @return the next page or null if no more hits are available
+	 * @throws SQLException
+	 */
+	private ESResultSet fetchPage(boolean useLateral) throws SQLException {
+		ESResultSet rs = readPage(useLateral);
+		// pages can be empty when all their hits are skipped due to an OFFSET
+		while(rs != null && rs.getNrRows() == 0) rs = readPage(useLateral);
+		return rs;
+	}
+	
+	private ESResultSet readPage(boolean useLateral) throws SQLException {
+		if(partitionAgg != null) return nextPartition();
+		if(parallelScroll != null) return parallelScroll.next();
+		if(prefetcher != null) return prefetcher.next();
+		if(!hasMoreHits()) return null;
+		return convertResponse(scroll(), useLateral);
+	}
+	
+	private void clearScroll(){
+		if(this.parallelScroll != null){
+			parallelScroll.close();
+			parallelScroll = null;
+		}
+		if(this.prefetcher != null){
+			this.scrollId = prefetcher.getScrollId();
+			prefetcher.close();
+			prefetcher = null;
+		}
+		if(this.scrollId != null){
+			client.prepareClearScroll().addScrollId(this.scrollId).execute();
+			this.scrollId = null;
 		}
-		return null;
 	}
 	
 	public Heading getHeading() {
@@ -257,10 +932,23 @@ public class ESQueryState{
 	}
 
 	public void close() throws SQLException {
-		if(this.esResponse != null && this.esResponse.getScrollId() != null){
-			client.prepareClearScroll().addScrollId(this.esResponse.getScrollId()).execute();
-		}
+		clearScroll();
 		if(this.result != null) result.close();
+		if(breaker != null) breaker.close();
+		breaker = null;
+	}
+
+	/**
+	 * Sets the type of ResultSet returned by this state. {@link ResultSet#TYPE_FORWARD_ONLY} results in a 
+	 * streaming ResultSet which fetches scroll pages while it is being read.
+	 * @param resultSetType
+	 */
+	public void setResultSetType(int resultSetType){
+		this.resultSetType = resultSetType;
+	}
+	
+	public int getResultSetType(){
+		return resultSetType;
 	}
 
 	/**
@@ -296,10 +984,109 @@ public class ESQueryState{
 		return Math.min(limit, getMaxRows());
 	}	
 	
+	/**
+	 * Returns the number of hits to fetch from Elasticsearch in order to satisfy the limit. This 
+	 * includes any hits skipped client side due to an OFFSET 
+	 * @return
+	 */
+	private long getHitLimit(){
+		if(getLimit() <= 0) return -1;
+		return skipHits + getLimit();
+	}
+	
+	/**
+	 * Sets the number of rows to skip (SQL OFFSET) for queries build after this call. Shallow offsets 
+	 * are executed using from/size, deep offsets are skipped while scrolling.
+	 * @param offset
+	 */
+	public void setOffset(int offset){
+		this.offset = Math.max(0, offset);
+	}
+	
+	public int getOffset(){
+		return offset;
+	}
+	
 	public int getIntProp(String name, int def) {
 		return Utils.getIntProp(props, name, def);
 	}
 	
+	/**
+	 * @return the number of bytes a single ResultSet may hold in memory before it is spilled to disk, 0 if
+	 * results must not be spilled
+	 */
+	long getSpillBudget(){
+		return Utils.getIntProp(props, Utils.PROP_RESULT_SPILL_MB, 0) * 1024L * 1024L;
+	}
+	
+	/**
+	 * Replaces the breaker used for the results of the previous query by a new one, which releases the 
+	 * memory of results which have not been closed. 
+	 */
+	private synchronized void resetBreaker(){
+		if(breaker != null) breaker.close();
+		breaker = statement instanceof ESStatement ? ((ESStatement)statement).getMemoryBreaker().child() : null;
+	}
+	
+	/**
+	 * @return the breaker in which results of the current query reserve the memory they use, null if memory
+	 * is not accounted for
+	 */
+	synchronized MemoryBreaker getBreaker(){
+		return breaker;
+	}
+	
+	/**
+	 * @return the directory results are spilled to or null if the default temporary directory must be used
+	 */
+	File getSpillDir(){
+		String dir = props.getProperty(Utils.PROP_RESULT_SPILL_DIR);
+		return dir == null || dir.trim().isEmpty() ? null : new File(dir.trim());
+	}
+	
+	/**
+	 * Immutable snapshot of the state built for a query which is stored within the {@link PlanCache}
+	 */
+	public static class Plan {
+		private final ParseResult parseResult;
+		private final String source;
+		private final Heading heading;
+		private final IComparison having;
+		private final List<OrderBy> orderings;
+		private final int limit;
+		private final boolean scan;
+		private final int skipHits;
+		private final boolean countOnly;
+		private final TermsBuilder partitionAgg;
+		private final int partitionSize;
+		private final String partitionField;
+		private final QueryBuilder partitionQuery;
+		private final String[] partitionTypes;
+		private final boolean partitionCache;
+		
+		private Plan(ESQueryState state, ParseResult parseResult){
+			this.parseResult = parseResult;
+			this.source = state.source;
+			this.heading = state.heading.copy();
+			this.having = state.having;
+			this.orderings = state.orderings;
+			this.limit = state.limit;
+			this.scan = state.scan;
+			this.skipHits = state.skipHits;
+			this.countOnly = state.countOnly;
+			this.partitionAgg = state.partitionAgg;
+			this.partitionSize = state.partitionSize;
+			this.partitionField = state.partitionField;
+			this.partitionQuery = state.partitionQuery;
+			this.partitionTypes = state.partitionTypes;
+			this.partitionCache = state.partitionCache;
+		}
+		
+		/**
+		 * @return the search request executed
+		 */
+		public String getSource(){
+			return source;
+		}
+	}
 }
-
-
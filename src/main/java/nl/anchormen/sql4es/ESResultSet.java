@@ -1,5 +1,7 @@
 package nl.anchormen.sql4es;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
@@ -25,8 +27,6 @@ import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 
@@ -36,23 +36,50 @@ import nl.anchormen.sql4es.model.Column;
 import nl.anchormen.sql4es.model.Heading;
 import nl.anchormen.sql4es.model.OrderBy;
 import nl.anchormen.sql4es.model.Utils;
+import nl.anchormen.sql4es.model.expression.CompiledCalculation;
+import nl.anchormen.sql4es.model.expression.CompiledComparison;
 import nl.anchormen.sql4es.model.expression.IComparison;
 
+/**
+ * ResultSet holding its values in a {@link ColumnVector} per column. Rows are built using
+ * {@link #getNewRow()} and copied into the vectors when they are added. Numeric values are read
+ * directly from the primitive arrays held by the vectors.
+ * 
+ * When a memory budget has been set the size of the vectors is checked regularly while rows are added
+ * and the vectors are spilled to a temporary {@link SpillFile} once the budget is exceeded. Operations
+ * creating new vectors (ordering, filtering, offset and limit) spill the vectors they create as well.
+ * 
+ * When a {@link MemoryBreaker} has been set the memory used by the vectors held in memory is reserved 
+ * within the breaker at the same moments, which fails the query when its limits are exceeded. The memory
+ * is released when the resultset is closed.
+ */
 public class ESResultSet implements ResultSet {
 
-	private List<List<Object>> rows = new ArrayList<List<Object>>();
+	private List<ColumnVector> columns = new ArrayList<ColumnVector>();
+	private int nrRows = 0;
 	private Heading heading;
 	private int cursor = -1;
 	private ESQueryState req;
 	private long total;
 	private long offset = 0;
 	private int defaultRowLength = 1000;
+	private boolean wasNull = false;
+	private long spillBudget = 0;
+	private File spillDir = null;
+	private SpillFile spillFile = null;
+	private MemoryBreaker breaker = null;
+	private long reserved = 0;
+	
+	// number of rows added between checks of the memory used
+	private static final int SPILL_CHECK_ROWS = 4096;
 
 	public ESResultSet(ESQueryState req){
 		this.heading = req.getHeading();
 		this.req = req;
 		this.total = 0;
 		this.defaultRowLength = req.getIntProp(Utils.PROP_DEFAULT_ROW_LENGTH, 1000);
+		this.breaker = req.getBreaker();
+		setSpill(req.getSpillBudget(), req.getSpillDir());
 	}
 	
 	public ESResultSet(Heading heading, int total, int defaultRowLength){
@@ -66,6 +93,8 @@ public class ESResultSet implements ResultSet {
 		this.req = req;
 		this.total = total;
 		this.defaultRowLength = req.getIntProp(Utils.PROP_DEFAULT_ROW_LENGTH, 1000);
+		this.breaker = req.getBreaker();
+		setSpill(req.getSpillBudget(), req.getSpillDir());
 	}
 	
 	public ESResultSet(ESQueryState req, long offset, long total){
@@ -73,6 +102,53 @@ public class ESResultSet implements ResultSet {
 		this.offset = offset;
 	}
 	
+	/**
+	 * Creates a ResultSet on columns which have been fetched before, for example by the {@link ResultCache}.
+	 * The columns are not copied and must not be altered.
+	 * @param req
+	 * @param heading
+	 * @param columns
+	 * @param nrRows
+	 * @param total
+	 */
+	public ESResultSet(ESQueryState req, Heading heading, List<ColumnVector> columns, int nrRows, long total){
+		this.heading = heading;
+		this.req = req;
+		this.columns = columns;
+		this.nrRows = nrRows;
+		this.total = total;
+		this.defaultRowLength = req.getIntProp(Utils.PROP_DEFAULT_ROW_LENGTH, 1000);
+	}
+	
+	/**
+	 * Sets the memory budget of this resultset after which its columns are spilled to disk
+	 * @param budget the budget in bytes, 0 to keep everything in memory
+	 * @param dir the directory to spill to or null to use the default temporary directory
+	 * @return
+	 */
+	public ESResultSet setSpill(long budget, File dir){
+		this.spillBudget = budget;
+		this.spillDir = dir;
+		return this;
+	}
+	
+	/**
+	 * Sets the breaker in which the memory used by this resultset is reserved
+	 * @param breaker the breaker to use or null to not account for the memory used
+	 * @return
+	 */
+	public ESResultSet setBreaker(MemoryBreaker breaker){
+		this.breaker = breaker;
+		return this;
+	}
+	
+	/**
+	 * @return true if any of the columns of this resultset have been spilled to disk
+	 */
+	public boolean isSpilled(){
+		return spillFile != null;
+	}
+	
 	public Heading getHeading(){
 		return this.heading;
 	}
@@ -83,9 +159,9 @@ public class ESResultSet implements ResultSet {
 			if(h.isVisible() ) sb.append(h.getLabel()+", ");
 		}
 		sb.append("\r\n");
-		for(List<Object> row : rows){
+		for(int i=0; i<nrRows; i++){
 			for(Column h : heading.columns()){
-				Object o = h.getIndex() >= row.size() ? null : row.get(h.getIndex());
+				Object o = getValue(i, h.getIndex());
 				if(h.isVisible() ) sb.append((o instanceof ResultSet ? "\r\n" : "")+o+(o instanceof ResultSet ? "\r\n" : ", "));
 			}
 			sb.append("\r\n");
@@ -103,25 +179,339 @@ public class ESResultSet implements ResultSet {
 		return row;
 	}
 	
-	public void add(List<Object> row) {
-		rows.add(row.subList(0, heading.getColumnCount()));
-		if(rows.size() > total) total = rows.size(); // can happen when rows are being exploded
+	/**
+	 * Copies the values of the provided row into the columns of this resultset. Changes made to the 
+	 * row after it has been added are not reflected by the resultset.
+	 * @param row
+	 * @throws SQLException if the columns exceed the memory budget and cannot be spilled
+	 */
+	public void add(List<Object> row) throws SQLException {
+		for(Column column : heading.columns()){
+			int idx = column.getIndex();
+			if(idx < row.size()) getOrCreateVector(idx).set(nrRows, row.get(idx));
+		}
+		nrRows++;
+		if(offset + nrRows > total) total = offset + nrRows; // can happen when rows are being exploded
+		if(nrRows % SPILL_CHECK_ROWS == 0) checkMemory();
+	}
+	
+	/**
+	 * Spills the columns if they exceed the memory budget and reserves the memory used by the columns
+	 * held in memory within the breaker (if any)
+	 * @throws SQLException if the breaker refuses the memory required or the columns cannot be spilled
+	 */
+	public void checkMemory() throws SQLException{
+		if(spillBudget > 0) spillFile = spill(columns, spillFile, spillBudget);
+		if(breaker != null) reserved = account(columns, reserved);
+	}
+	
+	/**
+	 * Reserves or releases memory within the breaker so that the reserved amount matches the estimated
+	 * size of the provided vectors
+	 * @param vectors
+	 * @param reserved the number of bytes reserved for the vectors before
+	 * @return the number of bytes reserved for the vectors
+	 * @throws SQLException if the breaker refuses the additional memory
+	 */
+	private long account(List<ColumnVector> vectors, long reserved) throws SQLException{
+		long size = estimateSize(vectors);
+		if(size > reserved) breaker.reserve(size - reserved);
+		else breaker.release(reserved - size);
+		return size;
+	}
+	
+	private static long estimateSize(List<ColumnVector> vectors){
+		long size = 0;
+		for(ColumnVector vector : vectors) if(vector != null) size += vector.estimateSize();
+		return size;
+	}
+	
+	/**
+	 * @return the estimated heap used by the values of this resultset, spilled values are not included
+	 */
+	public long estimateSize(){
+		return estimateSize(columns);
+	}
+	
+	/**
+	 * Spills the provided vectors if they use more memory than the budget allows
+	 * @param vectors
+	 * @param file the file to spill to, created if it is null
+	 * @param budget the number of bytes the vectors may use before they are spilled
+	 * @return the file spilled to (if any)
+	 * @throws SQLException
+	 */
+	private SpillFile spill(List<ColumnVector> vectors, SpillFile file, long budget) throws SQLException{
+		if(estimateSize(vectors) <= budget) return file;
+		try{
+			if(file == null) file = new SpillFile(spillDir);
+			for(ColumnVector vector : vectors) if(vector != null) vector.spill(file);
+			return file;
+		}catch(IOException e){
+			throw new SQLException("Unable to spill result to disk: "+e.getMessage(), e);
+		}
+	}
+	
+	private void releaseMemory(){
+		if(breaker != null) breaker.release(reserved);
+		reserved = 0;
+	}
+	
+	private void closeSpill(){
+		if(spillFile != null) spillFile.close();
+		spillFile = null;
+	}
+	
+	private ColumnVector getOrCreateVector(int index){
+		while(columns.size() <= index) columns.add(null);
+		ColumnVector vector = columns.get(index);
+		if(vector == null){
+			vector = new ColumnVector();
+			columns.set(index, vector);
+		}
+		return vector;
+	}
+	
+	/**
+	 * Returns the vector holding the values for the column with the provided index (see {@link Column#getIndex()})
+	 * @param index
+	 * @return the vector or null if no values have been added for the column
+	 */
+	public ColumnVector getVector(int index){
+		if(index >= columns.size()) return null;
+		return columns.get(index);
+	}
+	
+	/**
+	 * @return the vectors of this resultset, indexed by column index (entries may be null)
+	 */
+	public List<ColumnVector> getVectors(){
+		return columns;
+	}
+	
+	/**
+	 * Returns the value of a column within a row
+	 * @param rowNr
+	 * @param index the column index (see {@link Column#getIndex()})
+	 * @return
+	 */
+	public Object getValue(int rowNr, int index){
+		ColumnVector vector = getVector(index);
+		return vector == null ? null : vector.get(rowNr);
+	}
+	
+	/**
+	 * Replaces the rows of this resultset with the rows of the provided page and positions the cursor
+	 * before its first row. The rows held before are released.
+	 * @param page
+	 */
+	protected void setPage(ESResultSet page){
+		this.breaker = page.breaker;
+		take(page);
+		this.offset = page.offset;
+		this.total = page.total;
+		this.cursor = -1;
+	}
+	
+	protected int getCursor(){
+		return cursor;
 	}
 	
 	public int rowCount(){
-		return rows.size();
+		return nrRows;
 	}
 	
-	public List<Object> getRow(int index){
-		return this.rows.get(index);
+	/**
+	 * Sorts the rows by sorting a permutation of the row numbers which is then applied to all columns
+	 * @param order
+	 */
+	public void orderBy(List<OrderBy> order) throws SQLException{
+		orderBy(order, -1);
 	}
 	
-	public void orderBy(List<OrderBy> order){
-		Collections.sort(rows, new ResultRowComparator(order));
+	/**
+	 * Sorts the rows and keeps the first rows only. When a limit is provided the rows to keep are selected
+	 * using a bounded heap instead of sorting all rows. Results which have been spilled to disk are sorted
+	 * using an external merge sort.
+	 * @param order
+	 * @param limit the number of rows to keep or -1 to keep all rows
+	 * @throws SQLException
+	 */
+	public void orderBy(List<OrderBy> order, int limit) throws SQLException{
+		RowSorter sorter = new RowSorter(order);
+		ColumnVector[] keys = sorter.keys(columns);
+		if(limit > -1 && limit < nrRows){
+			int[] rows = sorter.top(keys, nrRows, limit);
+			select(rows, rows.length);
+		}else if(isSpilled()){
+			externalSort(sorter);
+		}else{
+			int[] rows = new int[nrRows];
+			for(int i=0; i<nrRows; i++) rows[i] = i;
+			sorter.sort(keys, rows, nrRows);
+			select(rows, nrRows);
+		}
+	}
+	
+	/**
+	 * Sorts rows which have been spilled to disk. Ranges of rows which are expected to fit the memory 
+	 * budget are sorted and copied into runs which are spilled entirely. The runs are merged into new 
+	 * columns afterwards. This way the rows of spilled columns are only read randomly within a range of 
+	 * rows and sequentially while merging.
+	 * @param sorter
+	 * @throws SQLException
+	 */
+	private void externalSort(RowSorter sorter) throws SQLException{
+		// the size of values is not known once they have been spilled, assume a moderate size per value
+		long rowBytes = 16L * Math.max(1, columns.size());
+		int runRows = (int)Math.max(SPILL_CHECK_ROWS, Math.min(nrRows, spillBudget / rowBytes));
+		List<ESResultSet> runs = new ArrayList<ESResultSet>();
+		ESResultSet merged = emptyCopy();
+		try{
+			ColumnVector[] keys = sorter.keys(columns);
+			int[] rows = new int[Math.min(runRows, nrRows)];
+			for(int start=0; start<nrRows; start+=runRows){
+				int count = Math.min(runRows, nrRows - start);
+				for(int i=0; i<count; i++) rows[i] = start + i;
+				sorter.sort(keys, rows, count);
+				ESResultSet run = emptyCopy();
+				runs.add(run);
+				run.append(columns, rows, 0, count);
+				run.spillFile = run.spill(run.columns, run.spillFile, 0);
+				run.checkMemory();
+			}
+			
+			// merge the runs using a heap holding the runs ordered by their current row
+			ColumnVector[][] runKeys = new ColumnVector[runs.size()][];
+			int[] positions = new int[runs.size()];
+			int[] heap = new int[runs.size()];
+			for(int r=0; r<runs.size(); r++){
+				runKeys[r] = sorter.keys(runs.get(r).columns);
+				heap[r] = r;
+			}
+			for(int i=heap.length/2 - 1; i>=0; i--) siftDown(sorter, runKeys, positions, heap, heap.length, i);
+			int size = heap.length;
+			while(size > 0){
+				int r = heap[0];
+				merged.append(runs.get(r).columns, null, positions[r], 1);
+				if(++positions[r] >= runs.get(r).nrRows){
+					runs.get(r).close();
+					heap[0] = heap[--size];
+				}
+				siftDown(sorter, runKeys, positions, heap, size, 0);
+			}
+		}catch(SQLException e){
+			merged.close();
+			throw e;
+		}finally{
+			for(ESResultSet run : runs) run.close();
+		}
+		take(merged);
+	}
+	
+	/**
+	 * Moves the run at the provided position of the heap down to its place, runs are ordered by their
+	 * current row and, if these are equal, the order of the runs.
+	 */
+	private static void siftDown(RowSorter sorter, ColumnVector[][] keys, int[] positions, int[] heap, int size, int i){
+		int run = heap[i];
+		while(true){
+			int child = 2 * i + 1;
+			if(child >= size) break;
+			if(child + 1 < size && compareRuns(sorter, keys, positions, heap[child + 1], heap[child]) < 0) child++;
+			if(compareRuns(sorter, keys, positions, run, heap[child]) <= 0) break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = run;
+	}
+	
+	private static int compareRuns(RowSorter sorter, ColumnVector[][] keys, int[] positions, int run1, int run2){
+		int res = sorter.compare(keys[run1], positions[run1], keys[run2], positions[run2]);
+		return res != 0 ? res : Integer.compare(run1, run2);
+	}
+	
+	/**
+	 * Replaces all columns with vectors holding the specified rows only
+	 * @param rows
+	 * @param count
+	 * @throws SQLException
+	 */
+	private void select(int[] rows, int count) throws SQLException{
+		rebuild(rows, 0, count);
+	}
+	
+	private void slice(int from, int to) throws SQLException{
+		rebuild(null, from, to - from);
+	}
+	
+	/**
+	 * Replaces all columns with new vectors holding count rows which are either taken from the rows
+	 * provided or, if rows is null, start at row from. New vectors are spilled in case they exceed
+	 * the memory budget and the memory they use is reserved in the breaker while they are built.
+	 * @param rows
+	 * @param from
+	 * @param count
+	 * @throws SQLException
+	 */
+	private void rebuild(int[] rows, int from, int count) throws SQLException{
+		ESResultSet rebuilt = emptyCopy();
+		try{
+			rebuilt.append(columns, rows, from, count);
+		}catch(SQLException e){
+			rebuilt.close();
+			throw e;
+		}
+		take(rebuilt);
+	}
+	
+	/**
+	 * @return a resultset without rows using the same heading, memory budget and breaker as this one
+	 */
+	private ESResultSet emptyCopy(){
+		return new ESResultSet(heading, (int)total, defaultRowLength).setSpill(spillBudget, spillDir).setBreaker(breaker);
+	}
+	
+	/**
+	 * Appends rows of the provided columns to the columns of this resultset. The rows appended are 
+	 * rows[from] to rows[from+count-1] or, if no rows are provided, the rows from until from+count. The
+	 * memory used is checked after each chunk of rows.
+	 * @param source the columns to take the rows from, indexed like the columns of this resultset
+	 * @param rows
+	 * @param from
+	 * @param count
+	 * @throws SQLException
+	 */
+	private void append(List<ColumnVector> source, int[] rows, int from, int count) throws SQLException{
+		for(int start=0; start<count; start+=SPILL_CHECK_ROWS){
+			int n = Math.min(SPILL_CHECK_ROWS, count - start);
+			for(int c=0; c<source.size(); c++){
+				if(source.get(c) != null) getOrCreateVector(c).append(source.get(c), rows, from + start, n);
+			}
+			nrRows += n;
+			// single rows are appended while merging, the memory is checked regularly instead of for each row
+			if(count > 1 || nrRows % SPILL_CHECK_ROWS == 0) checkMemory();
+		}
+	}
+	
+	/**
+	 * Replaces the rows of this resultset by the rows of the provided resultset, which takes over the 
+	 * spill file and reserved memory as well. The rows held before are released.
+	 * @param other
+	 */
+	private void take(ESResultSet other){
+		closeSpill();
+		releaseMemory();
+		this.spillFile = other.spillFile;
+		this.reserved = other.reserved;
+		this.columns = other.columns;
+		this.nrRows = other.nrRows;
+		other.spillFile = null;
+		other.reserved = 0;
 	}
 	
 	public int getNrRows(){
-		return rows.size();
+		return nrRows;
 	}
 	
 	public void setTotal(int total){
@@ -136,8 +526,17 @@ public class ESResultSet implements ResultSet {
 		return this.offset;
 	}
 	
-	public void limit(int limit){
-		if(rows.size() > limit) rows = rows.subList(0, limit);
+	public void limit(int limit) throws SQLException{
+		if(nrRows > limit) slice(0, limit);
+	}
+	
+	/**
+	 * Removes the first rows from this resultset (used to apply an OFFSET)
+	 * @param nrRows
+	 */
+	public void skip(int nrRows) throws SQLException{
+		if(nrRows >= this.nrRows) slice(0, 0);
+		else if(nrRows > 0) slice(nrRows, this.nrRows);
 	}
 	
 	/**
@@ -146,33 +545,57 @@ public class ESResultSet implements ResultSet {
 	 * @throws SQLException
 	 */
 	public void filterHaving(IComparison having) throws SQLException{
-		for(int i=0; i<rows.size(); i++){
-			if(!having.evaluate(rows.get(i))){
-				rows.remove(i);
-				i--;
-			}
+		CompiledComparison compiled = CompiledComparison.compile(having, this);
+		int[] matching = new int[nrRows];
+		int count = 0;
+		for(int i=0; i<nrRows; i++){
+			if(compiled.evaluate(i)) matching[count++] = i;
 		}
-		this.total = rows.size();
+		select(matching, count);
+		this.total = nrRows;
 	}
 	
 	/**
-	 * Executes any computations specified on columns
+	 * Executes any computations specified on columns, except those already calculated by Elasticsearch.
+	 * Calculated values are added to new vectors which are spilled like the others when the budget is exceeded.
+	 * Calculations are compiled into {@link CompiledCalculation}s which calculate values without creating
+	 * any objects.
+	 * @throws SQLException
 	 */
-	public void executeComputations(){
+	public void executeComputations() throws SQLException{
 		boolean calculationFound = false;
 		for(Column column : heading.columns()) 
-			if(column.hasCalculation()){
+			if(column.hasCalculation() && !column.isPushedDown()){
 				calculationFound = true;
 				break;
 		}
 		if(!calculationFound) return;
-		for(int i=0; i<rows.size(); i++){
-			for(Column column : heading.columns()){
-				if(column.hasCalculation()) {
-					Number value = column.getCalculation().evaluate(this, i);
-					rows.get(i).set(column.getIndex(), value);
+		List<Column> calculated = new ArrayList<Column>();
+		for(Column column : heading.columns()){
+			if(column.hasCalculation() && !column.isPushedDown()) {
+				getOrCreateVector(column.getIndex());
+				columns.set(column.getIndex(), new ColumnVector(Math.min(nrRows, 1024)));
+				calculated.add(column);
+			}
+		}
+		ColumnVector[] targets = new ColumnVector[calculated.size()];
+		CompiledCalculation[] compiled = new CompiledCalculation[calculated.size()];
+		for(int c=0; c<calculated.size(); c++){
+			targets[c] = columns.get(calculated.get(c).getIndex());
+			compiled[c] = CompiledCalculation.compile(calculated.get(c).getCalculation(), this);
+		}
+		for(int i=0; i<nrRows; i++){
+			for(int c=0; c<compiled.length; c++){
+				if(compiled[c] == null){
+					// single columns and values keep their type
+					targets[c].set(i, calculated.get(c).getCalculation().evaluate(this, i));
+					continue;
 				}
+				double value = compiled[c].evaluate(i);
+				if(compiled[c].wasNull()) targets[c].set(i, null);
+				else targets[c].setDouble(i, value);
 			}
+			if((i + 1) % SPILL_CHECK_ROWS == 0) checkMemory();
 		}
 	}
 	
@@ -188,7 +611,7 @@ public class ESResultSet implements ResultSet {
 
 	@Override
 	public boolean next() throws SQLException {
-		if(cursor + 1 < rows.size() && offset + cursor + 1 < total){
+		if(cursor + 1 < nrRows && offset + cursor + 1 < total){
 			cursor ++;
 			return true;
 		}
@@ -196,18 +619,33 @@ public class ESResultSet implements ResultSet {
 	}
 
 	@Override
-	public void close() throws SQLException {	}
+	public void close() throws SQLException {
+		closeSpill();
+		releaseMemory();
+	}
 
 	@Override
 	public boolean wasNull() throws SQLException {
-		// TODO Auto-generated method stub
-		return false;
+		return wasNull;
 	}
 
 	private Object getForColumn(int columnIdx) throws SQLException{
-		Integer idx = heading.getIndexForColumn(columnIdx);
-		if(idx >= rows.get(cursor).size()) return null;
-		return rows.get(cursor).get(idx);
+		Object value = getValue(cursor, heading.getIndexForColumn(columnIdx));
+		wasNull = value == null;
+		return value;
+	}
+	
+	/**
+	 * Returns the vector holding the values of the provided JDBC column number or null if the value of the
+	 * current row is NULL
+	 * @param columnIdx
+	 * @return
+	 * @throws SQLException
+	 */
+	private ColumnVector getNumericVector(int columnIdx) throws SQLException{
+		ColumnVector vector = getVector(heading.getIndexForColumn(columnIdx));
+		wasNull = vector == null || vector.isNull(cursor);
+		return wasNull ? null : vector;
 	}
 	
 	@Override
@@ -256,56 +694,56 @@ public class ESResultSet implements ResultSet {
 
 	@Override
 	public short getShort(int columnIndex) throws SQLException {
-		Object value = getForColumn(columnIndex);
-		if(value == null) return 0;
+		ColumnVector vector = getNumericVector(columnIndex);
+		if(vector == null) return 0;
 		try{
-			return ((Number)value).shortValue();
+			return (short)vector.getLong(cursor);
 		}catch(Exception cce){
-			throw new SQLException("Value in column '"+columnIndex+"' is not of type short but is "+value.getClass());
+			throw new SQLException("Value in column '"+columnIndex+"' is not of type short but is "+vector.get(cursor).getClass());
 		}
 	}
 
 	@Override
 	public int getInt(int columnIndex) throws SQLException {
-		Object value = getForColumn(columnIndex);
-		if(value == null) return 0;
+		ColumnVector vector = getNumericVector(columnIndex);
+		if(vector == null) return 0;
 		try{
-			return  ((Number)value).intValue();
+			return (int)vector.getLong(cursor);
 		}catch(Exception cce){
-			throw new SQLException("Value in column '"+columnIndex+"' is not of type int but is "+value.getClass());
+			throw new SQLException("Value in column '"+columnIndex+"' is not of type int but is "+vector.get(cursor).getClass());
 		}
 	}
 
 	@Override
 	public long getLong(int columnIndex) throws SQLException {
-		Object value = getForColumn(columnIndex);
-		if(value == null) return 0;
+		ColumnVector vector = getNumericVector(columnIndex);
+		if(vector == null) return 0;
 		try{
-			return  ((Number)value).longValue();
+			return vector.getLong(cursor);
 		}catch(Exception cce){
-			throw new SQLException("Value in column '"+columnIndex+"' is not of type Long but is "+value.getClass());
+			throw new SQLException("Value in column '"+columnIndex+"' is not of type Long but is "+vector.get(cursor).getClass());
 		}
 	}
 
 	@Override
 	public float getFloat(int columnIndex) throws SQLException {
-		Object value = getForColumn(columnIndex);
-		if(value == null) return 0;
+		ColumnVector vector = getNumericVector(columnIndex);
+		if(vector == null) return 0;
 		try{
-			return  ((Number)value).floatValue();
+			return (float)vector.getDouble(cursor);
 		}catch(Exception cce){
-			throw new SQLException("Value in column '"+columnIndex+"' is not of type Float but is "+value.getClass());
+			throw new SQLException("Value in column '"+columnIndex+"' is not of type Float but is "+vector.get(cursor).getClass());
 		}
 	}
 
 	@Override
 	public double getDouble(int columnIndex) throws SQLException {
-		Object value = getForColumn(columnIndex);
-		if(value == null) return 0;
+		ColumnVector vector = getNumericVector(columnIndex);
+		if(vector == null) return 0;
 		try{
-			return  ((Number)value).doubleValue();
+			return vector.getDouble(cursor);
 		}catch(Exception cce){
-			throw new SQLException("Value in column '"+columnIndex+"' is not of type Double but is "+value.getClass());
+			throw new SQLException("Value in column '"+columnIndex+"' is not of type Double but is "+vector.get(cursor).getClass());
 		}
 	}
 
@@ -490,8 +928,8 @@ public class ESResultSet implements ResultSet {
 				visibleCols.add(col);
 				/*
 				if(col.getSqlType() == Types.OTHER){
-					for(int i=0; i<Math.min(100, rows.size()); i++){
-						Object value = rows.get(i).get(col.getIndex());
+					for(int i=0; i<Math.min(100, nrRows); i++){
+						Object value = getValue(i, col.getIndex());
 						if(value != null){
 							col.setSqlType( Heading.getTypeIdForObject(value) );
 							break;
@@ -566,7 +1004,7 @@ public class ESResultSet implements ResultSet {
 
 	@Override
 	public boolean isFirst() throws SQLException {
-		return cursor == 0 && rows.size() > 0;
+		return cursor == 0 && nrRows > 0;
 	}
 
 	@Override
@@ -592,7 +1030,7 @@ public class ESResultSet implements ResultSet {
 
 	@Override
 	public boolean last() throws SQLException {
-		cursor = rows.size() - 1;
+		cursor = nrRows - 1;
 		return true;
 	}
 
@@ -604,9 +1042,9 @@ public class ESResultSet implements ResultSet {
 	@Override
 	public boolean absolute(int row) throws SQLException {
 		if(row<0){
-			cursor = Math.max(0,rows.size()+row);
+			cursor = Math.max(0,nrRows+row);
 			return true;
-		} else if(row>0 && row <= rows.size()){
+		} else if(row>0 && row <= nrRows){
 			cursor = row-1;
 			return true;
 		}
@@ -616,7 +1054,7 @@ public class ESResultSet implements ResultSet {
 	@Override
 	public boolean relative(int rows) throws SQLException {
 		int newRow = cursor + rows;
-		if(newRow >=0 && newRow < this.rows.size()){
+		if(newRow >=0 && newRow < nrRows){
 			cursor = newRow;
 			return true;
 		}
@@ -1340,43 +1778,6 @@ public class ESResultSet implements ResultSet {
 		return getObject(findColumn(columnLabel), type);
 	}
 
-	/**
-	 * Comparator implementation used to sort Rows in the resultSet based on a {@link OrderBy} List
-	 * @author cversloot
-	 *
-	 */
-	public class ResultRowComparator implements Comparator<List<Object>>{
-
-		public List<OrderBy> order;
-		
-		public ResultRowComparator(List<OrderBy> order) {
-			this.order = order;
-		}
-		
-		@Override
-		public int compare(List<Object> rr1, List<Object> rr2) {
-			int res = 0;
-			for(OrderBy ob : order) try{
-				// order NULL values last
-				Object o1 = rr1.get(ob.getIndex());
-				if(o1 == null ) return ob.func() * 1;
-				Object o2 = rr2.get(ob.getIndex());
-				if(o2 == null )return ob.func() * -1;
-				
-				if(o1 instanceof String){
-					res = ((String)o1).compareTo((String)o2); 
-				}else if(o1 instanceof Number){
-					res = new Double(((Number)o1).doubleValue()).compareTo(new Double(((Number)o2).doubleValue()));
-				}
-				if(res != 0) return ob.func() * res;
-			}catch(Exception e){
-				return 0;
-			}
-			return res;
-		}
-		
-	}
-
 	public ESResultSet setOffset(int offset) {
 		this.offset = offset;
 		return this;
@@ -0,0 +1,129 @@
+package nl.anchormen.sql4es;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+/**
+ * A {@link ResultSet#TYPE_FORWARD_ONLY} ResultSet which reads the results of a scroll page by page. When the
+ * rows of the current page have been read the next page is fetched through the {@link ESQueryState} which
+ * created this ResultSet. Pages are released once they have been read which keeps memory bounded to a
+ * single page regardless of the size of the full result.
+ *
+ * Only moving forward is supported, any attempt to move the cursor backwards or to an absolute
+ * position results in an exception.
+ *
+ * @author cversloot
+ *
+ */
+public class ESStreamingResultSet extends ESResultSet {
+
+	private final ESQueryState state;
+	private long rowsBefore = 0;
+	private boolean exhausted = false;
+	private boolean closed = false;
+
+	public ESStreamingResultSet(ESQueryState state, ESResultSet firstPage) {
+		super(state, firstPage.getOffset(), firstPage.getTotal());
+		this.state = state;
+		setPage(firstPage);
+	}
+
+	@Override
+	public boolean next() throws SQLException {
+		if(closed) throw new SQLException("ResultSet is closed");
+		if(super.next()) return true;
+		while(!exhausted){
+			rowsBefore += getNrRows();
+			ESResultSet page = state.nextPage();
+			if(page == null) {
+				exhausted = true;
+				setPage(new ESResultSet(getHeading(), 0, 1));
+				return false;
+			}
+			setPage(page);
+			if(super.next()) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void close() throws SQLException {
+		if(closed) return;
+		closed = true;
+		exhausted = true;
+		setPage(new ESResultSet(getHeading(), 0, 1));
+	}
+
+	@Override
+	public boolean isClosed() throws SQLException {
+		return closed || super.isClosed();
+	}
+
+	@Override
+	public int getRow() throws SQLException {
+		if(exhausted) return 0;
+		return (int)(rowsBefore + getCursor() + 1);
+	}
+
+	@Override
+	public boolean isBeforeFirst() throws SQLException {
+		return rowsBefore == 0 && getCursor() < 0 && !exhausted;
+	}
+
+	@Override
+	public boolean isAfterLast() throws SQLException {
+		return exhausted && rowsBefore > 0;
+	}
+
+	@Override
+	public boolean isFirst() throws SQLException {
+		return rowsBefore == 0 && getCursor() == 0;
+	}
+
+	@Override
+	public boolean isLast() throws SQLException {
+		throw new SQLFeatureNotSupportedException("isLast is not supported on a TYPE_FORWARD_ONLY ResultSet");
+	}
+
+	@Override
+	public void beforeFirst() throws SQLException {
+		throw new SQLException("Unable to move backwards on a TYPE_FORWARD_ONLY ResultSet");
+	}
+
+	@Override
+	public void afterLast() throws SQLException {
+		throw new SQLException("Unable to move to the end of a TYPE_FORWARD_ONLY ResultSet");
+	}
+
+	@Override
+	public boolean first() throws SQLException {
+		throw new SQLException("Unable to move backwards on a TYPE_FORWARD_ONLY ResultSet");
+	}
+
+	@Override
+	public boolean last() throws SQLException {
+		throw new SQLException("Unable to move to the end of a TYPE_FORWARD_ONLY ResultSet");
+	}
+
+	@Override
+	public boolean absolute(int row) throws SQLException {
+		throw new SQLException("Unable to move to an absolute position on a TYPE_FORWARD_ONLY ResultSet");
+	}
+
+	@Override
+	public boolean relative(int rows) throws SQLException {
+		throw new SQLException("Unable to move to a relative position on a TYPE_FORWARD_ONLY ResultSet");
+	}
+
+	@Override
+	public boolean previous() throws SQLException {
+		throw new SQLException("Unable to move backwards on a TYPE_FORWARD_ONLY ResultSet");
+	}
+
+	@Override
+	public int getType() throws SQLException {
+		return ResultSet.TYPE_FORWARD_ONLY;
+	}
+
+}
@@ -3,9 +3,12 @@ package nl.anchormen.sql4es;
 import java.sql.Array;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
+import java.sql.BatchUpdateException;
 import java.sql.SQLException;
+import java.sql.SQLWarning;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -20,13 +23,8 @@ import org.elasticsearch.action.admin.indices.delete.DeleteIndexResponse;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsRequest;
 import org.elasticsearch.action.admin.indices.mapping.put.PutMappingResponse;
 import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.delete.DeleteRequest;
-import org.elasticsearch.action.delete.DeleteRequestBuilder;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
-import org.elasticsearch.action.update.UpdateRequest;
-import org.elasticsearch.action.update.UpdateRequestBuilder;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.AliasMetaData;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
@@ -53,6 +51,7 @@ import com.facebook.presto.sql.tree.StringLiteral;
 import com.facebook.presto.sql.tree.TableElement;
 import com.facebook.presto.sql.tree.Values;
 
+import nl.anchormen.sql4es.jdbc.ESConnection;
 import nl.anchormen.sql4es.model.BasicQueryState;
 import nl.anchormen.sql4es.model.Column;
 import nl.anchormen.sql4es.model.Heading;
@@ -73,9 +72,11 @@ public class ESUpdateState {
 	private final UpdateParser updateParser = new UpdateParser();
 	private Client client;
 	private Properties props;
-	private List<String> bulkList = new ArrayList<String>();
+	// sql statements and lists with index requests created by prepared statements 
+	private List<Object> bulkList = new ArrayList<Object>();
 	private ESQueryState queryState;
 	private Statement statement;
+	private SQLWarning warnings = null;
 	private Pattern updateRegex = Pattern.compile("UPDATE\\s+(\\w+)\\.?(\\w+)?\\s+SET\\s+(.+)\\s+WHERE\\s+(.+)", Pattern.CASE_INSENSITIVE);
 	
 	public ESUpdateState(Client client, Statement statement) throws SQLException{
@@ -113,45 +114,107 @@ public class ESUpdateState {
 	 * @throws SQLException
 	 */
 	public int execute(String sql, Insert insert, String index) throws SQLException{
+		RequestSink pipeline = createSink();
+		int before = pipeline.getRequestCount();
+		try{
+			this.insert(sql, insert, index, pipeline);
+			return close(pipeline, before);
+		}finally{
+			invalidateResultCache();
+		}
+	}
+	
+	/**
+	 * Creates the index requests for the provided insert statement and adds them to the pipeline
+	 * @param sql
+	 * @param insert
+	 * @param index
+	 * @param pipeline
+	 * @throws SQLException
+	 */
+	private void insert(String sql, Insert insert, String index, RequestSink pipeline) throws SQLException{
 		if(insert.getQuery().getQueryBody() instanceof Values){
 			// parse one or multiple value sets (... VALUES (1,2,'a'), (2,4,'b'), ...)
-			return this.insertFromValues(sql, insert, index, Utils.getIntProp(props, Utils.PROP_FETCH_SIZE, 2500));
+			this.insertFromValues(sql, insert, index, pipeline);
 		}else if(insert.getQuery().getQueryBody() instanceof QuerySpecification){
 			// insert data based on a SELECT statement
-			return this.insertFromSelect(sql, insert, index, Utils.getIntProp(props, Utils.PROP_FETCH_SIZE, 2500));
+			this.insertFromSelect(sql, insert, index, pipeline);
 		}else throw new SQLException("Unknown set of values to insert ("+insert.getQuery().getQueryBody()+")");
-		
 	}
 	
 	/**
-	 * Executes the list with requests as a bulk with maximum number of requests per bulk
+	 * Executes the list with requests using a {@link BulkPipeline} (or adds them to the connection's {@link WriteBuffer})
 	 * @param requests
-	 * @param maxRequestsPerBulk
-	 * @return
+	 * @return the number of requests executed
 	 * @throws SQLException
 	 */
-	private int execute(List<?> requests, int maxRequestsPerBulk) throws SQLException{
-		int result = 0;
-		BulkRequestBuilder bulkReq = client.prepareBulk();
-		for(Object req : requests){
-			if(req instanceof IndexRequest)	bulkReq.add((IndexRequest)req);
-			else if(req instanceof UpdateRequest) bulkReq.add((UpdateRequest)req);
-			else if(req instanceof DeleteRequest) bulkReq.add((DeleteRequest)req);
-			else if(req instanceof IndexRequestBuilder) bulkReq.add((IndexRequestBuilder)req);
-			else if(req instanceof UpdateRequestBuilder) bulkReq.add((UpdateRequestBuilder)req);
-			else if(req instanceof DeleteRequestBuilder) bulkReq.add((DeleteRequestBuilder)req);
-			else throw new SQLException("Type "+req.getClass()+" cannot be added to a bulk request");
-			
-			if(bulkReq.numberOfActions() > maxRequestsPerBulk){
-				result += bulkReq.get().getItems().length;
-				bulkReq = client.prepareBulk();
-			}
+	private int execute(List<?> requests) throws SQLException{
+		RequestSink pipeline = createSink();
+		int before = pipeline.getRequestCount();
+		try{
+			for(Object req : requests) pipeline.add(req);
+			return close(pipeline, before);
+		}finally{
+			invalidateResultCache();
 		}
-		
-		if(bulkReq.numberOfActions() > 0){
-			result += bulkReq.get().getItems().length;
+	}
+	
+	/**
+	 * Returns the {@link WriteBuffer} of the connection if it holds writes until they are committed or a new 
+	 * {@link BulkPipeline} otherwise
+	 * @return
+	 * @throws SQLException
+	 */
+	private RequestSink createSink() throws SQLException{
+		if(statement.getConnection() instanceof ESConnection){
+			WriteBuffer buffer = ((ESConnection)statement.getConnection()).getWriteBuffer();
+			if(buffer != null) return buffer;
 		}
-		return result;
+		return BulkPipeline.create(client, props);
+	}
+	
+	/**
+	 * Completes the writes of a single statement. Waits for the pipeline to complete and adds warnings for 
+	 * the requests which failed. Requests added to a {@link WriteBuffer} are sent when the connection commits.
+	 * @param pipeline
+	 * @param before the number of requests within the sink before the statement added its requests
+	 * @return the number of requests executed successfully (or buffered)
+	 * @throws SQLException
+	 */
+	private int close(RequestSink pipeline, int before) throws SQLException{
+		if(!(pipeline instanceof BulkPipeline)) return pipeline.getRequestCount() - before;
+		BulkPipeline bulk = (BulkPipeline)pipeline;
+		int count = bulk.close();
+		addWarning(bulk.getWarnings());
+		return count;
+	}
+	
+	private void addWarning(SQLWarning warning){
+		if(warning == null) return;
+		if(warnings == null) warnings = warning;
+		else warnings.setNextWarning(warning);
+	}
+	
+	/**
+	 * @return the warnings of the update statements executed since the warnings were cleared
+	 */
+	public SQLWarning getWarnings(){
+		return warnings;
+	}
+	
+	public void clearWarnings(){
+		this.warnings = null;
+	}
+	
+	/**
+	 * Clears the result cache of the connection (if any) since cached results may no longer be valid
+	 * after data or mappings have been changed.
+	 * @throws SQLException
+	 */
+	private void invalidateResultCache() throws SQLException{
+		if(!(statement.getConnection() instanceof ESConnection)) return;
+		ResultCache cache = ((ESConnection)statement.getConnection()).getResultCache();
+		if(cache != null) cache.clear();
 	}
 	
 	
@@ -160,11 +223,11 @@ public class ESUpdateState {
 	 * @param sql
 	 * @param insert
 	 * @param index
-	 * @return
+	 * @param pipeline
 	 * @throws SQLException
 	 */
 	@SuppressWarnings("unchecked")
-	private int insertFromSelect(String sql, Insert insert, String index, int maxRequestsPerBulk) throws SQLException {
+	private void insertFromSelect(String sql, Insert insert, String index, RequestSink pipeline) throws SQLException {
 		queryState.buildRequest(sql, insert.getQuery().getQueryBody(), index);
 		String[] indexAndType = this.getIndexAndType(insert.getTarget().toString(), sql, "into\\s+", "\\s+select", index);
 		index = indexAndType[0];
@@ -176,8 +239,6 @@ public class ESUpdateState {
 
 		// read the resultset (recursively if nested)
 		HashMap<String, Object> fieldValues = new HashMap<String, Object>();
-		List<IndexRequestBuilder> indexReqs = new ArrayList<IndexRequestBuilder>();
-		int indexCount = 0;
 		while(rs != null){
 			while(rs.next()){
 				for(Column col : headingToInsert.columns()){
@@ -194,7 +255,7 @@ public class ESUpdateState {
 						}
 						label = parts[parts.length - 1];
 					}
-					
+				
 					if(value instanceof ResultSet){
 						value = buildSource((ResultSet)value);
 					}else if(value instanceof Array){
@@ -211,29 +272,22 @@ public class ESUpdateState {
 				IndexRequestBuilder indexReq = client.prepareIndex().setIndex(index)
 						.setType(type)
 						.setSource(fieldValues);
-				indexReqs.add(indexReq);
-				if(indexReqs.size() >= maxRequestsPerBulk){
-					indexCount += this.execute(indexReqs, maxRequestsPerBulk);
-					indexReqs.clear();
-				}
+				pipeline.add(indexReq);
 				fieldValues = new HashMap<String, Object>();
 			}
 			rs.close();
 			rs = queryState.moreResutls(false);
 		}
-		if(indexReqs.size() > 0) indexCount += this.execute(indexReqs, maxRequestsPerBulk);
-		return indexCount;
 	}
 	
 	/**
 	 * creates a set of index requests based on a set of explicit VALUES  
 	 * @param insert
 	 * @param index
-	 * @return
+	 * @param pipeline
 	 * @throws SQLException
 	 */
-	@SuppressWarnings("unchecked")
-	private int insertFromValues(String sql, Insert insert, String index, int maxRequestsPerBulk) throws SQLException {
+	private void insertFromValues(String sql, Insert insert, String index, RequestSink pipeline) throws SQLException {
 		Heading heading = new Heading();
 		QueryState state = new BasicQueryState(sql, heading, this.props);
 		List<Object> values = updateParser.parse(insert, state);
@@ -246,51 +300,115 @@ public class ESUpdateState {
 		
 		if(values.size() % heading.getColumnCount() != 0) throw new SQLException("Number of columns does not match number of values for one of the inserts");
 		
-		List<IndexRequestBuilder> indexReqs = new ArrayList<IndexRequestBuilder>();
-		int indexCount = 0;
-		int valueIdx = 0;
-		while(valueIdx < values.size()){
-			HashMap<String, Object> fieldValues = new HashMap<String, Object>();
-			String id = null;
-			for(Column col : heading.columns()){
-				Object value = values.get(valueIdx);
-				valueIdx++;
-				
-				if(col.getColumn().equals("_id")){
-					id = value.toString();
-					continue;
-				}
-				
-				if(col.getColumn().indexOf('.') == -1) {
-					fieldValues.put(col.getColumn(), value);
-					continue;
-				}
-					
-				// create nested object
-				Map<String, Object> map = fieldValues; 
-				String[] objectDef = col.getColumn().split("\\.");
-				for(int k=0; k<objectDef.length; k++){
-					String key = objectDef[k];
-					if(k == objectDef.length-1) map.put(key, value);
-					else{
-						if(!map.containsKey(key)) map.put(key, new HashMap<String, Object>());
-							map = (Map<String, Object>)map.get(key);
-					}
-				}
+		for(int valueIdx = 0; valueIdx < values.size(); valueIdx += heading.getColumnCount()){
+			pipeline.add(buildIndexRequest(index, type, heading, values, valueIdx));
+		}
+	}
+	
+	/**
+	 * Creates the index request for a single document using the values for the columns within the heading 
+	 * starting at the specified offset. Dotted column names are inserted as nested objects.
+	 * @param index
+	 * @param type
+	 * @param heading
+	 * @param values
+	 * @param offset
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private IndexRequestBuilder buildIndexRequest(String index, String type, Heading heading, List<Object> values, int offset){
+		HashMap<String, Object> fieldValues = new HashMap<String, Object>();
+		String id = null;
+		int valueIdx = offset;
+		for(Column col : heading.columns()){
+			Object value = values.get(valueIdx);
+			valueIdx++;
+			
+			if(col.getColumn().equals("_id")){
+				id = value.toString();
+				continue;
 			}
 			
-			// create index request
-			IndexRequestBuilder indexReq = client.prepareIndex().setIndex(index).setType(type);
-			if(id != null) indexReq.setId(id);
-			indexReq.setSource(fieldValues);
-			indexReqs.add(indexReq);
-			if(indexReqs.size() >= maxRequestsPerBulk){
-				indexCount += this.execute(indexReqs, maxRequestsPerBulk);
-				indexReqs.clear();
+			if(col.getColumn().indexOf('.') == -1) {
+				fieldValues.put(col.getColumn(), value);
+				continue;
+			}
+				
+			// create nested object
+			Map<String, Object> map = fieldValues; 
+			String[] objectDef = col.getColumn().split("\\.");
+			for(int k=0; k<objectDef.length; k++){
+				String key = objectDef[k];
+				if(k == objectDef.length-1) map.put(key, value);
+				else{
+					if(!map.containsKey(key)) map.put(key, new HashMap<String, Object>());
+						map = (Map<String, Object>)map.get(key);
+				}
 			}
 		}
-		if(indexReqs.size() > 0)  indexCount += this.execute(indexReqs, maxRequestsPerBulk);
-		return indexCount;
+		
+		// create index request
+		IndexRequestBuilder indexReq = client.prepareIndex().setIndex(index).setType(type);
+		if(id != null) indexReq.setId(id);
+		indexReq.setSource(fieldValues);
+		return indexReq;
+	}
+	
+	/**
+	 * Parses an INSERT INTO ... VALUES statement in which the parameters of a prepared statement have been replaced
+	 * by the provided (string literal) markers. Returns null if the statement is not an insert of values or if
+	 * a parameter is used for something other than a value to insert.
+	 * @param sql
+	 * @param markers the values of the markers used
+	 * @param index
+	 * @return
+	 * @throws SQLException
+	 */
+	public InsertTemplate prepareInsert(String sql, List<String> markers, String index) throws SQLException{
+		com.facebook.presto.sql.tree.Statement st;
+		try{
+			st = new SqlParser().createStatement(sql);
+		}catch(Exception e){
+			return null;
+		}
+		if(!(st instanceof Insert) || !(((Insert)st).getQuery().getQueryBody() instanceof Values)) return null;
+		Insert insert = (Insert)st;
+		Heading heading = new Heading();
+		QueryState state = new BasicQueryState(sql, heading, this.props);
+		List<Object> values = updateParser.parse(insert, state);
+		if(state.hasException()) throw state.getException();
+		if(heading.hasLabel("_index") || heading.hasLabel("_type")) throw new SQLException("Not possible to set _index and _type fields");
+		if(values.size() % heading.getColumnCount() != 0) throw new SQLException("Number of columns does not match number of values for one of the inserts");
+		String[] indexAndType = this.getIndexAndType(insert.getTarget().toString(), sql, "into\\s+", "\\s+values", index);
+		return InsertTemplate.create(indexAndType[0], indexAndType[1], heading, values, markers);
+	}
+	
+	/**
+	 * Creates the index requests for the documents defined by the template and parameters provided
+	 * @param template
+	 * @param params
+	 * @return
+	 * @throws SQLException
+	 */
+	private List<IndexRequest> buildIndexRequests(InsertTemplate template, Object[] params) throws SQLException{
+		List<Object> values = Arrays.asList(template.getValues(params));
+		int columns = template.getHeading().getColumnCount();
+		List<IndexRequest> requests = new ArrayList<IndexRequest>(template.getRowCount());
+		for(int valueIdx = 0; valueIdx < values.size(); valueIdx += columns){
+			requests.add(buildIndexRequest(template.getIndex(), template.getType(), template.getHeading(), values, valueIdx).request());
+		}
+		return requests;
+	}
+	
+	/**
+	 * Inserts the documents defined by the template and parameters provided
+	 * @param template
+	 * @param params
+	 * @return the number of documents inserted
+	 * @throws SQLException
+	 */
+	public int execute(InsertTemplate template, Object[] params) throws SQLException{
+		return this.execute(buildIndexRequests(template, params));
 	}
 		
 
@@ -356,39 +474,140 @@ public class ESUpdateState {
 	}
 	
 	/**
-	 * Executes the {@link BulkRequest} being hold by this state.
-	 * @return an integer indicator for each executed request: Statement.SUCCESS_NO_INFO for success, 
-	 * else Statement.EXECUTE_FAILED)
+	 * Adds the documents defined by the template and parameters provided to the bulk being held by this state.
+	 * The index requests are created directly, without creating and parsing sql.
+	 * @param template
+	 * @param params
+	 * @throws SQLException
 	 */
-	public int[] executeBulk(){
+	public void addToBulk(InsertTemplate template, Object[] params) throws SQLException{
+		this.bulkList.add(buildIndexRequests(template, params));
+	}
+	
+	/**
+	 * Executes the {@link BulkRequest} being hold by this state. Consecutive INSERT and DELETE statements and 
+	 * sets of index requests added by prepared statements are executed together using a single {@link BulkPipeline}. 
+	 * Other statements (CREATE, DROP) are executed on their own after all preceding requests have completed.
+	 * @return an integer indicator for each executed request: the number of documents written by INSERT and
+	 * DELETE statements and requests added by prepared statements, Statement.SUCCESS_NO_INFO for success of
+	 * other sql statements
+	 * @throws BatchUpdateException if any of the requests failed, holding Statement.EXECUTE_FAILED for the
+	 * requests which failed completely or partially
+	 * @throws SQLException if the requests could not be executed at all
+	 */
+	@SuppressWarnings("unchecked")
+	public int[] executeBulk() throws SQLException{
 		int[] result = new int[bulkList.size()];
+		// the first and last (exclusive) position of the requests added to the pipeline by each statement
+		int[] start = new int[bulkList.size()];
+		int[] end = new int[bulkList.size()];
 		SqlParser parser = new SqlParser();
-		for(int i=0; i<bulkList.size(); i++) try{
-			String sql = bulkList.get(i);
-			com.facebook.presto.sql.tree.Statement st = parser.createStatement(sql);
-			if(st instanceof DropTable){
-				this.execute(sql, (DropTable)st);
-			}else if(st instanceof DropView){
-				this.execute(sql, (DropView)st);
-			}else if(st instanceof CreateTable){
-				this.execute(sql, (CreateTable)st, this.statement.getConnection().getSchema());
-			}else if(st instanceof CreateTableAsSelect){
-				this.execute(sql, (CreateTableAsSelect)st, this.statement.getConnection().getSchema());
-			}else if(st instanceof CreateView){
-				this.execute(sql, (CreateView)st, this.statement.getConnection().getSchema());
-			}else if(st instanceof Delete){
-				this.execute(sql, (Delete)st, this.statement.getConnection().getSchema());
-			}else  if(st instanceof Insert){
-				this.execute(sql, (Insert)st, this.statement.getConnection().getSchema());
+		String error = null;
+		RequestSink pipeline = null;
+		int first = 0;
+		for(int i=0; i<=bulkList.size(); i++){
+			Object entry = i < bulkList.size() ? bulkList.get(i) : null;
+			com.facebook.presto.sql.tree.Statement st = null;
+			try{
+				if(entry instanceof String) st = parser.createStatement((String)entry);
+			}catch(Exception e){
+				result[i] = Statement.EXECUTE_FAILED;
+				if(error == null) error = e.getMessage();
+				continue;
+			}
+			
+			if(entry instanceof List || st instanceof Insert || st instanceof Delete){
+				// add requests to the pipeline shared with preceding statements
+				if(pipeline == null){
+					pipeline = createSink();
+					first = i;
+				}
+				start[i] = pipeline.getRequestCount();
+				try{
+					if(entry instanceof List){
+						for(Object req : (List<Object>)entry) pipeline.add(req);
+					}else if(st instanceof Insert){
+						this.insert((String)entry, (Insert)st, this.statement.getConnection().getSchema(), pipeline);
+					}else{
+						this.delete((String)entry, (Delete)st, this.statement.getConnection().getSchema(), pipeline);
+					}
+				}catch(Exception e){
+					result[i] = Statement.EXECUTE_FAILED;
+					if(error == null) error = e.getMessage();
+				}
+				end[i] = pipeline.getRequestCount();
+				continue;
+			}
+			
+			// wait for the requests of preceding statements before executing anything else
+			if(pipeline != null){
+				String bulkError = executeBulk(pipeline, first, i, result, start, end);
+				if(error == null) error = bulkError;
+				pipeline = null;
+			}
+			if(entry == null) break;
+			
+			String sql = (String)entry;
+			try{
+				result[i]= Statement.SUCCESS_NO_INFO;
+				if(st instanceof DropTable){
+					this.execute(sql, (DropTable)st);
+				}else if(st instanceof DropView){
+					this.execute(sql, (DropView)st);
+				}else if(st instanceof CreateTable){
+					this.execute(sql, (CreateTable)st, this.statement.getConnection().getSchema());
+				}else if(st instanceof CreateTableAsSelect){
+					this.execute(sql, (CreateTableAsSelect)st, this.statement.getConnection().getSchema());
+				}else if(st instanceof CreateView){
+					this.execute(sql, (CreateView)st, this.statement.getConnection().getSchema());
+				}
+			}catch (Exception e){
+				result[i] = Statement.EXECUTE_FAILED;
+				if(error == null) error = e.getMessage();
 			}
-			result[i]= Statement.SUCCESS_NO_INFO;
-		}catch (Exception e){
-			result[i] = Statement.EXECUTE_FAILED;
 		}
 		this.clearBulk();
+		if(error != null) throw new BatchUpdateException("Failed to execute batch: "+error, result);
 		return result;
 	}
 	
+	/**
+	 * Waits for the pipeline holding the requests of the statements within the specified range to complete and 
+	 * sets the number of requests executed successfully for each of them. 
+	 * @return the first error encountered or null if all requests succeeded
+	 */
+	private String executeBulk(RequestSink sink, int from, int to, int[] result, int[] start, int[] end){
+		String error = null;
+		try{
+			if(!(sink instanceof BulkPipeline)){
+				// requests are held by the write buffer until the connection commits
+				for(int j=from; j<to; j++){
+					if(result[j] != Statement.EXECUTE_FAILED) result[j] = end[j] - start[j];
+				}
+				return null;
+			}
+			BulkPipeline pipeline = (BulkPipeline)sink;
+			close(pipeline, 0);
+			for(int j=from; j<to; j++){
+				if(result[j] == Statement.EXECUTE_FAILED) continue;
+				result[j] = end[j] - start[j];
+				for(int k=start[j]; k<end[j]; k++){
+					if(pipeline.isFailed(k)) result[j] = Statement.EXECUTE_FAILED;
+				}
+			}
+			if(pipeline.getFailedCount() > 0) error = pipeline.getWarnings().getNextWarning().getMessage();
+		}catch(SQLException e){
+			for(int j=from; j<to; j++) result[j] = Statement.EXECUTE_FAILED;
+			error = e.getMessage();
+		}
+		try{
+			invalidateResultCache();
+		}catch(SQLException e){
+			if(error == null) error = e.getMessage();
+		}
+		return error;
+	}
+	
 	/**
 	 * Clears the {@link BulkRequest} held by this state.
 	 */
@@ -402,9 +621,8 @@ public class ESUpdateState {
 	 * executed in atleast two steps:
 	 * <ol>
 	 * <li>fetch document _id's that match the query</li>
-	 * <li>add deletion of each id to a bulk request</li>
-	 * <li>execute bulk request when it contains fetch.size items (see {@link Utils}) and continue</li>
-	 * <li>execute bulk when all _id's have been added</li>
+	 * <li>add deletion of each id to a {@link BulkPipeline} which sends them in bulk</li>
+	 * <li>wait for all bulks to complete when all _id's have been added</li>
 	 * </ol>
 	 * @param sql
 	 * @param delete
@@ -413,10 +631,25 @@ public class ESUpdateState {
 	 * @throws SQLException
 	 */
 	public int execute(String sql, Delete delete, String index) throws SQLException {
-		return delete(sql, delete, index, Utils.getIntProp(props, Utils.PROP_FETCH_SIZE, 2500));
+		RequestSink pipeline = createSink();
+		int before = pipeline.getRequestCount();
+		try{
+			this.delete(sql, delete, index, pipeline);
+			return close(pipeline, before);
+		}finally{
+			invalidateResultCache();
+		}
 	}
 	
-	private int delete(String sql, Delete delete, String index, int maxRequestsPerBulk) throws SQLException{
+	/**
+	 * Fetches the _id's of the documents to delete and adds a delete request for each of them to the pipeline
+	 * @param sql
+	 * @param delete
+	 * @param index
+	 * @param pipeline
+	 * @throws SQLException
+	 */
+	private void delete(String sql, Delete delete, String index, RequestSink pipeline) throws SQLException{
 		String type = delete.getTable().getName().toString();
 		String select = "SELECT _id FROM "+type;
 		if(delete.getWhere().isPresent()){
@@ -426,21 +659,13 @@ public class ESUpdateState {
 		Query query = (Query)new SqlParser().createStatement(select);
 		this.queryState.buildRequest(select, query.getQueryBody(), index);
 		ResultSet rs = this.queryState.execute();
-		List<DeleteRequestBuilder> requests = new ArrayList<DeleteRequestBuilder>();
-		int deleteCount = 0;
 		while(rs != null){
 			while(rs.next()){
-				requests.add(client.prepareDelete(index, type, rs.getString("_id")));
-				if(requests.size() >= maxRequestsPerBulk){
-					deleteCount = this.execute(requests, maxRequestsPerBulk);
-					requests.clear();
-				}
+				pipeline.add(client.prepareDelete(index, type, rs.getString("_id")));
 			}
 			rs.close();
 			rs = queryState.moreResutls(true);
 		}
-		if(requests.size() > 0) deleteCount = this.execute(requests, maxRequestsPerBulk);
-		return deleteCount;
 	}
 
 	// ------------------------------------[ CREATE TABLE / VIEW ]--------------------------------------
@@ -499,6 +724,7 @@ public class ESUpdateState {
 			if(!response.isAcknowledged()) throw new SQLException("Table creation failed due to unknown reason");
 		}
 		this.statement.getConnection().getTypeMap(); // trigger a reload of the table&column set for the connection
+		invalidateResultCache();
 		return 0; // default SQL result for a statement that does not manipulate any rows
 	}
 	
@@ -575,6 +801,7 @@ public class ESUpdateState {
 		}
 		if(!response.isAcknowledged()) throw new SQLException("Elasticsearch failed to create the specified alias");
 		this.statement.getConnection().getTypeMap(); // trigger a reload of the table&column set for the connection
+		invalidateResultCache();
 		return 0; // the number of altered rows
 	}
 
@@ -592,6 +819,7 @@ public class ESUpdateState {
 		String index = drop.getTableName().toString();
 		index = Heading.findOriginal(sql.trim()+";", index, "table\\s+",";");
 		DeleteIndexResponse response = client.admin().indices().prepareDelete(index).execute().actionGet();
+		invalidateResultCache();
 		if(!response.isAcknowledged()) throw new SQLException("Elasticsearch failed to delete the specified index");
 		return 0;
 	}
@@ -627,6 +855,7 @@ public class ESUpdateState {
 			}
 		}
 		IndicesAliasesResponse response = client.admin().indices().prepareAliases().removeAlias(indices.toArray(new String[indices.size()]), alias).get();
+		invalidateResultCache();
 		if(!response.isAcknowledged()) throw new SQLException("Elasticsearch failed to delete the specified alias");
 		return 0;
 	}
@@ -682,25 +911,21 @@ public class ESUpdateState {
 			ResultSet rs = this.queryState.execute();
 			
 			// execute updates in batch mode based on id's returned
-			int maxRequestsPerBulk = Utils.getIntProp(props, Utils.PROP_FETCH_SIZE, 2500);
-			List<UpdateRequestBuilder> indexReqs = new ArrayList<UpdateRequestBuilder>();
-			int updateCount = 0;
-			while(rs != null){
-				while(rs.next()){
-					String id = rs.getString(1);
-					indexReqs.add(
-						client.prepareUpdate(index, type, id).setDoc(fieldValues)
-					);
-					if(indexReqs.size() >= maxRequestsPerBulk){
-						updateCount += this.execute(indexReqs, maxRequestsPerBulk);
-						indexReqs.clear();
+			RequestSink pipeline = createSink();
+			int before = pipeline.getRequestCount();
+			try{
+				while(rs != null){
+					while(rs.next()){
+						String id = rs.getString(1);
+						pipeline.add(client.prepareUpdate(index, type, id).setDoc(fieldValues));
 					}
+					rs.close();
+					rs = queryState.moreResutls(true);
 				}
-				rs.close();
-				rs = queryState.moreResutls(true);
+				return close(pipeline, before);
+			}finally{
+				invalidateResultCache();
 			}
-			if(indexReqs.size() > 0)  updateCount += this.execute(indexReqs, maxRequestsPerBulk);
-			return updateCount;
 		}catch(Exception e){
 			throw new SQLException("Unable to execute UPDATE due to "+e.getMessage(),e);
 		}
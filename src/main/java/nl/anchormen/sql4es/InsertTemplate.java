@@ -0,0 +1,105 @@
+package nl.anchormen.sql4es;
+
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.SQLException;
+import java.util.List;
+
+import nl.anchormen.sql4es.model.Heading;
+
+/**
+ * Parsed form of a parameterized INSERT INTO type (fields) VALUES (...) statement. Holds the target index
+ * and type, the fields to insert and for each value either a constant or the number of the parameter
+ * providing the value. Used by prepared statements to create documents from the parameters set without
+ * parsing any sql.
+ *
+ * @author cversloot
+ *
+ */
+public class InsertTemplate {
+
+	private final String index;
+	private final String type;
+	private final Heading heading;
+	private final Object[] constants;
+	private final int[] params;
+
+	InsertTemplate(String index, String type, Heading heading, Object[] constants, int[] params){
+		this.index = index;
+		this.type = type;
+		this.heading = heading;
+		this.constants = constants;
+		this.params = params;
+	}
+
+	public String getIndex() {
+		return index;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public Heading getHeading() {
+		return heading;
+	}
+
+	/**
+	 * @return the number of documents inserted by a single execution
+	 */
+	public int getRowCount(){
+		return constants.length / heading.getColumnCount();
+	}
+
+	/**
+	 * Returns the values to insert (for all rows) using the provided parameter values
+	 * @param paramValues
+	 * @return
+	 * @throws SQLException
+	 */
+	public Object[] getValues(Object[] paramValues) throws SQLException{
+		Object[] values = new Object[constants.length];
+		for(int i=0; i<values.length; i++){
+			values[i] = params[i] < 0 ? constants[i] : toSourceValue(paramValues[params[i]]);
+		}
+		return values;
+	}
+
+	/**
+	 * Converts parameter values into values which can be put within a document
+	 * @param value
+	 * @return
+	 * @throws SQLException
+	 */
+	private static Object toSourceValue(Object value) throws SQLException{
+		if(value instanceof BigDecimal) return ((BigDecimal)value).doubleValue();
+		if(value instanceof URL) return value.toString();
+		if(value instanceof Array) return ((Array)value).getArray();
+		return value;
+	}
+
+	/**
+	 * Creates the template from the values parsed from the INSERT statement in which parameters have been
+	 * replaced by the provided markers. Returns null if any of the markers is not used as a value.
+	 * @param index
+	 * @param type
+	 * @param heading
+	 * @param values
+	 * @param markers
+	 * @return
+	 */
+	static InsertTemplate create(String index, String type, Heading heading, List<Object> values, List<String> markers){
+		Object[] constants = new Object[values.size()];
+		int[] params = new int[values.size()];
+		int found = 0;
+		for(int i=0; i<values.size(); i++){
+			Object value = values.get(i);
+			params[i] = value instanceof String ? markers.indexOf(value) : -1;
+			if(params[i] < 0) constants[i] = value;
+			else found++;
+		}
+		if(found != markers.size()) return null;
+		return new InsertTemplate(index, type, heading, constants, params);
+	}
+}
@@ -0,0 +1,132 @@
+package nl.anchormen.sql4es;
+
+import java.sql.SQLException;
+
+/**
+ * Keeps track of the (estimated) heap used by results and fails queries which use more than a configured
+ * limit. Breakers form a hierarchy: each connection has a breaker, each statement has a breaker using the
+ * connection breaker as its parent and each query executed by a statement reserves memory in a child of the
+ * statement breaker. Memory reserved in a breaker is reserved in all its parents as well, which means that
+ * the statement limit applies to the results of a single statement and the connection limit to the results
+ * of all statements of the connection together.
+ *
+ * Closing a breaker releases all memory it still holds from its parents, after which reserving and releasing
+ * memory is ignored. This is used to release results of a query which have not been closed explicitly once
+ * the statement executes its next query.
+ *
+ * @author cversloot
+ *
+ */
+public class MemoryBreaker {
+
+	private static final double MB = 1024 * 1024;
+
+	private final String name;
+	private final MemoryBreaker parent;
+	private long limit;
+	private long used = 0;
+	private long peak = 0;
+	private long trips = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param name the name used within errors
+	 * @param limit the maximum number of bytes which can be reserved, 0 for no limit
+	 * @param parent the breaker in which memory must be reserved as well, may be null
+	 */
+	public MemoryBreaker(String name, long limit, MemoryBreaker parent){
+		this.name = name;
+		this.limit = limit;
+		this.parent = parent;
+	}
+
+	/**
+	 * Creates a breaker without a limit of its own which reserves all memory in this breaker
+	 * @return
+	 */
+	public MemoryBreaker child(){
+		return new MemoryBreaker(name, 0, this);
+	}
+
+	/**
+	 * Reserves the provided number of bytes within this breaker and its parents
+	 * @param bytes
+	 * @throws SQLException if this or any of the parent breakers would exceed its limit, in which
+	 * case nothing is reserved
+	 */
+	public synchronized void reserve(long bytes) throws SQLException{
+		if(closed || bytes <= 0) return;
+		if(limit > 0 && used + bytes > limit){
+			trips++;
+			throw new SQLException("Query aborted because its results would use an estimated "+format(used + bytes)+
+					" MB which exceeds the "+name+" memory limit of "+format(limit)+" MB");
+		}
+		if(parent != null) parent.reserve(bytes);
+		used += bytes;
+		peak = Math.max(peak, used);
+	}
+
+	/**
+	 * Releases the provided number of bytes reserved before
+	 * @param bytes
+	 */
+	public synchronized void release(long bytes){
+		if(closed || bytes <= 0) return;
+		bytes = Math.min(bytes, used);
+		used -= bytes;
+		if(parent != null) parent.release(bytes);
+	}
+
+	/**
+	 * Releases all memory held by this breaker from its parents and ignores any reservations made afterwards
+	 */
+	public synchronized void close(){
+		if(closed) return;
+		if(parent != null) parent.release(used);
+		used = 0;
+		closed = true;
+	}
+
+	/**
+	 * Sets the maximum number of bytes which can be reserved, 0 for no limit. Memory reserved already is
+	 * not affected.
+	 * @param limit
+	 */
+	public synchronized void setLimit(long limit){
+		this.limit = limit;
+	}
+
+	public synchronized long getLimit(){
+		return limit;
+	}
+
+	/**
+	 * @return the number of bytes currently reserved
+	 */
+	public synchronized long getUsed(){
+		return used;
+	}
+
+	/**
+	 * @return the largest number of bytes reserved at any point in time
+	 */
+	public synchronized long getPeak(){
+		return peak;
+	}
+
+	/**
+	 * @return the number of times a reservation has been refused by this breaker
+	 */
+	public synchronized long getTrips(){
+		return trips;
+	}
+
+	private static String format(long bytes){
+		return String.format("%.2f", bytes / MB);
+	}
+
+	@Override
+	public synchronized String toString(){
+		return name+" breaker [used="+used+", peak="+peak+", limit="+limit+", trips="+trips+"]";
+	}
+}
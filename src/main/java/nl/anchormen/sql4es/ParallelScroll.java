@@ -0,0 +1,206 @@
+package nl.anchormen.sql4es;
+
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.action.admin.cluster.shards.ClusterSearchShardsGroup;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Scans all documents matching a query using one scroll per shard. Each shard is scrolled by a separate
+ * worker (using preference _shards:N) executed by a thread pool owned by this scan, which holds at most one
+ * thread per shard. Workers put the raw pages fetched in a bounded buffer from which they are parsed by the
+ * consumer. Pages from different shards are interleaved which means that no ordering is guaranteed.
+ *
+ * Workers and the consumer wait for each other at most the scroll timeout. A worker which is unable to hand
+ * off a page within that time fails the scan, just like Elasticsearch expires a scroll which is not read
+ * within its timeout. Workers signal the end of their shard using a counter so that it is delivered even if
+ * the buffer is full.
+ *
+ * Parsing is done within the thread calling {@link #next()} because parsing may alter the {@link ESQueryState}'s
+ * heading which is not thread safe.
+ *
+ * @author cversloot
+ *
+ */
+public class ParallelScroll {
+
+	private final ESQueryState state;
+	private final Client client;
+	private final String[] indices;
+	private final String source;
+	private final TimeValue keepAlive;
+	private final int threads;
+	private final boolean useLateral;
+	private final long maxHits;
+	private final LinkedBlockingQueue<Object> pages;
+	private final AtomicInteger activeShards = new AtomicInteger();
+	private ExecutorService executor = null;
+
+	private volatile boolean closed = false;
+	private volatile SQLException failure = null;
+	private long hitsFetched = 0;
+
+	/**
+	 * @param state the state used to parse the pages fetched
+	 * @param client
+	 * @param indices the indices to scan
+	 * @param source the search request to execute on each shard
+	 * @param keepAlive scroll timeout
+	 * @param threads the maximum number of shards scrolled at the same time
+	 * @param bufferSize the maximum number of pages buffered
+	 * @param useLateral
+	 * @param maxHits the maximum number of hits to fetch or -1 to fetch all
+	 */
+	public ParallelScroll(ESQueryState state, Client client, String[] indices, String source, TimeValue keepAlive,
+			int threads, int bufferSize, boolean useLateral, long maxHits){
+		this.state = state;
+		this.client = client;
+		this.indices = indices;
+		this.source = source;
+		this.keepAlive = keepAlive;
+		this.threads = Math.max(1, threads);
+		this.useLateral = useLateral;
+		this.maxHits = maxHits;
+		this.pages = new LinkedBlockingQueue<Object>(Math.max(1, bufferSize));
+	}
+
+	/**
+	 * Determines the shards to scan and submits a worker for each of them. Returns false without starting
+	 * any workers if the indices consist of a single shard only in which case a regular scroll can be used.
+	 * @return
+	 */
+	public boolean start(){
+		Set<Integer> shards = new TreeSet<Integer>();
+		for(ClusterSearchShardsGroup group : client.admin().cluster().prepareSearchShards(indices).get().getGroups()){
+			shards.add(group.getShardId());
+		}
+		if(shards.size() <= 1) return false;
+		activeShards.set(shards.size());
+		final AtomicInteger count = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(Math.min(threads, shards.size()), new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "sql4es-scroll-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		for(final int shard : shards){
+			executor.execute(new Runnable(){
+				@Override
+				public void run() {
+					scan(shard);
+				}
+			});
+		}
+		executor.shutdown(); // threads stop once all shards have been scanned
+		return true;
+	}
+
+	/**
+	 * Scrolls through all documents on the specified shard (of all indices)
+	 * @param shard
+	 */
+	private void scan(int shard){
+		String scrollId = null;
+		try{
+			if(closed) return;
+			SearchResponse response = client.prepareSearch(indices).setSource(source)
+					.setPreference("_shards:"+shard).setScroll(keepAlive).execute().actionGet();
+			scrollId = response.getScrollId();
+			while(!closed && response.getHits().getHits().length > 0){
+				if(!handOff(response)) return; // closed or failed
+				response = client.prepareSearchScroll(scrollId).setScroll(keepAlive).execute().actionGet();
+				scrollId = response.getScrollId();
+			}
+		}catch(Exception e){
+			if(failure == null) failure = new SQLException("Unable to scan shard "+shard+": "+e.getMessage(), e);
+		}finally{
+			if(scrollId != null) client.prepareClearScroll().addScrollId(scrollId).execute();
+			activeShards.decrementAndGet(); // marks the end of this shard without waiting for the buffer
+		}
+	}
+
+	/**
+	 * Puts the provided page in the buffer, waiting at most the scroll timeout for space to become available.
+	 * If the consumer did not take anything within that time the scan fails because the scroll has expired.
+	 * @param page
+	 * @return true if the page was added to the buffer, false if the scan has been closed or failed
+	 */
+	private boolean handOff(Object page){
+		long deadline = System.currentTimeMillis() + keepAlive.millis();
+		boolean interrupted = false;
+		try{
+			while(!closed && failure == null){
+				try{
+					if(pages.offer(page, 100, TimeUnit.MILLISECONDS)) return true;
+				}catch(InterruptedException ie){
+					interrupted = true;
+				}
+				if(System.currentTimeMillis() >= deadline){
+					failure = new SQLException("Scroll expired because its results have not been read within the scroll timeout of "+keepAlive);
+				}
+			}
+			return false;
+		}finally{
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the next page fetched by any of the workers or null if all shards have been scanned
+	 * or the maximum number of hits has been fetched. Waits at most the scroll timeout for a page.
+	 * @return
+	 * @throws SQLException if any of the shards could not be scanned or no page arrived in time
+	 */
+	public ESResultSet next() throws SQLException{
+		if(closed) return null;
+		long deadline = System.currentTimeMillis() + keepAlive.millis();
+		try{
+			while(true){
+				if(failure != null){
+					close();
+					throw failure;
+				}
+				// shards hand off their pages before they are marked done
+				boolean done = activeShards.get() == 0;
+				Object page = pages.poll(100, TimeUnit.MILLISECONDS);
+				if(page != null){
+					SearchResponse response = (SearchResponse)page;
+					long total = maxHits > 0 ? maxHits : Integer.MAX_VALUE;
+					ESResultSet rs = state.parsePage(response, useLateral, hitsFetched, total);
+					hitsFetched += response.getHits().getHits().length;
+					if(maxHits > 0 && hitsFetched >= maxHits) close();
+					return rs;
+				}
+				if(done && failure == null) return null;
+				if(System.currentTimeMillis() >= deadline){
+					close();
+					throw new SQLException("No results received from any of the shards within the scroll timeout of "+keepAlive);
+				}
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for next page", e);
+		}
+	}
+
+	/**
+	 * Stops all workers, scrolls are cleared by the workers themselves
+	 */
+	public void close(){
+		closed = true;
+		if(executor != null) executor.shutdownNow();
+		pages.clear();
+	}
+}
@@ -0,0 +1,48 @@
+package nl.anchormen.sql4es;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, thread safe cache holding parsed statements and query plans keyed by their SQL text. Parsing
+ * and planning are deterministic for a given SQL text, index and set of mappings which makes it possible
+ * to reuse their results for subsequent executions. Cached objects must not be altered by their users.
+ * The least recently used entry is removed when the maximum number of entries has been reached.
+ *
+ * @author cversloot
+ *
+ */
+public class PlanCache {
+
+	private final LinkedHashMap<String, Object> entries;
+
+	public PlanCache(final int maxEntries){
+		this.entries = new LinkedHashMap<String, Object>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	public synchronized Object get(String key){
+		return entries.get(key);
+	}
+
+	public synchronized void put(String key, Object value){
+		entries.put(key, value);
+	}
+
+	/**
+	 * Removes all entries, must be called when the mappings known by the connection change
+	 */
+	public synchronized void clear(){
+		entries.clear();
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+}
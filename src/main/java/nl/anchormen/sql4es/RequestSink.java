@@ -0,0 +1,26 @@
+package nl.anchormen.sql4es;
+
+import java.sql.SQLException;
+
+/**
+ * Destination of the index, update and delete requests created by write statements. Requests are either
+ * sent to Elasticsearch directly ({@link BulkPipeline}) or held until the connection commits ({@link WriteBuffer}).
+ *
+ * @author cversloot
+ *
+ */
+public interface RequestSink {
+
+	/**
+	 * Adds an index, update or delete request (or builder)
+	 * @param request
+	 * @throws SQLException
+	 */
+	public void add(Object request) throws SQLException;
+
+	/**
+	 * @return the number of requests added to this sink
+	 */
+	public int getRequestCount();
+
+}
@@ -0,0 +1,190 @@
+package nl.anchormen.sql4es;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.anchormen.sql4es.model.Heading;
+
+/**
+ * Caches the columns of fully fetched query results within the driver so that repeated executions of the
+ * same query can be answered without contacting Elasticsearch. Entries are evicted in least recently used
+ * order once the estimated size of all cached columns exceeds the configured number of bytes and expire after
+ * a fixed time to live.
+ *
+ * The cache does not know which documents a result was based on and is cleared entirely when the driver
+ * executes any write (INSERT, UPDATE, DELETE, CREATE, DROP). A generation number is used to prevent results
+ * of queries executed before such a write from being added to the cache afterwards. Writes performed by
+ * other clients are only reflected once entries expire.
+ *
+ * A cache is either owned by a single connection or shared by all connections to the same cluster.
+ *
+ * @author cversloot
+ *
+ */
+public class ResultCache {
+
+	private static final Map<String, ResultCache> shared = new HashMap<String, ResultCache>();
+
+	private final long maxBytes;
+	private final long ttlMs;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long bytes = 0;
+	private long generation = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	public ResultCache(long maxBytes, long ttlMs){
+		this.maxBytes = maxBytes;
+		this.ttlMs = ttlMs;
+	}
+
+	/**
+	 * Returns the cache shared by all connections using the provided cluster identifier. The cache is
+	 * created using the provided size and time to live if it does not exist yet.
+	 * @param cluster
+	 * @param maxBytes
+	 * @param ttlMs
+	 * @return
+	 */
+	public static ResultCache getShared(String cluster, long maxBytes, long ttlMs){
+		synchronized(shared){
+			ResultCache cache = shared.get(cluster);
+			if(cache == null){
+				cache = new ResultCache(maxBytes, ttlMs);
+				shared.put(cluster, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Creates the key used to cache the result of a query. Whitespace outside of quotes is normalized
+	 * but the case of the query is kept as string literals are case sensitive.
+	 * @param index the active index
+	 * @param sql
+	 * @param parts other information influencing the result like offsets and row limits
+	 * @return
+	 */
+	public static String key(String index, String sql, Object... parts){
+		StringBuilder sb = new StringBuilder(index).append('\u0000');
+		char quote = 0;
+		boolean space = false;
+		for(char c : sql.trim().toCharArray()){
+			if(quote == 0 && Character.isWhitespace(c)){
+				space = true;
+				continue;
+			}
+			if(space) sb.append(' ');
+			space = false;
+			if(quote == 0 && (c == '\'' || c == '"')) quote = c;
+			else if(c == quote) quote = 0;
+			sb.append(c);
+		}
+		for(Object part : parts) sb.append('\u0000').append(part);
+		return sb.toString();
+	}
+
+	/**
+	 * @return the current generation which must be provided when a result is added
+	 */
+	public synchronized long getGeneration(){
+		return generation;
+	}
+
+	/**
+	 * Returns a new ResultSet on the cached columns for the provided key or null if the key is not cached or expired
+	 * @param key
+	 * @param state the state the returned ResultSet belongs to
+	 * @return
+	 */
+	public synchronized ESResultSet get(String key, ESQueryState state){
+		Entry entry = entries.get(key);
+		if(entry != null && entry.expires < System.currentTimeMillis()){
+			remove(key);
+			entry = null;
+		}
+		if(entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return new ESResultSet(state, entry.heading, entry.columns, entry.nrRows, entry.total);
+	}
+
+	/**
+	 * Adds the columns of the provided result to the cache unless the cache has been cleared since the provided
+	 * generation, the result holds nested ResultSets, has been spilled to disk or it is larger than the cache itself.
+	 * @param key
+	 * @param rs
+	 * @param generation the generation obtained before the query was executed
+	 * @return true if the result was added
+	 */
+	public boolean put(String key, ESResultSet rs, long generation){
+		if(rs.isSpilled()) return false;
+		List<ColumnVector> columns = new ArrayList<ColumnVector>(rs.getVectors().size());
+		long size = 64;
+		for(ColumnVector vector : rs.getVectors()){
+			if(vector != null && vector.holdsResultSets()) return false;
+			// copy vectors as they may have a much larger capacity than needed
+			ColumnVector copy = vector == null ? null : vector.slice(0, rs.getNrRows());
+			if(copy != null) size += copy.estimateSize();
+			if(size > maxBytes) return false;
+			columns.add(copy);
+		}
+		synchronized(this){
+			if(generation != this.generation) return false;
+			remove(key);
+			entries.put(key, new Entry(rs.getHeading(), columns, rs.getNrRows(), rs.getTotal(), size, System.currentTimeMillis() + ttlMs));
+			bytes += size;
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while(bytes > maxBytes && it.hasNext()){
+				bytes -= it.next().getValue().size;
+				it.remove();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes all entries and increments the generation
+	 */
+	public synchronized void clear(){
+		entries.clear();
+		bytes = 0;
+		generation++;
+	}
+
+	private void remove(String key){
+		Entry entry = entries.remove(key);
+		if(entry != null) bytes -= entry.size;
+	}
+
+	/**
+	 * @return {entries, estimated bytes, hits, misses}
+	 */
+	public synchronized long[] getStats(){
+		return new long[]{entries.size(), bytes, hits, misses};
+	}
+
+	private static class Entry {
+		private final Heading heading;
+		private final List<ColumnVector> columns;
+		private final int nrRows;
+		private final long total;
+		private final long size;
+		private final long expires;
+
+		private Entry(Heading heading, List<ColumnVector> columns, int nrRows, long total, long size, long expires){
+			this.heading = heading;
+			this.columns = columns;
+			this.nrRows = nrRows;
+			this.total = total;
+			this.size = size;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package nl.anchormen.sql4es;
+
+import java.util.List;
+
+import nl.anchormen.sql4es.model.OrderBy;
+
+/**
+ * Sorts rows of an {@link ESResultSet} identified by their row number. The vectors of the columns to order
+ * on are looked up once and provided as keys, values are compared using {@link ColumnVector#compare(int,
+ * ColumnVector, int)} which does not create any objects for numbers and strings held in a dictionary.
+ * NULL values are put after other values when sorting ascending and before them when sorting descending.
+ *
+ * Rows with equal values are kept in their original order, which makes all sorts stable. Besides sorting
+ * all rows a sorter can select the first n rows using a bounded heap, which only requires n rows to be
+ * held and sorted.
+ *
+ * @author cversloot
+ *
+ */
+public class RowSorter {
+
+	private static final int INSERTION_SORT_THRESHOLD = 16;
+
+	private final int[] indexes;
+	private final int[] directions;
+
+	public RowSorter(List<OrderBy> order){
+		this.indexes = new int[order.size()];
+		this.directions = new int[order.size()];
+		for(int i=0; i<order.size(); i++){
+			indexes[i] = order.get(i).getIndex();
+			directions[i] = order.get(i).func();
+		}
+	}
+
+	/**
+	 * Returns the vectors of the columns to order on taken from the provided columns
+	 * @param columns the columns indexed by column index
+	 * @return
+	 */
+	public ColumnVector[] keys(List<ColumnVector> columns){
+		ColumnVector[] keys = new ColumnVector[indexes.length];
+		for(int i=0; i<indexes.length; i++){
+			if(indexes[i] < columns.size()) keys[i] = columns.get(indexes[i]);
+		}
+		return keys;
+	}
+
+	/**
+	 * Compares two rows which may come from different columns. Rows having the same values are
+	 * considered to be equal, values which cannot be compared to each other make rows equal as well.
+	 * @param keys1 the keys holding row1
+	 * @param row1
+	 * @param keys2 the keys holding row2
+	 * @param row2
+	 * @return
+	 */
+	public int compare(ColumnVector[] keys1, int row1, ColumnVector[] keys2, int row2){
+		try{
+			for(int i=0; i<keys1.length; i++){
+				ColumnVector vector1 = keys1[i];
+				ColumnVector vector2 = keys2[i];
+				if(vector1 == null || vector2 == null) continue;
+				boolean null1 = vector1.isNull(row1);
+				boolean null2 = vector2.isNull(row2);
+				if(null1 && null2) continue;
+				if(null1) return directions[i];
+				if(null2) return -directions[i];
+				int res = vector1.compare(row1, vector2, row2);
+				if(res != 0) return directions[i] * res;
+			}
+		}catch(ClassCastException e){
+			// values of different types
+		}
+		return 0;
+	}
+
+	/**
+	 * Compares two rows within the same columns, rows with equal values are ordered by row number
+	 */
+	private int compare(ColumnVector[] keys, int row1, int row2){
+		int res = compare(keys, row1, keys, row2);
+		return res != 0 ? res : Integer.compare(row1, row2);
+	}
+
+	/**
+	 * Sorts the first count row numbers within the provided array using a merge sort
+	 * @param keys
+	 * @param rows
+	 * @param count
+	 */
+	public void sort(ColumnVector[] keys, int[] rows, int count){
+		if(count < 2) return;
+		int[] buffer = new int[count];
+		mergeSort(keys, rows, buffer, 0, count);
+	}
+
+	private void mergeSort(ColumnVector[] keys, int[] rows, int[] buffer, int from, int to){
+		if(to - from <= INSERTION_SORT_THRESHOLD){
+			for(int i=from+1; i<to; i++){
+				int row = rows[i];
+				int j = i - 1;
+				while(j >= from && compare(keys, rows[j], row) > 0){
+					rows[j + 1] = rows[j];
+					j--;
+				}
+				rows[j + 1] = row;
+			}
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		mergeSort(keys, rows, buffer, from, mid);
+		mergeSort(keys, rows, buffer, mid, to);
+		if(compare(keys, rows[mid - 1], rows[mid]) <= 0) return; // already in order
+		System.arraycopy(rows, from, buffer, from, to - from);
+		int left = from;
+		int right = mid;
+		for(int i=from; i<to; i++){
+			if(right >= to || (left < mid && compare(keys, buffer[left], buffer[right]) <= 0)) rows[i] = buffer[left++];
+			else rows[i] = buffer[right++];
+		}
+	}
+
+	/**
+	 * Returns the first n rows in sorted order out of the rows 0 until nrRows. A heap holding the n
+	 * rows found so far is used, with the row which would be last at its root.
+	 * @param keys
+	 * @param nrRows
+	 * @param n
+	 * @return
+	 */
+	public int[] top(ColumnVector[] keys, int nrRows, int n){
+		n = Math.max(0, Math.min(n, nrRows));
+		int[] heap = new int[n];
+		if(n == 0) return heap;
+		for(int row=0; row<nrRows; row++){
+			if(row < n){
+				// sift up
+				int i = row;
+				while(i > 0){
+					int parent = (i - 1) >>> 1;
+					if(compare(keys, heap[parent], row) >= 0) break;
+					heap[i] = heap[parent];
+					i = parent;
+				}
+				heap[i] = row;
+			}else if(compare(keys, row, heap[0]) < 0){
+				siftDown(keys, heap, row, n);
+			}
+		}
+		sort(keys, heap, n);
+		return heap;
+	}
+
+	/**
+	 * Replaces the root of the heap by the provided row and moves it down to its place
+	 */
+	private void siftDown(ColumnVector[] keys, int[] heap, int row, int size){
+		int i = 0;
+		while(true){
+			int child = 2 * i + 1;
+			if(child >= size) break;
+			if(child + 1 < size && compare(keys, heap[child + 1], heap[child]) > 0) child++;
+			if(compare(keys, heap[child], row) <= 0) break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = row;
+	}
+}
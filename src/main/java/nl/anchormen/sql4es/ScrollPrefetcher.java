@@ -0,0 +1,186 @@
+package nl.anchormen.sql4es;
+
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Fetches scroll pages ahead of the consumer using the asynchronous {@link ActionListener} API. While
+ * the consumer reads page N up to 'depth' subsequent pages are requested in the background. Scroll requests
+ * are issued one after the other (each request uses the scroll id returned by the previous one) and pages are
+ * handed out in the order they were fetched.
+ *
+ * Optionally pages are also parsed in the background by a single thread, in order, so that network wait
+ * and parsing both overlap with the work done by the consumer.
+ *
+ * @author cversloot
+ *
+ */
+public class ScrollPrefetcher implements ActionListener<SearchResponse>{
+
+	private final ESQueryState state;
+	private final Client client;
+	private final TimeValue keepAlive;
+	private final boolean useLateral;
+	private final int depth;
+	private final long maxHits;
+	private final LinkedBlockingQueue<RunnableFuture<ESResultSet>> pages = new LinkedBlockingQueue<RunnableFuture<ESResultSet>>();
+	private ExecutorService parser = null;
+
+	private String scrollId;
+	private long hitsFetched;
+	private boolean inFlight = false;
+	private boolean done = false;
+
+	/**
+	 * @param state the state used to parse fetched pages
+	 * @param client
+	 * @param scrollId the scroll id returned by the initial search request
+	 * @param keepAlive
+	 * @param depth the maximum number of pages fetched ahead of the consumer
+	 * @param parseAhead parse pages in the background as well
+	 * @param useLateral
+	 * @param hitsFetched number of hits fetched with the initial request
+	 * @param maxHits maximum number of hits to fetch (either the total or the LIMIT specified)
+	 */
+	public ScrollPrefetcher(ESQueryState state, Client client, String scrollId, TimeValue keepAlive, int depth,
+			boolean parseAhead, boolean useLateral, long hitsFetched, long maxHits){
+		this.state = state;
+		this.client = client;
+		this.scrollId = scrollId;
+		this.keepAlive = keepAlive;
+		this.depth = Math.max(1, depth);
+		this.useLateral = useLateral;
+		this.hitsFetched = hitsFetched;
+		this.maxHits = maxHits;
+		if(parseAhead) parser = Executors.newSingleThreadExecutor(new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "sql4es-prefetch-parser");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		if(hitsFetched >= maxHits) finish();
+		else fetch();
+	}
+
+	/**
+	 * Requests the next page if there is room in the buffer and no request is currently being executed
+	 */
+	private synchronized void fetch(){
+		if(done || inFlight || pages.size() >= depth) return;
+		inFlight = true;
+		client.prepareSearchScroll(scrollId).setScroll(keepAlive).execute(this);
+	}
+
+	@Override
+	public void onResponse(SearchResponse response) {
+		synchronized(this){
+			inFlight = false;
+			if(done) return; // closed in the meantime
+			if(response.getScrollId() != null) scrollId = response.getScrollId();
+			int nrHits = response.getHits().getHits().length;
+			if(nrHits > 0) {
+				final long offset = hitsFetched;
+				hitsFetched += nrHits;
+				enqueue(new Callable<ESResultSet>(){
+					@Override
+					public ESResultSet call() throws Exception {
+						return state.parsePage(response, useLateral, offset);
+					}
+				});
+			}
+			if(nrHits == 0 || hitsFetched >= maxHits) finish();
+		}
+		fetch();
+	}
+
+	@Override
+	public void onFailure(final Throwable e) {
+		synchronized(this){
+			inFlight = false;
+			if(done) return;
+			enqueue(new Callable<ESResultSet>(){
+				@Override
+				public ESResultSet call() throws Exception {
+					throw new SQLException("Unable to fetch next page from scroll: "+e.getMessage(), e);
+				}
+			});
+			finish();
+		}
+	}
+
+	/**
+	 * Adds a page to the buffer, if pages are parsed ahead it is submitted to the parser as well
+	 * @param task
+	 */
+	private void enqueue(Callable<ESResultSet> task){
+		FutureTask<ESResultSet> page = new FutureTask<ESResultSet>(task);
+		if(parser != null) parser.execute(page);
+		pages.add(page);
+	}
+
+	/**
+	 * Marks the end of the scroll by adding an empty page
+	 */
+	private void finish(){
+		done = true;
+		enqueue(new Callable<ESResultSet>(){
+			@Override
+			public ESResultSet call() throws Exception {
+				return null;
+			}
+		});
+		if(parser != null) parser.shutdown();
+	}
+
+	/**
+	 * Returns the next page or null if the scroll has been exhausted. Blocks until the page is available.
+	 * @return
+	 * @throws SQLException
+	 */
+	public ESResultSet next() throws SQLException{
+		try {
+			RunnableFuture<ESResultSet> page = pages.take();
+			fetch();
+			if(parser == null) page.run(); // parse within the calling thread
+			ESResultSet rs = page.get();
+			if(rs == null) pages.add(page); // keep the end marker for subsequent calls
+			return rs;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for next page", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof SQLException) throw (SQLException)e.getCause();
+			throw new SQLException("Unable to parse page: "+e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * @return the most recent scroll id known
+	 */
+	public synchronized String getScrollId(){
+		return scrollId;
+	}
+
+	/**
+	 * Stops prefetching, any buffered pages are released
+	 */
+	public synchronized void close(){
+		done = true;
+		pages.clear();
+		if(parser != null) parser.shutdownNow();
+	}
+}
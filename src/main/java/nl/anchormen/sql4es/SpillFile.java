@@ -0,0 +1,181 @@
+package nl.anchormen.sql4es;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Temporary file holding the values a {@link ColumnVector} moved out of the heap. Data is appended as
+ * regions which are read back through a read only memory mapping of the region, which means that reading
+ * spilled values does not require them to be copied back into the heap. The file is deleted when it is
+ * closed.
+ *
+ * Values stored as objects are encoded using {@link #encode(Object, DataOutputStream)}, only the types
+ * put in results by the driver (strings, numbers, booleans, dates and arrays of these) are supported.
+ *
+ * @author cversloot
+ *
+ */
+public class SpillFile {
+
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte INTEGER = 2;
+	private static final byte LONG = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte FLOAT = 5;
+	private static final byte SHORT = 6;
+	private static final byte BYTE = 7;
+	private static final byte BOOLEAN = 8;
+	private static final byte SQL_DATE = 9;
+	private static final byte TIMESTAMP = 10;
+	private static final byte DATE = 11;
+	private static final byte ARRAY = 12;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private long length = 0;
+
+	/**
+	 * Creates a new temporary file within the provided directory
+	 * @param dir the directory to use or null to use the default temporary directory
+	 * @throws IOException
+	 */
+	public SpillFile(File dir) throws IOException{
+		this.file = File.createTempFile("sql4es-", ".spill", dir);
+		this.raf = new RandomAccessFile(file, "rw");
+		this.channel = raf.getChannel();
+	}
+
+	/**
+	 * Appends the provided data to the file
+	 * @param data
+	 * @return the position at which the data has been written
+	 * @throws IOException
+	 */
+	public synchronized long append(ByteBuffer data) throws IOException{
+		long position = length;
+		while(data.hasRemaining()) length += channel.write(data, length);
+		return position;
+	}
+
+	/**
+	 * Returns a read only mapping of a region written before
+	 * @param position
+	 * @param size
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized ByteBuffer map(long position, int size) throws IOException{
+		return channel.map(MapMode.READ_ONLY, position, size);
+	}
+
+	/**
+	 * @return the number of bytes written to this file
+	 */
+	public synchronized long length(){
+		return length;
+	}
+
+	/**
+	 * Closes and deletes the file. Mappings obtained before remain readable until they are garbage collected.
+	 */
+	public synchronized void close(){
+		try {
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			// nothing to do, the file is deleted anyway
+		}
+		if(!file.delete()) file.deleteOnExit();
+	}
+
+	/**
+	 * Encodes the provided value
+	 * @param value
+	 * @param out
+	 * @throws IOException
+	 * @throws IllegalArgumentException if values of this type cannot be encoded
+	 */
+	public static void encode(Object value, DataOutputStream out) throws IOException{
+		if(value == null) out.writeByte(NULL);
+		else if(value instanceof String){
+			String s = (String)value;
+			out.writeByte(STRING);
+			out.writeInt(s.length());
+			out.writeChars(s);
+		}
+		else if(value instanceof Integer) { out.writeByte(INTEGER); out.writeInt((Integer)value); }
+		else if(value instanceof Long) { out.writeByte(LONG); out.writeLong((Long)value); }
+		else if(value instanceof Double) { out.writeByte(DOUBLE); out.writeDouble((Double)value); }
+		else if(value instanceof Float) { out.writeByte(FLOAT); out.writeFloat((Float)value); }
+		else if(value instanceof Short) { out.writeByte(SHORT); out.writeShort((Short)value); }
+		else if(value instanceof Byte) { out.writeByte(BYTE); out.writeByte((Byte)value); }
+		else if(value instanceof Boolean) { out.writeByte(BOOLEAN); out.writeBoolean((Boolean)value); }
+		else if(value.getClass() == java.sql.Date.class) { out.writeByte(SQL_DATE); out.writeLong(((java.util.Date)value).getTime()); }
+		else if(value.getClass() == java.sql.Timestamp.class) { out.writeByte(TIMESTAMP); out.writeLong(((java.util.Date)value).getTime()); }
+		else if(value.getClass() == java.util.Date.class) { out.writeByte(DATE); out.writeLong(((java.util.Date)value).getTime()); }
+		else if(value instanceof ESArray){
+			Object[] values;
+			try {
+				values = (Object[])((ESArray)value).getArray();
+			} catch (SQLException e) {
+				throw new IllegalArgumentException("Unable to read array", e);
+			}
+			out.writeByte(ARRAY);
+			out.writeInt(values.length);
+			for(Object o : values) encode(o, out);
+		}
+		else throw new IllegalArgumentException("Values of type "+value.getClass().getName()+" cannot be spilled");
+	}
+
+	/**
+	 * Decodes the value at the provided position within the buffer using absolute reads only
+	 * @param buffer
+	 * @param position
+	 * @return
+	 */
+	public static Object decode(ByteBuffer buffer, int position){
+		return decode(buffer, new int[]{position});
+	}
+
+	private static Object decode(ByteBuffer buffer, int[] pos){
+		byte type = buffer.get(pos[0]++);
+		Object value;
+		switch(type){
+			case NULL: return null;
+			case STRING:
+				int length = buffer.getInt(pos[0]);
+				pos[0] += 4;
+				char[] chars = new char[length];
+				for(int i=0; i<length; i++) chars[i] = buffer.getChar(pos[0] + 2 * i);
+				pos[0] += 2 * length;
+				return new String(chars);
+			case INTEGER: value = buffer.getInt(pos[0]); pos[0] += 4; return value;
+			case LONG: value = buffer.getLong(pos[0]); pos[0] += 8; return value;
+			case DOUBLE: value = buffer.getDouble(pos[0]); pos[0] += 8; return value;
+			case FLOAT: value = buffer.getFloat(pos[0]); pos[0] += 4; return value;
+			case SHORT: value = buffer.getShort(pos[0]); pos[0] += 2; return value;
+			case BYTE: return buffer.get(pos[0]++);
+			case BOOLEAN: return buffer.get(pos[0]++) != 0;
+			case SQL_DATE: value = new java.sql.Date(buffer.getLong(pos[0])); pos[0] += 8; return value;
+			case TIMESTAMP: value = new java.sql.Timestamp(buffer.getLong(pos[0])); pos[0] += 8; return value;
+			case DATE: value = new java.util.Date(buffer.getLong(pos[0])); pos[0] += 8; return value;
+			case ARRAY:
+				int size = buffer.getInt(pos[0]);
+				pos[0] += 4;
+				List<Object> values = new ArrayList<Object>(size);
+				for(int i=0; i<size; i++) values.add(decode(buffer, pos));
+				return new ESArray(values);
+			default: throw new IllegalStateException("Unknown type "+type+" found in spill file");
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package nl.anchormen.sql4es;
+
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.client.Client;
+
+/**
+ * Holds the write requests of a connection which does not auto commit. Requests are sent to Elasticsearch
+ * using a {@link BulkPipeline} when the connection commits or when the buffer reaches its maximum size, in 
+ * which case the requests sent can no longer be rolled back. Rolling back discards all requests being held.
+ * This does not provide transactions, documents written become visible to others as soon as they are sent 
+ * (and refreshed).
+ *
+ * @author cversloot
+ *
+ */
+public class WriteBuffer implements RequestSink{
+
+	private final Client client;
+	private final Properties props;
+	private final int maxSize;
+	private List<Object> requests = new ArrayList<Object>();
+	private final Set<String> indices = new HashSet<String>();
+	private int added = 0;
+
+	public WriteBuffer(Client client, Properties props, int maxSize){
+		this.client = client;
+		this.props = props;
+		this.maxSize = Math.max(1, maxSize);
+	}
+
+	@Override
+	public synchronized void add(Object request) throws SQLException{
+		Object req = request instanceof ActionRequestBuilder ? ((ActionRequestBuilder<?,?,?>)request).request() : request;
+		if(req instanceof DocumentRequest) indices.add(((DocumentRequest<?>)req).index());
+		requests.add(request);
+		added++;
+		if(requests.size() >= maxSize) flush();
+	}
+
+	@Override
+	public synchronized int getRequestCount(){
+		return added;
+	}
+
+	/**
+	 * @return the number of requests held by this buffer
+	 */
+	public synchronized int size(){
+		return requests.size();
+	}
+
+	/**
+	 * Sends all requests being held and waits for them to complete
+	 * @return the number of requests executed successfully
+	 * @throws SQLException if the bulk requests failed or any of the requests could not be executed
+	 */
+	public synchronized int flush() throws SQLException{
+		if(requests.isEmpty()) return 0;
+		List<Object> toSend = requests;
+		requests = new ArrayList<Object>();
+		BulkPipeline pipeline = BulkPipeline.create(client, props);
+		for(Object req : toSend) pipeline.add(req);
+		int count = pipeline.close();
+		SQLWarning warning = pipeline.getWarnings();
+		if(warning != null){
+			SQLException sqle = new SQLException("Unable to write buffered requests, "+warning.getMessage());
+			sqle.setNextException(warning);
+			throw sqle;
+		}
+		return count;
+	}
+
+	/**
+	 * Sends all requests being held and optionally refreshes the indices written to
+	 * @param refresh
+	 * @return the number of requests executed successfully
+	 * @throws SQLException
+	 */
+	public synchronized int commit(boolean refresh) throws SQLException{
+		try{
+			int count = flush();
+			if(refresh && !indices.isEmpty()){
+				client.admin().indices().prepareRefresh(indices.toArray(new String[indices.size()])).get();
+			}
+			return count;
+		}catch(SQLException sqle){
+			throw sqle;
+		}catch(Exception e){
+			throw new SQLException("Unable to refresh indices after commit: "+e.getMessage(), e);
+		}finally{
+			indices.clear();
+		}
+	}
+
+	/**
+	 * Discards all requests which have not been sent yet
+	 * @return the number of requests discarded
+	 */
+	public synchronized int rollback(){
+		int discarded = requests.size();
+		requests.clear();
+		return discarded;
+	}
+}
@@ -21,9 +21,11 @@ import java.sql.Statement;
 import java.sql.Struct;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.Executor;
 
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsRequest;
@@ -37,6 +39,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import nl.anchormen.sql4es.ESDatabaseMetaData;
+import nl.anchormen.sql4es.MemoryBreaker;
+import nl.anchormen.sql4es.PlanCache;
+import nl.anchormen.sql4es.ResultCache;
+import nl.anchormen.sql4es.WriteBuffer;
 import nl.anchormen.sql4es.model.Heading;
 import nl.anchormen.sql4es.model.Utils;
 
@@ -61,6 +67,11 @@ public class ESConnection implements Connection{
 	private boolean autoCommit = false;
 	private boolean readOnly = true;
 	private List<ESStatement> statements = new ArrayList<ESStatement>();
+	private ResultCache resultCache = null;
+	private PlanCache planCache = null;
+	private volatile long planVersion = 0;
+	private WriteBuffer writeBuffer = null;
+	private MemoryBreaker memoryBreaker = null;
 
 	/**
 	 * Builds the es {@link Client} using the provided parameters. 
@@ -167,11 +178,10 @@ public class ESConnection implements Connection{
 	
 	@Override
 	public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
-		// TODO use params
 		if(this.client == null){
 			throw new SQLException("Unable to connect on specified schema '"+this.index+"'");
 		}
-		return new ESStatement(this);
+		return new ESStatement(this, resultSetType);
 	}
 
 	@Override
@@ -181,7 +191,8 @@ public class ESConnection implements Connection{
 
 	@Override
 	public void setAutoCommit(boolean autoCommit) throws SQLException {
-		 this.autoCommit  = autoCommit;
+		if(autoCommit && !this.autoCommit) commit(); // writes being held must be committed when changing the mode
+		this.autoCommit  = autoCommit;
 	}
 
 	@Override
@@ -191,12 +202,26 @@ public class ESConnection implements Connection{
 
 	@Override
 	public void commit() throws SQLException {
-		 throw new SQLFeatureNotSupportedException(Utils.getLoggingInfo());
+		WriteBuffer buffer;
+		synchronized(this){
+			buffer = writeBuffer;
+		}
+		if(buffer == null) return;
+		try{
+			buffer.commit(Utils.getBooleanProp(props, Utils.PROP_COMMIT_REFRESH, false));
+		}finally{
+			ResultCache cache = getResultCache();
+			if(cache != null) cache.clear();
+		}
 	}
 
 	@Override
 	public void rollback() throws SQLException {
-		 throw new SQLFeatureNotSupportedException(Utils.getLoggingInfo());
+		WriteBuffer buffer;
+		synchronized(this){
+			buffer = writeBuffer;
+		}
+		if(buffer != null) buffer.rollback();
 	}
 
 	@Override
@@ -204,6 +229,7 @@ public class ESConnection implements Connection{
 		if(isClosed()) return;
 		for(ESStatement st : this.statements) st.close();
 		statements.clear();
+		rollback(); // writes which have not been committed are discarded
 		client.close();
 		this.active = false;
 	}
@@ -212,6 +238,81 @@ public class ESConnection implements Connection{
 	public boolean isClosed() throws SQLException {
 		return !active;
 	}
+	
+	/**
+	 * Returns the cache holding results of queries executed on this connection or null if result caching has
+	 * not been enabled. Depending on the result.cache.shared property the cache is shared with all other 
+	 * connections to the same cluster (and user).
+	 * @return
+	 */
+	public synchronized ResultCache getResultCache(){
+		if(resultCache == null){
+			long maxBytes = Utils.getIntProp(props, Utils.PROP_RESULT_CACHE_SIZE_MB, 0) * 1024L * 1024L;
+			if(maxBytes <= 0) return null;
+			long ttlMs = Utils.getIntProp(props, Utils.PROP_RESULT_CACHE_TTL_SEC, 60) * 1000L;
+			if(Utils.getBooleanProp(props, Utils.PROP_RESULT_CACHE_SHARED, false)){
+				resultCache = ResultCache.getShared(host+":"+port+"/"+props.getProperty("shield.user", ""), maxBytes, ttlMs);
+			}else resultCache = new ResultCache(maxBytes, ttlMs);
+		}
+		return resultCache;
+	}
+
+	/**
+	 * Returns the buffer holding the writes executed through this connection until they are committed. Writes are
+	 * only buffered when auto commit is disabled and write.buffer.size is larger than 0, null is returned otherwise.
+	 * @return
+	 */
+	public synchronized WriteBuffer getWriteBuffer(){
+		if(autoCommit) return null;
+		if(writeBuffer == null){
+			int size = Utils.getIntProp(props, Utils.PROP_WRITE_BUFFER_SIZE, 0);
+			if(size <= 0) return null;
+			writeBuffer = new WriteBuffer(client, props, size);
+		}
+		return writeBuffer;
+	}
+
+	/**
+	 * Returns the breaker in which the memory used by the results of all statements of this connection is 
+	 * reserved. Its limit is taken from the breaker.connection.mb property, its statistics show the memory 
+	 * currently used by results and the number of queries refused because of the limit.
+	 * @return
+	 */
+	public synchronized MemoryBreaker getMemoryBreaker(){
+		if(memoryBreaker == null){
+			long limit = Utils.getIntProp(props, Utils.PROP_BREAKER_CONNECTION_MB, 0) * 1024L * 1024L;
+			memoryBreaker = new MemoryBreaker("connection", limit, null);
+		}
+		return memoryBreaker;
+	}
+
+	/**
+	 * Returns the cache holding parsed statements and query plans for this connection or null if plan caching
+	 * has not been enabled.
+	 * @return
+	 */
+	public synchronized PlanCache getPlanCache(){
+		if(planCache == null){
+			int size = Utils.getIntProp(props, Utils.PROP_PLAN_CACHE_SIZE, 0);
+			if(size <= 0) return null;
+			planCache = new PlanCache(size);
+		}
+		return planCache;
+	}
+
+	/**
+	 * Returns the version of the mappings and properties plans are based on. The version changes each time
+	 * the mappings are reloaded or properties are set, after which plans built before must not be used.
+	 * @return
+	 */
+	public long getPlanVersion(){
+		return planVersion;
+	}
+
+	private synchronized void invalidatePlans(){
+		planVersion++;
+		if(planCache != null) planCache.clear();
+	}
 
 	@Override
 	public DatabaseMetaData getMetaData() throws SQLException {
@@ -261,11 +362,10 @@ public class ESConnection implements Connection{
 	@Override
 	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
 			throws SQLException {
-		// TODO use params?
 		if(this.client == null){
 			throw new SQLException("Unable to connect on specified schema '"+this.index+"'");
 		}
-		return new ESPreparedStatement(this, sql);
+		return new ESPreparedStatement(this, sql, resultSetType);
 	}
 
 	@Override
@@ -276,15 +376,21 @@ public class ESConnection implements Connection{
 	@Override
 	public Map<String, Class<?>> getTypeMap() throws SQLException {
 		ResultSet rs = getMetaData().getColumns(null, null, null, null);
-		Map<String, Map<String, Integer>> tableColumnInfo = new HashMap<String, Map<String, Integer>>();;
+		Map<String, Map<String, Integer>> tableColumnInfo = new HashMap<String, Map<String, Integer>>();
+		Map<String, Set<String>> docValueInfo = new HashMap<String, Set<String>>();
 		while(rs.next()){
 			String table = rs.getString(3);
 			String col = rs.getString(4);
 			int type = rs.getInt(5);
 			if(!tableColumnInfo.containsKey(table)) tableColumnInfo.put(table, new HashMap<String, Integer>());
 			tableColumnInfo.get(table).put(col, type);
+			if(!docValueInfo.containsKey(table)) docValueInfo.put(table, new HashSet<String>());
+			if("YES".equals(rs.getString(ESDatabaseMetaData.DOC_VALUES_COLUMN))) docValueInfo.get(table).add(col);
 		}
 		this.props.put(Utils.PROP_TABLE_COLUMN_MAP, tableColumnInfo);
+		this.props.put(Utils.PROP_TABLE_DOCVALUES_MAP, docValueInfo);
+		// plans are based on the mappings which may have changed
+		invalidatePlans();
 		
 		Map<String, Class<?>> result = new HashMap<String, Class<?>>();
 		for(String type : tableColumnInfo.keySet()){
@@ -337,7 +443,7 @@ public class ESConnection implements Connection{
 			throw new SQLException("Unable to connect on specified schema '"+this.index+"'");
 		}
 		if(isClosed()) throw new SQLException("Connection closed");
-		ESStatement st = new ESStatement(this);
+		ESStatement st = new ESStatement(this, resultSetType);
 		statements.add(st);
 		return st;
 	}
@@ -345,13 +451,12 @@ public class ESConnection implements Connection{
 	@Override
 	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
 			int resultSetHoldability) throws SQLException {
-		// TODO use params
 		if(this.client == null){
 			throw new SQLException("Unable to connect on specified schema '"+this.index+"'");
 		}
 		if(isClosed()) throw new SQLException("Connection closed");
 		
-		ESPreparedStatement st = new ESPreparedStatement(this, sql);
+		ESPreparedStatement st = new ESPreparedStatement(this, sql, resultSetType);
 		statements.add(st);
 		return st;
 	}
@@ -429,11 +534,13 @@ public class ESConnection implements Connection{
 	@Override
 	public void setClientInfo(String name, String value) throws SQLClientInfoException {
 		props.setProperty(name, value);
+		invalidatePlans();
 	}
 
 	@Override
 	public void setClientInfo(Properties properties) throws SQLClientInfoException {
 		this.props = properties;
+		invalidatePlans();
 	}
 
 	@Override
@@ -21,27 +21,69 @@ import java.sql.SQLXML;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
 
+import com.facebook.presto.sql.tree.Query;
+
+import nl.anchormen.sql4es.BoundQuery;
 import nl.anchormen.sql4es.ESParameterMetaData;
+import nl.anchormen.sql4es.ESQueryState;
+import nl.anchormen.sql4es.ESResultSet;
+import nl.anchormen.sql4es.InsertTemplate;
+import nl.anchormen.sql4es.ResultCache;
 import nl.anchormen.sql4es.model.Utils;
+import nl.anchormen.sql4es.parse.sql.ParseResult;
 
 public class ESPreparedStatement extends ESStatement implements PreparedStatement{
 
+	// maximum number of bound queries kept for a single statement
+	private static final int MAX_BOUND_QUERIES = 64;
+	
 	private Object[] sqlAndParams;
 	private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+	private boolean isQuery;
+	private boolean isInsert;
+	private Map<String, BoundQuery> boundQueries = new HashMap<String, BoundQuery>();
+	private InsertTemplate insertTemplate = null;
+	private String insertTemplateIndex = null;
 	
 	public ESPreparedStatement(ESConnection connection, String sql) throws SQLException{
 		super(connection);
 		sql = sql.trim();
-
-		String[] parts = (sql+";").split("\\?");
-		this.sqlAndParams = new Object[parts.length*2-1];
-		for(int i=0; i<parts.length; i++){
-			this.sqlAndParams[i*2] = parts[i];
+		this.isQuery = sql.toLowerCase().startsWith("select");
+		this.isInsert = sql.toLowerCase().startsWith("insert");
+
+		// split on parameters, ignoring question marks within quotes
+		List<String> parts = new ArrayList<String>();
+		StringBuilder part = new StringBuilder();
+		char quote = 0;
+		for(char c : sql.toCharArray()){
+			if(quote == 0 && c == '?'){
+				parts.add(part.toString());
+				part = new StringBuilder();
+				continue;
+			}
+			if(quote == 0 && (c == '\'' || c == '"')) quote = c;
+			else if(c == quote) quote = 0;
+			part.append(c);
+		}
+		parts.add(part.toString());
+		this.sqlAndParams = new Object[parts.size()*2-1];
+		for(int i=0; i<parts.size(); i++){
+			this.sqlAndParams[i*2] = parts.get(i);
 		}
 	}
 	
+	public ESPreparedStatement(ESConnection connection, String sql, int resultSetType) throws SQLException{
+		this(connection, sql);
+		this.queryState.setResultSetType(resultSetType);
+	}
+	
 	/**
 	 * Builds the final sql statement
 	 * @return
@@ -50,26 +92,148 @@ public class ESPreparedStatement extends ESStatement implements PreparedStatemen
 	private String buildSql() throws SQLException{
 		StringBuilder sb = new StringBuilder();
 		for(int i=0; i<sqlAndParams.length; i++)try {
-			if(sqlAndParams[i] instanceof Date){
-				sb.append("'"+dateFormat.format((Date)sqlAndParams[i])+"' ");
+			Object value = sqlAndParams[i];
+			if(i % 2 == 0) sb.append(value);
+			else if(value instanceof Date){
+				sb.append("'"+dateFormat.format((Date)value)+"'");
+			}else if(value instanceof String){
+				sb.append("'"+((String)value).replace("'", "''")+"'");
 			}else{
-				sb.append(sqlAndParams[i]+" ");
+				sb.append(value);
 			}
 		}catch(Exception e){
 			throw new SQLException("Unable to create SQL statement, ["+i+"] = "+sqlAndParams[i]+" : "+e.getMessage(), e);
 		}
-		return sb.substring(0, sb.length()-2);
+		return sb.toString();
+	}
+	
+	/**
+	 * @return the values of the parameters currently set with dates formatted as they are within the sql
+	 */
+	private Object[] getParams(){
+		Object[] params = new Object[sqlAndParams.length/2];
+		for(int i=0; i<params.length; i++){
+			Object value = sqlAndParams[i*2+1];
+			if(value instanceof Date) value = dateFormat.format((Date)value);
+			params[i] = value;
+		}
+		return params;
+	}
+	
+	/**
+	 * Executes this query by binding the current parameters into the search request planned for them. The query 
+	 * is planned once for each shape of the parameters (see {@link BoundQuery#getShape(Object[])}). Returns null 
+	 * if the statement is not a query or the parameters cannot be bound in which case the statement must be
+	 * executed using the sql with the parameters filled in.
+	 * @return
+	 * @throws SQLException
+	 */
+	private ResultSet executeBound() throws SQLException{
+		if(!isQuery || connection.getSchema() == null) return null;
+		Object[] params = getParams();
+		String shape = BoundQuery.getShape(params);
+		if(shape == null) return null;
+		// plans depend on the index, max rows, mappings and properties used
+		String key = shape+"\u0000"+connection.getSchema()+"\u0000"+queryState.getMaxRows()+"\u0000"+connection.getPlanVersion();
+		BoundQuery query;
+		if(boundQueries.containsKey(key)){
+			query = boundQueries.get(key);
+		}else{
+			query = prepare(shape);
+			if(boundQueries.size() >= MAX_BOUND_QUERIES) boundQueries.clear();
+			boundQueries.put(key, query);
+		}
+		if(query == null) return null;
+		
+		if(this.result != null) this.result.close();
+		ResultCache cache = connection.getResultCache();
+		String cacheKey = null;
+		long cacheGeneration = 0;
+		if(cache != null){
+			cacheKey = getResultCacheKey(buildSql(), query.getOffset());
+			ESResultSet cached = cache.get(cacheKey, queryState);
+			if(cached != null) return this.result = queryState.setCachedResult(cached);
+			cacheGeneration = cache.getGeneration();
+		}
+		queryState.setOffset(query.getOffset());
+		queryState.buildRequest(query.getPlan(), query.bind(params), connection.getSchema());
+		this.result = queryState.execute();
+		if(cacheKey != null && this.result.getClass() == ESResultSet.class && queryState.isExhausted()){
+			cache.put(cacheKey, (ESResultSet)this.result, cacheGeneration);
+		}
+		return this.result;
+	}
+	
+	/**
+	 * Plans the query using markers for the parameters of the provided shape. Returns null if the query
+	 * cannot be executed as a {@link BoundQuery}.
+	 * @param shape
+	 * @return
+	 */
+	private BoundQuery prepare(String shape){
+		StringBuilder sb = new StringBuilder((String)sqlAndParams[0]);
+		for(int i=0; i<shape.length(); i++){
+			sb.append(BoundQuery.getMarker(i+1, shape.charAt(i))).append(sqlAndParams[i*2+2]);
+		}
+		String sql = sb.toString().replace('\r', ' ').replace('\n', ' ');
+		try{
+			Matcher offsetMatcher = OFFSET_PATTERN.matcher(sql);
+			int offset = 0;
+			if(offsetMatcher.find()){
+				offset = Integer.parseInt(offsetMatcher.group(1));
+				sql = sql.substring(0, offsetMatcher.start());
+			}
+			com.facebook.presto.sql.tree.Statement statement = parseStatement(sql);
+			if(!(statement instanceof Query)) return null;
+			queryState.setOffset(offset);
+			ParseResult parseResult = queryState.buildRequest(sql, ((Query)statement).getQueryBody(), connection.getSchema());
+			ESQueryState.Plan plan = queryState.getPlan(parseResult);
+			if(plan == null) return null;
+			return BoundQuery.create(plan, offset, shape);
+		}catch(Exception e){
+			// unable to plan using markers, the statement is executed with its parameters filled in
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns the template used to create documents for this INSERT statement without building sql or null 
+	 * if this is not an INSERT INTO ... VALUES statement using parameters as values. 
+	 * @return
+	 * @throws SQLException
+	 */
+	private InsertTemplate getInsertTemplate() throws SQLException{
+		if(!isInsert || sqlAndParams.length == 1) return null;
+		String index = connection.getSchema();
+		if(insertTemplateIndex != null && insertTemplateIndex.equals(index)) return insertTemplate;
+		List<String> markers = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder((String)sqlAndParams[0]);
+		for(int i=1; i<sqlAndParams.length; i+=2){
+			String marker = BoundQuery.getMarker(markers.size()+1, 'S');
+			markers.add(marker.substring(1, marker.length()-1));
+			sb.append(marker).append(sqlAndParams[i+1]);
+		}
+		this.insertTemplate = updateState.prepareInsert(sb.toString().replace('\r', ' ').replace('\n', ' '), markers, index);
+		this.insertTemplateIndex = index;
+		return insertTemplate;
 	}
 	
 	@Override
 	public ResultSet executeQuery() throws SQLException {
+		ResultSet rs = executeBound();
+		if(rs != null) return rs;
 		if(super.execute(this.buildSql())) return getResultSet();
 		else return null;
 	}
 
 	@Override
 	public int executeUpdate() throws SQLException {
-		throw new SQLFeatureNotSupportedException(Utils.getLoggingInfo());
+		InsertTemplate template = getInsertTemplate();
+		if(template != null){
+			updateState.clearWarnings();
+			return updateState.execute(template, getParams());
+		}
+		return super.executeUpdate(this.buildSql());
 	}
 
 	@Override
@@ -122,8 +286,7 @@ public class ESPreparedStatement extends ESStatement implements PreparedStatemen
 
 	@Override
 	public void setString(int parameterIndex, String x) throws SQLException {
-		// TODO: escape
-		this.sqlAndParams[(parameterIndex*2) - 1] = "'"+x+"'";
+		this.sqlAndParams[(parameterIndex*2) - 1] = x;
 	}
 
 	@Override
@@ -169,24 +332,29 @@ public class ESPreparedStatement extends ESStatement implements PreparedStatemen
 
 	@Override
 	public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
-		if(x instanceof String) this.sqlAndParams[(parameterIndex*2) - 1] = "'"+x+"'";
-		else this.sqlAndParams[(parameterIndex*2) - 1] = x;
+		this.sqlAndParams[(parameterIndex*2) - 1] = x;
 	}
 
 	@Override
 	public void setObject(int parameterIndex, Object x) throws SQLException {
-		if(x instanceof String ) this.sqlAndParams[(parameterIndex*2) - 1] = "'"+x+"'";
-		else this.sqlAndParams[(parameterIndex*2) - 1] = x;
+		this.sqlAndParams[(parameterIndex*2) - 1] = x;
 	}
 
 	@Override
 	public boolean execute() throws SQLException {
+		if(executeBound() != null) return true;
+		if(isInsert){
+			executeUpdate();
+			return false;
+		}
 		return super.execute(this.buildSql());
 	}
 
 	@Override
 	public void addBatch() throws SQLException {
-		super.addBatch(this.buildSql());
+		InsertTemplate template = getInsertTemplate();
+		if(template != null) updateState.addToBulk(template, getParams());
+		else super.addBatch(this.buildSql());
 	}
 
 	@Override
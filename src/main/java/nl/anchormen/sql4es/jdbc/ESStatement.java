@@ -9,6 +9,9 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.CreateTable;
@@ -27,6 +30,9 @@ import nl.anchormen.sql4es.ESPipelineResultSet;
 import nl.anchormen.sql4es.ESQueryState;
 import nl.anchormen.sql4es.ESResultSet;
 import nl.anchormen.sql4es.ESUpdateState;
+import nl.anchormen.sql4es.MemoryBreaker;
+import nl.anchormen.sql4es.PlanCache;
+import nl.anchormen.sql4es.ResultCache;
 import nl.anchormen.sql4es.model.Column;
 import nl.anchormen.sql4es.model.Heading;
 import nl.anchormen.sql4es.model.Utils;
@@ -35,6 +41,8 @@ import nl.anchormen.sql4es.parse.sql.ParseResult;
 public class ESStatement implements Statement {
 
 	private static final SqlParser parser = new SqlParser();
+	// OFFSET is not supported by the sql parser and is removed from the query before parsing
+	protected static final Pattern OFFSET_PATTERN = Pattern.compile("\\s+offset\\s+(\\d+)\\s*;?\\s*$", Pattern.CASE_INSENSITIVE);
 	protected ESConnection connection;
 	
 	protected int queryTimeoutSec = 10;
@@ -44,12 +52,28 @@ public class ESStatement implements Statement {
 
 	protected ESQueryState queryState;
 	protected ESUpdateState updateState;
+	protected MemoryBreaker memoryBreaker;
 	
 	public ESStatement(ESConnection connection) throws SQLException{
 		this.connection = connection;
+		long limit = Utils.getIntProp(connection.getClientInfo(), Utils.PROP_BREAKER_STATEMENT_MB, 0) * 1024L * 1024L;
+		this.memoryBreaker = new MemoryBreaker("statement", limit, connection.getMemoryBreaker());
 		this.queryState = new ESQueryState(connection.getClient(), this);
 		updateState = new ESUpdateState(connection.getClient(), this);
 	}
+	
+	/**
+	 * Creates a statement returning ResultSets of the specified type. Using {@link ResultSet#TYPE_FORWARD_ONLY}
+	 * results in ResultSets which fetch scroll pages while being read instead of requiring 
+	 * {@link #getMoreResults()} to be called.
+	 * @param connection
+	 * @param resultSetType
+	 * @throws SQLException
+	 */
+	public ESStatement(ESConnection connection, int resultSetType) throws SQLException{
+		this(connection);
+		this.queryState.setResultSetType(resultSetType);
+	}
 
 	@Override
 	public <T> T unwrap(Class<T> iface) throws SQLException {
@@ -65,16 +89,41 @@ public class ESStatement implements Statement {
 	public ResultSet executeQuery(String sql) throws SQLException {
 		//System.out.println("QUERY: ["+sql+"]");
 		if(connection.getSchema() == null) throw new SQLException("No active index set for this driver. Pleas specify an active index or alias by executing 'USE <index/alias>' first");
-		sql = sql.replaceAll("\r", " ").replaceAll("\n", " ");
-		com.facebook.presto.sql.tree.Statement statement = parser.createStatement(sql);
+		sql = sql.replace('\r', ' ').replace('\n', ' ');
+		Matcher offsetMatcher = OFFSET_PATTERN.matcher(sql);
+		int offset = 0;
+		if(offsetMatcher.find()){
+			try{
+				offset = Integer.parseInt(offsetMatcher.group(1));
+			}catch(NumberFormatException e){
+				throw new SQLException("Invalid OFFSET "+offsetMatcher.group(1)+", the maximum offset is "+Integer.MAX_VALUE, e);
+			}
+			sql = sql.substring(0, offsetMatcher.start());
+		}
+		queryState.setOffset(offset);
+		com.facebook.presto.sql.tree.Statement statement = parseStatement(sql);
 		if(statement instanceof Query){
 			if(this.result != null) this.result.close();
+			ResultCache cache = connection.getResultCache();
+			String cacheKey = null;
+			long cacheGeneration = 0;
+			if(cache != null){
+				cacheKey = getResultCacheKey(sql, offset);
+				ESResultSet cached = cache.get(cacheKey, queryState);
+				if(cached != null) return this.result = queryState.setCachedResult(cached);
+				cacheGeneration = cache.getGeneration();
+			}
 			ParseResult parseResult = queryState.buildRequest(sql, ((Query)statement).getQueryBody(), connection.getSchema());
 			this.result = queryState.execute();
+			boolean pipelined = true; // values of the first consuming query may have been calculated by elasticsearch
 			while((parseResult = parseResult.getParent())!=null){
         ESPipelineResultSet resultSet = new ESPipelineResultSet(parseResult.getHeading(),this.result);
 				for(Column column:parseResult.getHeading().columns()) {
 					if(column.getOp()==null) throw new SQLException("Unsupport");
+					if(pipelined && queryState.hasPipelineValue(column)){
+						resultSet.add(queryState.getPipelineValue(column));
+						continue;
+					}
 					switch (column.getOp()){
 						case MAX:
 							Double max = null;
@@ -89,11 +138,20 @@ public class ESStatement implements Statement {
 							Double min = null;
 							while(this.result.next()){
 								double num = this.result.getDouble(column.getColumn());
-								min = min==null?num:Math.max(num,min);
+								min = min==null?num:Math.min(num,min);
 							}
               resultSet.add(min);
 							this.result.beforeFirst();
 							break;
+						case SUM:
+							Double total = null;
+							while(this.result.next()){
+								double num = this.result.getDouble(column.getColumn());
+								total = total==null?num:total+num;
+							}
+              resultSet.add(total);
+							this.result.beforeFirst();
+							break;
 						case AVG:
 							double sum = 0;
 							int count=0;
@@ -139,10 +197,16 @@ public class ESStatement implements Statement {
               double beta = (avgXY - avgX*avgY) / (avgXX - avgX*avgX);
               double alpha = avgY - beta*avgX;
               resultSet.add(Math.exp( alpha + beta * newX));
+              this.result.beforeFirst();
               break;
 					}
 				}
 				this.result = resultSet;
+				pipelined = false;
+			}
+			// only results which have been fetched completely can be cached
+			if(cacheKey != null && this.result.getClass() == ESResultSet.class && queryState.isExhausted()){
+				cache.put(cacheKey, (ESResultSet)this.result, cacheGeneration);
 			}
 			return this.result;
 		}else if(statement instanceof Explain){
@@ -159,16 +223,55 @@ public class ESStatement implements Statement {
 		}else throw new SQLException("Provided query is not a SELECT or EXPLAIN query");
 	}
 
+	/**
+	 * Creates the key used to cache the result of the provided query within the {@link ResultCache}. The key
+	 * includes the connection properties which change the values returned, as the cache may be shared with
+	 * connections using other properties.
+	 * @param sql
+	 * @param offset
+	 * @return
+	 * @throws SQLException
+	 */
+	protected String getResultCacheKey(String sql, int offset) throws SQLException{
+		Properties props = connection.getClientInfo();
+		return ResultCache.key(connection.getSchema(), sql, offset, queryState.getMaxRows(), 
+				Utils.getBooleanProp(props, Utils.PROP_RESULT_NESTED_LATERAL, true),
+				Utils.getBooleanProp(props, Utils.PROP_CALCULATIONS_PUSHDOWN, false),
+				Utils.getBooleanProp(props, Utils.PROP_FETCH_DOCVALUES, false),
+				Utils.getIntProp(props, Utils.PROP_FRAGMENT_SIZE, 100),
+				Utils.getIntProp(props, Utils.PROP_FRAGMENT_NUMBER, 1),
+				props.getProperty(Utils.PROP_QUERY_CACHE_TABLE, "query_cache"));
+	}
+	
+	/**
+	 * Parses the provided sql or gets the parsed statement from the connection's {@link PlanCache} if
+	 * it has been parsed before. Parsed statements are immutable and can be shared.
+	 * @param sql
+	 * @return
+	 */
+	protected com.facebook.presto.sql.tree.Statement parseStatement(String sql){
+		PlanCache cache = connection.getPlanCache();
+		if(cache == null) return parser.createStatement(sql);
+		String key = "statement\u0000"+sql;
+		com.facebook.presto.sql.tree.Statement statement = (com.facebook.presto.sql.tree.Statement)cache.get(key);
+		if(statement == null){
+			statement = parser.createStatement(sql);
+			cache.put(key, statement);
+		}
+		return statement;
+	}
+
 	@Override
 	public int executeUpdate(String sql) throws SQLException {
 		//System.out.println("QUERY: ["+sql+"]");
-		sql = sql.replaceAll("\r", " ").replaceAll("\n", " ").trim();
+		sql = sql.replace('\r', ' ').replace('\n', ' ').trim();
+		updateState.clearWarnings();
 		// custom stuff to support UPDATE statements since Presto does not parse it
 		if(sql.toLowerCase().startsWith("update")){
 			return updateState.execute(sql);
 		}
 		
-		com.facebook.presto.sql.tree.Statement statement = parser.createStatement(sql);
+		com.facebook.presto.sql.tree.Statement statement = parseStatement(sql);
 		if(statement instanceof Query) throw new SQLException("A regular query cannot be executed as an Update");
 		if(statement instanceof Insert){
 			//if(connection.getSchema() == null) throw new SQLException("No active index set for this driver. Pleas specify an active index or alias by executing 'USE <index/alias>' first");
@@ -197,6 +300,30 @@ public class ESStatement implements Statement {
 	public void close() throws SQLException {
 		queryState.close();
 		updateState.close();
+		memoryBreaker.close();
+	}
+	
+	/**
+	 * Returns the breaker in which the results of this statement reserve the memory they use. The limit
+	 * is taken from the breaker.statement.mb property and can be changed using {@link MemoryBreaker#setLimit(long)}.
+	 * @return
+	 */
+	public MemoryBreaker getMemoryBreaker(){
+		return memoryBreaker;
+	}
+
+	/**
+	 * @return true if pages of the current result are fetched in the background (scroll.prefetch.depth)
+	 */
+	public boolean isPrefetching(){
+		return queryState.isPrefetching();
+	}
+
+	/**
+	 * @return true if the current result is fetched using one scroll per shard (scroll.parallel.threads)
+	 */
+	public boolean isScanningInParallel(){
+		return queryState.isScanningInParallel();
 	}
 
 	@Override
@@ -243,12 +370,12 @@ public class ESStatement implements Statement {
 
 	@Override
 	public SQLWarning getWarnings() throws SQLException {
-		return null;
+		return updateState.getWarnings();
 	}
 
 	@Override
 	public void clearWarnings() throws SQLException {
-		// TODO
+		updateState.clearWarnings();
 	}
 
 	@Override
@@ -260,7 +387,7 @@ public class ESStatement implements Statement {
 	@Override
 	public boolean execute(String sql) throws SQLException {
 		//System.out.println("QUERY: ["+sql+"]");
-		sql = sql.replaceAll("\r", " ").replaceAll("\n", " ");
+		sql = sql.replace('\r', ' ').replace('\n', ' ');
 		String sqlNorm = sql.trim().toLowerCase();
 		if(sqlNorm.startsWith("select") || sqlNorm.startsWith("explain")) {
 			this.result = this.executeQuery(sql);
@@ -316,12 +443,12 @@ public class ESStatement implements Statement {
 
 	@Override
 	public int getResultSetType() throws SQLException {
-		throw new SQLFeatureNotSupportedException();
+		return queryState.getResultSetType();
 	}
 
 	@Override
 	public void addBatch(String sql) throws SQLException {
-		sql = sql.trim().replaceAll("\r", " ").replaceAll("\n", " ");
+		sql = sql.trim().replace('\r', ' ').replace('\n', ' ');
 		updateState.addToBulk(sql, this.getConnection().getSchema());
 	}
 
@@ -332,6 +459,7 @@ public class ESStatement implements Statement {
 
 	@Override
 	public int[] executeBatch() throws SQLException {
+		updateState.clearWarnings();
 		return this.updateState.executeBulk();
 	}
 
@@ -25,6 +25,7 @@ public class Column implements Comparable<Column>{
 	private int sqlType = Types.OTHER;
 	private ICalculation calculation = null;
 	private boolean isVisible = true;
+	private boolean pushedDown = false;
 	public Column(String columnName, Operation op) {
 		this(columnName,op,null);
 	}
@@ -230,6 +231,40 @@ public class Column implements Comparable<Column>{
 		return this;
 	}
 
+	/**
+	 * @return true if the calculation of this column is executed by Elasticsearch (script field or bucket_script)
+	 * in which case it must not be evaluated by the driver. For columns without calculation this indicates the
+	 * value is read from doc values (fielddata_fields) instead of the _source
+	 */
+	public boolean isPushedDown() {
+		return pushedDown;
+	}
+
+	public Column setPushedDown(boolean pushedDown) {
+		this.pushedDown = pushedDown;
+		return this;
+	}
+
+	/**
+	 * Creates a copy of this column which can be altered (type, index, visibility) without affecting this one.
+	 * The calculation, if any, is shared.
+	 * @return
+	 */
+	public Column copy(){
+		Column copy = new Column(columnName);
+		copy.tableName = tableName;
+		copy.tableAlias = tableAlias;
+		copy.op = op;
+		copy.opArgs = opArgs;
+		copy.alias = alias;
+		copy.index = index;
+		copy.sqlType = sqlType;
+		copy.calculation = calculation;
+		copy.isVisible = isVisible;
+		copy.pushedDown = pushedDown;
+		return copy;
+	}
+
 	@Override
 	public int compareTo(Column o) {
 		if(this.isVisible && !o.isVisible) return -1;
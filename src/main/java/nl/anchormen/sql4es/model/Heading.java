@@ -91,6 +91,20 @@ public class Heading {
 		}
 	}
 	
+	/**
+	 * Creates a copy of this heading holding copies of all its columns. Used to obtain a heading which
+	 * can be altered during result parsing from a cached query plan.
+	 * @return
+	 */
+	public Heading copy(){
+		Heading copy = new Heading();
+		for(Column column : columns) copy.columns.add(column.copy());
+		copy.typeIndex = typeIndex;
+		copy.allColumns = allColumns;
+		copy.buildIndex();
+		return copy;
+	}
+	
 	/**
 	 * Returns if any of the columns equals '*' indicating all fields must be
 	 * fetched and provided in the ResultSet
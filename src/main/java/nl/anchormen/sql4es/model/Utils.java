@@ -1,5 +1,6 @@
 package nl.anchormen.sql4es.model;
 
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
@@ -28,6 +29,28 @@ public class Utils {
 	private static final String RESULT_NESTED_LATERAL = "true";
 	private static final int FRAGMENT_SIZE = 100;
 	private static final int FRAGMENT_NUMBER = 1;
+	private static final int SCROLL_PREFETCH_DEPTH = 0; // prefetching is disabled by default
+	private static final String SCROLL_PREFETCH_PARSE = "false";
+	private static final int SCROLL_PARALLEL_THREADS = 0; // parallel scans are disabled by default
+	private static final int AGGREGATION_PARTITION_SIZE = 0; // aggregations are executed in a single request by default
+	private static final String CALCULATIONS_PUSHDOWN = "false";
+	private static final String FETCH_DOCVALUES = "false";
+	private static final int RESULT_CACHE_SIZE_MB = 0; // results are not cached by default
+	private static final int RESULT_CACHE_TTL_SEC = 60;
+	private static final String RESULT_CACHE_SHARED = "false";
+	private static final int PLAN_CACHE_SIZE = 0; // query plans are not cached by default
+	private static final int BULK_ACTIONS = 1000;
+	private static final int BULK_SIZE_MB = 5;
+	private static final int BULK_FLUSH_INTERVAL_MS = 1000;
+	private static final int BULK_CONCURRENT_REQUESTS = 2;
+	private static final int BULK_RETRY_MAX = 5;
+	private static final int BULK_RETRY_BACKOFF_MS = 50;
+	private static final int WRITE_BUFFER_SIZE = 0; // writes are not buffered by default
+	private static final String COMMIT_REFRESH = "false";
+	private static final int RESULT_SPILL_MB = 0; // results are kept in memory by default
+	private static final String RESULT_SPILL_DIR = ""; // the default temporary directory is used
+	private static final int BREAKER_STATEMENT_MB = 0; // memory used by statements is not limited by default
+	private static final int BREAKER_CONNECTION_MB = 0; // memory used by connections is not limited by default
 	
 	// property keys
 	public static final String PROP_FETCH_SIZE = "fetch.size";
@@ -37,8 +60,31 @@ public class Utils {
 	public static final String PROP_QUERY_CACHE_TABLE = "query.cache.table";
 	public static final String PROP_RESULT_NESTED_LATERAL = "result.nested.lateral";
 	public static final String PROP_TABLE_COLUMN_MAP = "table.column.info.map";
+	public static final String PROP_TABLE_DOCVALUES_MAP = "table.docvalues.info.map";
 	public static final String PROP_FRAGMENT_SIZE = "fragment.size";
 	public static final String PROP_FRAGMENT_NUMBER = "fragment.number";
+	public static final String PROP_SCROLL_PREFETCH_DEPTH = "scroll.prefetch.depth";
+	public static final String PROP_SCROLL_PREFETCH_PARSE = "scroll.prefetch.parse";
+	public static final String PROP_SCROLL_PARALLEL_THREADS = "scroll.parallel.threads";
+	public static final String PROP_AGGREGATION_PARTITION_SIZE = "aggregation.partition.size";
+	public static final String PROP_CALCULATIONS_PUSHDOWN = "calculations.pushdown";
+	public static final String PROP_FETCH_DOCVALUES = "fetch.docvalues";
+	public static final String PROP_RESULT_CACHE_SIZE_MB = "result.cache.size.mb";
+	public static final String PROP_RESULT_CACHE_TTL_SEC = "result.cache.ttl.sec";
+	public static final String PROP_RESULT_CACHE_SHARED = "result.cache.shared";
+	public static final String PROP_PLAN_CACHE_SIZE = "plan.cache.size";
+	public static final String PROP_BULK_ACTIONS = "bulk.actions";
+	public static final String PROP_BULK_SIZE_MB = "bulk.size.mb";
+	public static final String PROP_BULK_FLUSH_INTERVAL_MS = "bulk.flush.interval.ms";
+	public static final String PROP_BULK_CONCURRENT_REQUESTS = "bulk.concurrent.requests";
+	public static final String PROP_BULK_RETRY_MAX = "bulk.retry.max";
+	public static final String PROP_BULK_RETRY_BACKOFF_MS = "bulk.retry.backoff.ms";
+	public static final String PROP_WRITE_BUFFER_SIZE = "write.buffer.size";
+	public static final String PROP_COMMIT_REFRESH = "commit.refresh";
+	public static final String PROP_RESULT_SPILL_MB = "result.spill.mb";
+	public static final String PROP_RESULT_SPILL_DIR = "result.spill.dir";
+	public static final String PROP_BREAKER_STATEMENT_MB = "breaker.statement.mb";
+	public static final String PROP_BREAKER_CONNECTION_MB = "breaker.connection.mb";
 	
 	public static String getLoggingInfo(){
 		StackTraceElement element = Thread.currentThread().getStackTrace()[2];
@@ -61,6 +107,28 @@ public class Utils {
 		defaults.put(PROP_RESULT_NESTED_LATERAL, RESULT_NESTED_LATERAL);
 		defaults.put(PROP_FRAGMENT_SIZE, FRAGMENT_SIZE);
 		defaults.put(PROP_FRAGMENT_NUMBER, FRAGMENT_NUMBER);
+		defaults.put(PROP_SCROLL_PREFETCH_DEPTH, SCROLL_PREFETCH_DEPTH);
+		defaults.put(PROP_SCROLL_PREFETCH_PARSE, SCROLL_PREFETCH_PARSE);
+		defaults.put(PROP_SCROLL_PARALLEL_THREADS, SCROLL_PARALLEL_THREADS);
+		defaults.put(PROP_AGGREGATION_PARTITION_SIZE, AGGREGATION_PARTITION_SIZE);
+		defaults.put(PROP_CALCULATIONS_PUSHDOWN, CALCULATIONS_PUSHDOWN);
+		defaults.put(PROP_FETCH_DOCVALUES, FETCH_DOCVALUES);
+		defaults.put(PROP_RESULT_CACHE_SIZE_MB, RESULT_CACHE_SIZE_MB);
+		defaults.put(PROP_RESULT_CACHE_TTL_SEC, RESULT_CACHE_TTL_SEC);
+		defaults.put(PROP_RESULT_CACHE_SHARED, RESULT_CACHE_SHARED);
+		defaults.put(PROP_PLAN_CACHE_SIZE, PLAN_CACHE_SIZE);
+		defaults.put(PROP_BULK_ACTIONS, BULK_ACTIONS);
+		defaults.put(PROP_BULK_SIZE_MB, BULK_SIZE_MB);
+		defaults.put(PROP_BULK_FLUSH_INTERVAL_MS, BULK_FLUSH_INTERVAL_MS);
+		defaults.put(PROP_BULK_CONCURRENT_REQUESTS, BULK_CONCURRENT_REQUESTS);
+		defaults.put(PROP_BULK_RETRY_MAX, BULK_RETRY_MAX);
+		defaults.put(PROP_BULK_RETRY_BACKOFF_MS, BULK_RETRY_BACKOFF_MS);
+		defaults.put(PROP_WRITE_BUFFER_SIZE, WRITE_BUFFER_SIZE);
+		defaults.put(PROP_COMMIT_REFRESH, COMMIT_REFRESH);
+		defaults.put(PROP_RESULT_SPILL_MB, RESULT_SPILL_MB);
+		defaults.put(PROP_RESULT_SPILL_DIR, RESULT_SPILL_DIR);
+		defaults.put(PROP_BREAKER_STATEMENT_MB, BREAKER_STATEMENT_MB);
+		defaults.put(PROP_BREAKER_CONNECTION_MB, BREAKER_CONNECTION_MB);
 		return defaults;
 	}
 	
@@ -102,6 +170,27 @@ public class Utils {
 		return props.get(name);
 	}
 	
+	/**
+	 * @param sqlType a type from {@link Types}
+	 * @return true if the type represents a number
+	 */
+	public static boolean isNumeric(int sqlType){
+		switch(sqlType){
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+			case Types.FLOAT:
+			case Types.REAL:
+			case Types.DOUBLE:
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
 	public static void sleep(int millis) {
 		try{
 			Thread.sleep(millis);
@@ -1,7 +1,8 @@
 package nl.anchormen.sql4es.model.expression;
 
 import java.sql.SQLException;
-import java.util.List;
+
+import nl.anchormen.sql4es.ESResultSet;
 
 public class BooleanComparison implements IComparison{
 	
@@ -15,10 +16,25 @@ public class BooleanComparison implements IComparison{
 		this.must = must;
 	}
 
+	public IComparison getLeft() {
+		return left;
+	}
+
+	public IComparison getRight() {
+		return right;
+	}
+
+	/**
+	 * @return true if both sides must hold (AND), false if either one is sufficient (OR)
+	 */
+	public boolean isMust() {
+		return must;
+	}
+
 	@Override
-	public boolean evaluate(List<Object> row) throws SQLException {
-		if(must) return left.evaluate(row) && right.evaluate(row);
-		else return left.evaluate(row) || right.evaluate(row);
+	public boolean evaluate(ESResultSet rs, int rowNr) throws SQLException {
+		if(must) return left.evaluate(rs, rowNr) && right.evaluate(rs, rowNr);
+		else return left.evaluate(rs, rowNr) || right.evaluate(rs, rowNr);
 	}
 	
 	public String toString(){
@@ -1,7 +1,5 @@
 package nl.anchormen.sql4es.model.expression;
 
-import java.util.List;
-
 import com.facebook.presto.sql.tree.ArithmeticUnaryExpression.Sign;
 
 import nl.anchormen.sql4es.ESResultSet;
@@ -25,8 +23,7 @@ public class ColumnReference implements ICalculation{
 	@Override
 	public Number evaluate(ESResultSet result, int rowNr) {
 		if(rowNr + offset < 0 || rowNr + offset >= result.rowCount() ) return Float.NaN;
-		List<Object> row = result.getRow(rowNr + offset);
-		Object value = row.get(column.getIndex());
+		Object value = result.getValue(rowNr + offset, column.getIndex());
 		if(value instanceof Boolean){
 			if(((Boolean)value).booleanValue()) value = 1;
 			else value = 0;
@@ -39,6 +36,17 @@ public class ColumnReference implements ICalculation{
 		return column;
 	}
 	
+	/**
+	 * @return the position of the row referred to relative to the row being evaluated
+	 */
+	public int getOffset(){
+		return offset;
+	}
+	
+	public Sign getSign(){
+		return sign;
+	}
+	
 	public String toString(){
 		return column.getFullName();
 	}
@@ -0,0 +1,161 @@
+package nl.anchormen.sql4es.model.expression;
+
+import java.sql.SQLException;
+
+import com.facebook.presto.sql.tree.ArithmeticUnaryExpression.Sign;
+
+import nl.anchormen.sql4es.ColumnVector;
+import nl.anchormen.sql4es.ESResultSet;
+
+/**
+ * {@link ICalculation} tree compiled into a tree of evaluators working on primitive doubles. Column
+ * references are bound to the {@link ColumnVector} of the resultset the calculation was compiled for and
+ * read numbers without creating any objects. The type of arithmetic operation and the sign of each node
+ * are resolved during compilation instead of for each row.
+ *
+ * A calculation referring to a NULL value results in NULL, which is signaled by {@link #wasNull()} after
+ * evaluation. A compiled calculation is bound to a single resultset and is not thread safe.
+ *
+ * @author cversloot
+ *
+ */
+public class CompiledCalculation {
+
+	private final ESResultSet result;
+	private final Node root;
+	private boolean wasNull = false;
+
+	private CompiledCalculation(ICalculation calc, ESResultSet result){
+		this.result = result;
+		this.root = compile(calc);
+	}
+
+	/**
+	 * Compiles the provided calculation for the current columns of the resultset. The columns referred to
+	 * must not be replaced while the compiled calculation is being used.
+	 * @param calc
+	 * @param result
+	 * @return the compiled calculation or null if the calculation does not calculate anything (a single
+	 * column or value), in which case the value must be copied using its original type
+	 */
+	public static CompiledCalculation compile(ICalculation calc, ESResultSet result){
+		if(!(calc instanceof SimpleCalculation)) return null;
+		return new CompiledCalculation(calc, result);
+	}
+
+	/**
+	 * Evaluates the calculation for the specified row
+	 * @param rowNr
+	 * @return the result, which must be ignored if {@link #wasNull()} returns true
+	 * @throws SQLException if any of the values referred to is not a number
+	 */
+	public double evaluate(int rowNr) throws SQLException{
+		wasNull = false;
+		return root.evaluate(rowNr);
+	}
+
+	/**
+	 * @return true if the last evaluation referred to a NULL value, meaning that the result is NULL
+	 */
+	public boolean wasNull(){
+		return wasNull;
+	}
+
+	private Node compile(ICalculation calc){
+		if(calc instanceof SingleValue){
+			final double value = ((SingleValue)calc).getValue().doubleValue();
+			return new Node(){
+				public double evaluate(int rowNr){
+					return value;
+				}
+			};
+		}else if(calc instanceof ColumnReference){
+			return compileReference((ColumnReference)calc);
+		}else if(calc instanceof SimpleCalculation){
+			SimpleCalculation sc = (SimpleCalculation)calc;
+			final Node left = compile(sc.left());
+			final Node right = compile(sc.right());
+			Node node;
+			switch(sc.getType()){
+				case ADD: node = new Node(){
+					public double evaluate(int rowNr) throws SQLException{
+						return left.evaluate(rowNr) + right.evaluate(rowNr);
+					}
+				}; break;
+				case DIVIDE: node = new Node(){
+					public double evaluate(int rowNr) throws SQLException{
+						return left.evaluate(rowNr) / right.evaluate(rowNr);
+					}
+				}; break;
+				case MODULUS: node = new Node(){
+					public double evaluate(int rowNr) throws SQLException{
+						return left.evaluate(rowNr) % right.evaluate(rowNr);
+					}
+				}; break;
+				case MULTIPLY: node = new Node(){
+					public double evaluate(int rowNr) throws SQLException{
+						return left.evaluate(rowNr) * right.evaluate(rowNr);
+					}
+				}; break;
+				default: node = new Node(){
+					public double evaluate(int rowNr) throws SQLException{
+						return left.evaluate(rowNr) - right.evaluate(rowNr);
+					}
+				};
+			}
+			return sc.getSign() == Sign.MINUS ? negate(node) : node;
+		}
+		// unknown calculations are evaluated using the objects they return
+		final ICalculation other = calc;
+		return new Node(){
+			public double evaluate(int rowNr){
+				Number value = other.evaluate(result, rowNr);
+				if(value == null){
+					wasNull = true;
+					return Double.NaN;
+				}
+				return value.doubleValue();
+			}
+		};
+	}
+
+	/**
+	 * Binds the reference to the vector of the column referred to. Rows outside of the resultset (due to
+	 * an offset) are evaluated as NaN.
+	 */
+	private Node compileReference(ColumnReference ref){
+		final ColumnVector vector = result.getVector(ref.getColumn().getIndex());
+		final int offset = ref.getOffset();
+		final int nrRows = result.rowCount();
+		Node node = new Node(){
+			public double evaluate(int rowNr) throws SQLException{
+				int row = rowNr + offset;
+				if(row < 0 || row >= nrRows) return Double.NaN;
+				if(vector == null || vector.isNull(row)){
+					wasNull = true;
+					return Double.NaN;
+				}
+				if(vector.isNumber(row)) return vector.getDouble(row);
+				Object value = vector.get(row);
+				if(value instanceof Boolean) return ((Boolean)value).booleanValue() ? 1 : 0;
+				throw new SQLException("Unable to calculate value because '"+value+"' is not a number");
+			}
+		};
+		return ref.getSign() == Sign.MINUS ? negate(node) : node;
+	}
+
+	private static Node negate(final Node node){
+		return new Node(){
+			public double evaluate(int rowNr) throws SQLException{
+				return -node.evaluate(rowNr);
+			}
+		};
+	}
+
+	/**
+	 * Evaluates part of the calculation
+	 */
+	private interface Node {
+		public double evaluate(int rowNr) throws SQLException;
+	}
+}
@@ -0,0 +1,125 @@
+package nl.anchormen.sql4es.model.expression;
+
+import java.sql.SQLException;
+
+import com.facebook.presto.sql.tree.ComparisonExpression.Type;
+
+import nl.anchormen.sql4es.ColumnVector;
+import nl.anchormen.sql4es.ESResultSet;
+
+/**
+ * {@link IComparison} tree compiled into a tree of evaluators bound to the {@link ColumnVector}s of the
+ * resultset it was compiled for. Values are compared as primitive doubles without creating any objects, the
+ * vectors and literals to compare are resolved during compilation instead of for each row.
+ *
+ * @author cversloot
+ *
+ */
+public class CompiledComparison {
+
+	private final ESResultSet result;
+	private final Node root;
+
+	private CompiledComparison(IComparison comparison, ESResultSet result) throws SQLException{
+		this.result = result;
+		this.root = compile(comparison);
+	}
+
+	/**
+	 * Compiles the provided comparison for the current columns of the resultset. The columns referred to
+	 * must not be replaced while the compiled comparison is being used.
+	 * @param comparison
+	 * @param result
+	 * @return
+	 * @throws SQLException if a column referred to does not exist
+	 */
+	public static CompiledComparison compile(IComparison comparison, ESResultSet result) throws SQLException{
+		return new CompiledComparison(comparison, result);
+	}
+
+	/**
+	 * Evaluates the comparison for the specified row
+	 * @param rowNr
+	 * @return
+	 * @throws SQLException if any of the values compared is not a number
+	 */
+	public boolean evaluate(int rowNr) throws SQLException{
+		return root.evaluate(rowNr);
+	}
+
+	private Node compile(IComparison comparison) throws SQLException{
+		if(comparison instanceof BooleanComparison){
+			BooleanComparison bc = (BooleanComparison)comparison;
+			final Node left = compile(bc.getLeft());
+			final Node right = compile(bc.getRight());
+			if(bc.isMust()) return new Node(){
+				public boolean evaluate(int rowNr) throws SQLException{
+					return left.evaluate(rowNr) && right.evaluate(rowNr);
+				}
+			};
+			return new Node(){
+				public boolean evaluate(int rowNr) throws SQLException{
+					return left.evaluate(rowNr) || right.evaluate(rowNr);
+				}
+			};
+		}else if(comparison instanceof SimpleComparison){
+			return compileSimple((SimpleComparison)comparison);
+		}
+		// unknown comparisons are evaluated on the resultset directly
+		final IComparison other = comparison;
+		return new Node(){
+			public boolean evaluate(int rowNr) throws SQLException{
+				return other.evaluate(result, rowNr);
+			}
+		};
+	}
+
+	private Node compileSimple(SimpleComparison sc) throws SQLException{
+		int index = sc.getLeftColumn().getIndex();
+		if(index >= result.getHeading().getColumnCount()) throw new SQLException("Unable to filter row, index "+index+" is out of bounds");
+		final ColumnVector leftVector = result.getVector(index);
+		final ColumnVector rightVector = sc.getRightColumn() == null ? null : result.getVector(sc.getRightColumn().getIndex());
+		final boolean literal = sc.getRightValue() != null;
+		final double rightValue = literal ? sc.getRightValue().doubleValue() : 0;
+		final Type type = sc.getComparisonType();
+		if(type != Type.EQUAL && type != Type.NOT_EQUAL && type != Type.GREATER_THAN && type != Type.GREATER_THAN_OR_EQUAL
+				&& type != Type.LESS_THAN && type != Type.LESS_THAN_OR_EQUAL){
+			return new Node(){
+				public boolean evaluate(int rowNr){
+					return false;
+				}
+			};
+		}
+		return new Node(){
+			public boolean evaluate(int rowNr) throws SQLException{
+				double left = getNumber(leftVector, rowNr);
+				double right = literal ? rightValue : getNumber(rightVector, rowNr);
+				switch(type){
+					case EQUAL: return left == right;
+					case NOT_EQUAL: return left != right;
+					case GREATER_THAN: return left > right;
+					case GREATER_THAN_OR_EQUAL: return left >= right;
+					case LESS_THAN: return left < right;
+					default: return left <= right;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Reads the numeric value of a row from the vector without creating any objects
+	 * @throws SQLException if the value is not a number
+	 */
+	private static double getNumber(ColumnVector vector, int rowNr) throws SQLException{
+		if(vector != null && vector.isNumber(rowNr)) return vector.getDouble(rowNr);
+		Object value = vector == null ? null : vector.get(rowNr);
+		throw new SQLException("Unable to filter row because value '"+value+"' has unknown type "+(value == null ? null : value.getClass().getSimpleName()));
+	}
+
+	/**
+	 * Evaluates part of the comparison
+	 */
+	private interface Node {
+		public boolean evaluate(int rowNr) throws SQLException;
+	}
+}
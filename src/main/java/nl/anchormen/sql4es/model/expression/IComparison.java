@@ -1,10 +1,18 @@
 package nl.anchormen.sql4es.model.expression;
 
 import java.sql.SQLException;
-import java.util.List;
+
+import nl.anchormen.sql4es.ESResultSet;
 
 public interface IComparison {
 
-	public boolean evaluate(List<Object> row) throws SQLException;
+	/**
+	 * Evaluates this comparison for a row within the provided resultset
+	 * @param rs
+	 * @param rowNr
+	 * @return
+	 * @throws SQLException
+	 */
+	public boolean evaluate(ESResultSet rs, int rowNr) throws SQLException;
 	
 }
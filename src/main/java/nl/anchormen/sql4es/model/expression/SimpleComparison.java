@@ -1,11 +1,12 @@
 package nl.anchormen.sql4es.model.expression;
 
 import java.sql.SQLException;
-import java.util.List;
 
 import com.facebook.presto.sql.tree.ComparisonExpression;
 import com.facebook.presto.sql.tree.ComparisonExpression.Type;
 
+import nl.anchormen.sql4es.ColumnVector;
+import nl.anchormen.sql4es.ESResultSet;
 import nl.anchormen.sql4es.model.Column;
 
 public class SimpleComparison implements IComparison{
@@ -29,30 +30,47 @@ public class SimpleComparison implements IComparison{
 		this.rightColumn = rightColumn;
 	}
 
+	public Column getLeftColumn() {
+		return leftColumn;
+	}
+
+	public ComparisonExpression.Type getComparisonType() {
+		return comparisonType;
+	}
+
+	/**
+	 * @return the literal to compare with or null if the comparison is made with another column
+	 */
+	public Number getRightValue() {
+		return rightValue;
+	}
+
+	/**
+	 * @return the column to compare with or null if the comparison is made with a literal
+	 */
+	public Column getRightColumn() {
+		return rightColumn;
+	}
+
 	public String toString(){
+		if(rightColumn != null) return leftColumn.getFullName()+" "+comparisonType+" "+rightColumn.getFullName();
 		return leftColumn.getFullName()+" "+comparisonType+" "+rightValue +" ("+rightValue.getClass().getSimpleName()+")";
 	}
 
 	@Override
-	public boolean evaluate(List<Object> row) throws SQLException {
-		if(leftColumn.getIndex() >= row.size()) throw new SQLException("Unable to filter row, index "+leftColumn.getIndex()+" is out of bounds");
+	public boolean evaluate(ESResultSet rs, int rowNr) throws SQLException {
+		if(leftColumn.getIndex() >= rs.getHeading().getColumnCount()) throw new SQLException("Unable to filter row, index "+leftColumn.getIndex()+" is out of bounds");
 		try{
-			Double leftValue = null;
-			Double rightValue = null;
-			Object leftObject = row.get(leftColumn.getIndex());
-			if(!(leftObject instanceof Number)) throw new SQLException("Unable to filter row because value '"+leftObject+"' has unknown type "+leftObject.getClass().getSimpleName());
-			leftValue = ((Number)leftObject).doubleValue();
-			
+			double leftValue = getNumber(rs.getVector(leftColumn.getIndex()), rowNr);
+			double rightValue;
 			if(this.rightValue != null){
 				rightValue = this.rightValue.doubleValue();
 			}else{
-				Object colValue = row.get(rightColumn.getIndex());
-				if(!(colValue instanceof Number)) throw new SQLException("Unable to filter row because value '"+colValue+"' has unknown type "+colValue.getClass().getSimpleName());
-				this.rightValue = (Number)colValue;
-				rightValue = this.rightValue.doubleValue();
+				rightValue = getNumber(rs.getVector(rightColumn.getIndex()), rowNr);
 			}
 
 			if(this.comparisonType == Type.EQUAL) return leftValue == rightValue;
+			if(this.comparisonType == Type.NOT_EQUAL) return leftValue != rightValue;
 			if(this.comparisonType == Type.GREATER_THAN) return leftValue > rightValue;
 			if(this.comparisonType == Type.GREATER_THAN_OR_EQUAL) return leftValue >= rightValue;
 			if(this.comparisonType == Type.LESS_THAN) return leftValue < rightValue;
@@ -62,5 +80,18 @@ public class SimpleComparison implements IComparison{
 		}
 		return false;
 	}
+	
+	/**
+	 * Reads the numeric value of a row from the vector without creating any objects
+	 * @param vector
+	 * @param rowNr
+	 * @return
+	 * @throws SQLException if the value is not a number
+	 */
+	private double getNumber(ColumnVector vector, int rowNr) throws SQLException{
+		if(vector != null && vector.isNumber(rowNr)) return vector.getDouble(rowNr);
+		Object value = vector == null ? null : vector.get(rowNr);
+		throw new SQLException("Unable to filter row because value '"+value+"' has unknown type "+(value == null ? null : value.getClass().getSimpleName()));
+	}
 
 }
@@ -27,6 +27,10 @@ public class SingleValue implements ICalculation{
 		return this.value;
 	}
 
+	public Number getValue(){
+		return value;
+	}
+
 	public String toString(){
 		return ""+value;
 	}
@@ -1,19 +1,23 @@
 package nl.anchormen.sql4es.parse.se;
 
+import java.io.File;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.elasticsearch.common.text.Text;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
 import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.highlight.HighlightField;
 
 import nl.anchormen.sql4es.ESArray;
 import nl.anchormen.sql4es.ESResultSet;
+import nl.anchormen.sql4es.MemoryBreaker;
 import nl.anchormen.sql4es.model.Column;
 import nl.anchormen.sql4es.model.Heading;
 import nl.anchormen.sql4es.model.Utils;
@@ -34,6 +38,28 @@ import nl.anchormen.sql4es.model.Column.Operation;
  */
 public class SearchHitParser {
 	
+	private volatile long spillBudget = 0;
+	private volatile File spillDir = null;
+	private volatile MemoryBreaker breaker = null;
+	
+	/**
+	 * Sets the memory budget of the ResultSets created after which they are spilled to disk
+	 * @param budget the budget in bytes, 0 to keep results in memory
+	 * @param dir the directory to spill to or null to use the default temporary directory
+	 */
+	public void setSpill(long budget, File dir){
+		this.spillBudget = budget;
+		this.spillDir = dir;
+	}
+	
+	/**
+	 * Sets the breaker in which the ResultSets created and rows being exploded reserve the memory they use
+	 * @param breaker the breaker to use or null to not account for the memory used
+	 */
+	public void setBreaker(MemoryBreaker breaker){
+		this.breaker = breaker;
+	}
+	
 	/**
 	 * Parses the SearchHits portion of an elasticsearch search result.
 	 * @param hits
@@ -41,10 +67,22 @@ public class SearchHitParser {
 	 * @throws SQLException 
 	 */
 	public ESResultSet parse(SearchHits hits, Heading head, long total, int rowLength, boolean useLateral, long offset) throws SQLException{
+		return parse(hits, head, total, rowLength, useLateral, offset, 0);
+	}
+	
+	/**
+	 * Parses the SearchHits portion of an elasticsearch search result while skipping the first hits 
+	 * @param hits
+	 * @param skip the number of hits to skip
+	 * @throws SQLException
+	 */
+	public ESResultSet parse(SearchHits hits, Heading head, long total, int rowLength, boolean useLateral, long offset, int skip) throws SQLException{
 		Map<String, Heading> headMap = buildHeaders(head);
-		ESResultSet rs = new ESResultSet(head, (int)total, rowLength);
+		ESResultSet rs = new ESResultSet(head, (int)total, rowLength).setSpill(spillBudget, spillDir).setBreaker(breaker);
 		rs.setOffset((int)offset);
-		for(SearchHit hit : hits){
+		SearchHit[] hitArray = hits.getHits();
+		for(int i=skip; i<hitArray.length; i++){
+			SearchHit hit = hitArray[i];
 			this.parse(hit.getSource(), hit, rs, useLateral, "", headMap);
 		}
 		
@@ -125,8 +163,11 @@ public class SearchHitParser {
 	private void parse(Map<String, ?> source, SearchHit hit, ESResultSet rs, boolean explode, String parent, Map<String, Heading> headMap) throws SQLException{
 		Heading head = rs.getHeading();
 		List<Object> row = rs.getNewRow();
-		if(hit != null) addIdIndexAndType(hit.getId(), hit.getIndex(), hit.getType(), hit.getScore(), hit.getHighlightFields(), head, row);
-		if(source == null) return; // just return if source was not stored!
+		if(hit != null) {
+			addIdIndexAndType(hit.getId(), hit.getIndex(), hit.getType(), hit.getScore(), hit.getHighlightFields(), head, row);
+			addScriptFields(hit, head, row);
+		}
+		if(source == null) source = new HashMap<String, Object>(); // source was not stored or not requested
 		for(String key : source.keySet()){
 			String fullKey = parent.length()>0 ? parent+"."+key : key;
 
@@ -169,58 +210,118 @@ public class SearchHitParser {
 	}
 	
 
+	/**
+	 * Adds the values of calculations executed by Elasticsearch as script fields and the values of fields
+	 * read from doc values to the row. 
+	 * @param hit
+	 * @param head
+	 * @param row
+	 */
+	private void addScriptFields(SearchHit hit, Heading head, List<Object> row){
+		if(hit.getFields() == null || hit.getFields().isEmpty()) return;
+		for(Column column : head.columns()){
+			if(!column.isPushedDown()) continue;
+			if(column.hasCalculation()){
+				SearchHitField field = hit.getFields().get(column.getLabel());
+				if(field != null) row.set(column.getIndex(), field.getValue());
+			}else{
+				SearchHitField field = hit.getFields().get(column.getColumn());
+				if(field == null || field.getValues() == null || field.getValues().isEmpty()) continue;
+				if(field.getValues().size() == 1){
+					row.set(column.getIndex(), fromDocValue(field.getValue(), column.getSqlType()));
+				}else{
+					List<Object> values = new ArrayList<Object>();
+					for(Object value : field.getValues()) values.add(fromDocValue(value, column.getSqlType()));
+					column.setSqlType(Types.ARRAY);
+					row.set(column.getIndex(), new ESArray(values));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Converts a value read from doc values into the type used when the same value is read from the _source. 
+	 * Doc values represent integer numbers and dates as longs and floating point numbers as doubles.
+	 * @param value
+	 * @param sqlType
+	 * @return
+	 */
+	private Object fromDocValue(Object value, int sqlType){
+		if(!(value instanceof Number)) return value;
+		Number number = (Number)value;
+		switch(sqlType){
+			case Types.INTEGER: return number.intValue();
+			case Types.SMALLINT: return number.shortValue();
+			case Types.TINYINT: return number.byteValue();
+			case Types.FLOAT: return number.floatValue();
+			case Types.DATE: return new Date(number.longValue());
+			default: return value;
+		}
+	}
+	
 	/**
 	 * Explodes any nested objects within the provided row. This produces multiple rows, each
-	 * with a different combination of nested information.
+	 * with a different combination of nested information. The memory required for the rows is reserved
+	 * in the breaker (if any) before they are created and released once they have been created.
 	 * @param row
 	 * @param heading
 	 * @return
-	 * @throws SQLException 
+	 * @throws SQLException if the breaker refuses the memory required for the rows
 	 */
 	private List<List<Object>> explodeRow(Heading head, List<Object> row) throws SQLException {
 		List<List<Object>> rows = new ArrayList<List<Object>>();
 		rows.add(row);
-		for(int ri=0; ri<head.getColumnCount(); ri++){
-			if(!head.getColumn(ri).isVisible()) continue;
+		MemoryBreaker breaker = this.breaker;
+		long reserved = 0;
+		try{
+			for(int ri=0; ri<head.getColumnCount(); ri++){
+				if(!head.getColumn(ri).isVisible()) continue;
 
-			Object element = row.get(ri);
-			if(element instanceof ESResultSet){
-				ESResultSet nested = (ESResultSet)element;
-				String parent = head.getColumn(ri).getColumn();
+				Object element = row.get(ri);
+				if(element instanceof ESResultSet){
+					ESResultSet nested = (ESResultSet)element;
+					String parent = head.getColumn(ri).getColumn();
 				
-				long nestedCount = nested.getTotal(); 
-				if(nestedCount == 0) {
-					nested.close();
-					continue;
-				}
+					long nestedCount = nested.getTotal(); 
+					if(nestedCount == 0) {
+						nested.close();
+						continue;
+					}
 				
-				// add rows to hold the nested data
-				int rowCount = rows.size();
-				for(int n=0; n<nestedCount-1; n++) 
-					for(int i=0; i<rowCount; i++) rows.add(Utils.clone(rows.get(i)));
+					// add rows to hold the nested data
+					int rowCount = rows.size();
+					if(breaker != null){
+						long bytes = (long)Math.min(Long.MAX_VALUE / 2, (nestedCount-1) * (double)rowCount * (40 + 8 * row.size()));
+						breaker.reserve(bytes);
+						reserved += bytes;
+					}
+					for(int n=0; n<nestedCount-1; n++) 
+						for(int i=0; i<rowCount; i++) rows.add(Utils.clone(rows.get(i)));
 				
-				// now add a nested row to each of the rows in the final resultset
-				for(int i=0; i<rows.size(); i++){
-					List<Object> destinationRow = rows.get(i);
-					List<Object> nestedRow = nested.getRow(i%(int)nestedCount);
-					for(Column nestedCol : nested.getHeading().columns()){
-						String nestedColName = parent+"."+nestedCol.getColumn();
+					// now add a nested row to each of the rows in the final resultset
+					for(int i=0; i<rows.size(); i++){
+						List<Object> destinationRow = rows.get(i);
+						int nestedRow = i%(int)nestedCount;
+						for(Column nestedCol : nested.getHeading().columns()){
+							String nestedColName = parent+"."+nestedCol.getColumn();
 						
-						Column destinationCol = head.getColumnByLabel(nestedColName);
-						if(destinationCol == null){
-							destinationCol = new Column(nestedColName).setAlias(nestedCol.getAlias())
-									.setSqlType(nestedCol.getSqlType()).setVisible(nestedCol.isVisible());
-							head.add(destinationCol);
+							Column destinationCol = head.getColumnByLabel(nestedColName);
+							if(destinationCol == null){
+								destinationCol = new Column(nestedColName).setAlias(nestedCol.getAlias())
+										.setSqlType(nestedCol.getSqlType()).setVisible(nestedCol.isVisible());
+								head.add(destinationCol);
+							}
+							Object value = nested.getValue(nestedRow, nestedCol.getIndex());
+							destinationRow.set(destinationCol.getIndex(), value);
 						}
-						Object value = nestedRow.get(nestedCol.getIndex());
-						destinationRow.set(destinationCol.getIndex(), value);
 					}
+					nested.close();
+					row.set(ri, null);
 				}
-				nested.close();
-				row.set(ri, null);
 			}
+		}finally{
+			if(breaker != null) breaker.release(reserved);
 		}
-		
 		return rows;
 	}
 
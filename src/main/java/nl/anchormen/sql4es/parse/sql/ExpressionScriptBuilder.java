@@ -0,0 +1,64 @@
+package nl.anchormen.sql4es.parse.sql;
+
+import java.util.function.Function;
+
+import com.facebook.presto.sql.tree.ArithmeticBinaryExpression;
+import com.facebook.presto.sql.tree.ArithmeticUnaryExpression.Sign;
+
+import nl.anchormen.sql4es.model.Column;
+import nl.anchormen.sql4es.model.expression.ColumnReference;
+import nl.anchormen.sql4es.model.expression.ICalculation;
+import nl.anchormen.sql4es.model.expression.SimpleCalculation;
+import nl.anchormen.sql4es.model.expression.SingleValue;
+
+/**
+ * Translates {@link ICalculation} trees into scripts in the Lucene 'expression' language which can be executed
+ * by Elasticsearch as script_fields or bucket_script aggregations. How column references are represented
+ * within the script (document values or buckets path variables) is determined by the resolver provided.
+ *
+ * @author cversloot
+ *
+ */
+public class ExpressionScriptBuilder {
+
+	/**
+	 * Builds the expression for the provided calculation. The resolver must return the representation of
+	 * a column within the script or null if the column cannot be used within a script.
+	 * @param calc
+	 * @param resolver
+	 * @return the expression or null if (part of) the calculation cannot be translated
+	 */
+	public static String build(ICalculation calc, Function<Column, String> resolver){
+		if(calc instanceof SingleValue){
+			double value = ((SingleValue)calc).getValue().doubleValue();
+			if(Double.isNaN(value) || Double.isInfinite(value)) return null;
+			String str = ((SingleValue)calc).getValue().toString();
+			return value < 0 ? "("+str+")" : str;
+		}else if(calc instanceof ColumnReference){
+			ColumnReference ref = (ColumnReference)calc;
+			if(ref.getOffset() != 0) return null; // refers to another row
+			String var = resolver.apply(ref.getColumn());
+			if(var == null) return null;
+			return ref.getSign() == Sign.MINUS ? "(-"+var+")" : var;
+		}else if(calc instanceof SimpleCalculation){
+			SimpleCalculation sc = (SimpleCalculation)calc;
+			String left = build(sc.left(), resolver);
+			String right = left == null ? null : build(sc.right(), resolver);
+			if(right == null) return null;
+			String expression = "("+left+" "+getOperator(sc.getType())+" "+right+")";
+			return sc.getSign() == Sign.MINUS ? "(-"+expression+")" : expression;
+		}
+		return null;
+	}
+
+	private static String getOperator(ArithmeticBinaryExpression.Type type){
+		switch(type){
+			case ADD : return "+";
+			case DIVIDE: return "/";
+			case MODULUS: return "%";
+			case MULTIPLY: return "*";
+			default: return "-";
+		}
+	}
+
+}
@@ -1,18 +1,25 @@
 package nl.anchormen.sql4es.parse.sql;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 
 import com.facebook.presto.sql.tree.QualifiedNameReference;
 import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptService.ScriptType;
 import org.elasticsearch.search.aggregations.AggregationBuilder;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.bucket.filter.FilterAggregationBuilder;
 import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramBuilder;
 import org.elasticsearch.search.aggregations.bucket.terms.TermsBuilder;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregatorBuilders;
 
 import com.facebook.presto.sql.tree.AstVisitor;
+import com.facebook.presto.sql.tree.ComparisonExpression;
 import com.facebook.presto.sql.tree.Expression;
 import com.facebook.presto.sql.tree.FunctionCall;
 import com.facebook.presto.sql.tree.GroupingElement;
@@ -24,6 +31,9 @@ import nl.anchormen.sql4es.model.Column;
 import nl.anchormen.sql4es.model.Column.Operation;
 import nl.anchormen.sql4es.model.Heading;
 import nl.anchormen.sql4es.model.Utils;
+import nl.anchormen.sql4es.model.expression.BooleanComparison;
+import nl.anchormen.sql4es.model.expression.IComparison;
+import nl.anchormen.sql4es.model.expression.SimpleComparison;
 
 /**
  * A Presto {@link AstVisitor} implementation that parses GROUP BY clauses
@@ -32,6 +42,10 @@ import nl.anchormen.sql4es.model.Utils;
  */
 public class GroupParser extends SelectParser {
 
+  private static final String ROOT_AGGREGATION = "group.root";
+  private static final String LEAF_AGGREGATION = "group.leaf";
+  private static final String BUCKET_SELECTOR = "group.selector";
+
   public AggregationBuilder parse(List<GroupingElement> elements,final QueryState state) {
     List<Column> groups = new ArrayList<Column>();
     for (GroupingElement grouping : elements) {
@@ -83,7 +97,193 @@ public class GroupParser extends SelectParser {
         g.setColumn(s.getColumn());
       }
     }
-    return buildAggregationQuery(groups, 0, state);
+    AggregationBuilder root = buildAggregationQuery(groups, 0, state);
+    state.setKeyValue(ROOT_AGGREGATION, root);
+    return root;
+  }
+
+  /**
+   * Pushes the HAVING clause down to the last bucket aggregation created by {@link #parse(List, QueryState)}.
+   * Comparisons of COUNT with a literal are executed using min_doc_count, all other comparisons between
+   * metrics and literals or other metrics are combined into a single bucket_selector using an expression script.
+   * Returns the part of the HAVING clause that could not be pushed down and must be evaluated client side
+   *
+   * @param having
+   * @param state
+   * @return the remaining comparison or null if the entire HAVING clause was pushed down
+   */
+  @SuppressWarnings("rawtypes")
+  public IComparison pushDownHaving(IComparison having, QueryState state) {
+    Object leaf = state.getValue(LEAF_AGGREGATION);
+    if (having == null || !(leaf instanceof AggregationBuilder)) return having;
+    // partitioned aggregations detect their end by the number of buckets returned which must not be filtered
+    if (leaf == state.getValue(ROOT_AGGREGATION) && state.getIntProp(Utils.PROP_AGGREGATION_PARTITION_SIZE, 0) > 0)
+      return having;
+
+    List<IComparison> conjuncts = new ArrayList<IComparison>();
+    flattenAnd(having, conjuncts);
+    Map<String, String> bucketsPaths = new HashMap<String, String>();
+    List<String> scripts = new ArrayList<String>();
+    long minDocCount = -1;
+    IComparison remaining = null;
+    for (IComparison comparison : conjuncts) {
+      long docCount = getMinDocCount(comparison);
+      if (docCount >= 0 && (leaf instanceof TermsBuilder || leaf instanceof DateHistogramBuilder)) {
+        minDocCount = Math.max(minDocCount, docCount);
+        continue;
+      }
+      String script = toScript(comparison, bucketsPaths);
+      if (script != null) scripts.add(script);
+      else remaining = remaining == null ? comparison : new BooleanComparison(remaining, comparison, true);
+    }
+
+    if (minDocCount >= 0) {
+      if (leaf instanceof TermsBuilder) ((TermsBuilder) leaf).minDocCount(minDocCount);
+      else ((DateHistogramBuilder) leaf).minDocCount(minDocCount);
+    }
+    if (scripts.size() > 0) {
+      StringBuilder expression = new StringBuilder();
+      for (String script : scripts) {
+        if (expression.length() > 0) expression.append(" && ");
+        expression.append(script);
+      }
+      ((AggregationBuilder) leaf).subAggregation(PipelineAggregatorBuilders.having("having")
+          .setBucketsPathsMap(bucketsPaths)
+          .script(new Script(expression.toString(), ScriptType.INLINE, "expression", null)));
+      state.setKeyValue(BUCKET_SELECTOR, true);
+    }
+    return remaining;
+  }
+
+  /**
+   * Adds a bucket_script to the last bucket aggregation for each calculation on metrics (like SUM(x)/COUNT(*))
+   * which can be expressed as an expression script. Columns calculated this way are marked as pushed down 
+   * and are not evaluated by the driver.
+   *
+   * @param state
+   */
+  @SuppressWarnings("rawtypes")
+  public void pushDownCalculations(QueryState state) {
+    Object leaf = state.getValue(LEAF_AGGREGATION);
+    if (!(leaf instanceof AggregationBuilder)) return;
+    for (Column column : state.getHeading().columns()) {
+      if (!column.hasCalculation() || column.isPushedDown()) continue;
+      String name = column.getLabel();
+      if (name.contains("[") || name.contains("]") || name.contains(">")
+          || state.getHeading().getColumnByLabel(name) != column) continue;
+      final Map<String, String> bucketsPaths = new HashMap<String, String>();
+      String script = ExpressionScriptBuilder.build(column.getCalculation(), new Function<Column, String>() {
+        @Override
+        public String apply(Column metric) {
+          return getBucketsPathVar(metric, bucketsPaths);
+        }
+      });
+      if (script == null) continue;
+      ((AggregationBuilder) leaf).subAggregation(PipelineAggregatorBuilders.bucketScript(name)
+          .setBucketsPathsMap(bucketsPaths)
+          .script(new Script(script, ScriptType.INLINE, "expression", null)));
+      column.setPushedDown(true);
+    }
+  }
+
+  /**
+   * Returns true if the GROUP BY parsed consists of a single bucket aggregation (terms or date histogram)
+   * containing all metrics
+   *
+   * @param state
+   * @return
+   */
+  public boolean isSingleLevel(QueryState state) {
+    Object root = state.getValue(ROOT_AGGREGATION);
+    return root != null && root == state.getValue(LEAF_AGGREGATION);
+  }
+
+  /**
+   * Returns true if the GROUP BY parsed consists of a single terms aggregation without a bucket_selector. 
+   * In that case each bucket results in exactly one row and ordering and limiting the buckets can be done
+   * by Elasticsearch.
+   *
+   * @param state
+   * @return
+   */
+  public boolean isSingleTermsLevel(QueryState state) {
+    Object root = state.getValue(ROOT_AGGREGATION);
+    return root instanceof TermsBuilder && root == state.getValue(LEAF_AGGREGATION)
+        && state.getValue(BUCKET_SELECTOR) == null;
+  }
+
+  private void flattenAnd(IComparison comparison, List<IComparison> result) {
+    if (comparison instanceof BooleanComparison && ((BooleanComparison) comparison).isMust()) {
+      flattenAnd(((BooleanComparison) comparison).getLeft(), result);
+      flattenAnd(((BooleanComparison) comparison).getRight(), result);
+    } else result.add(comparison);
+  }
+
+  /**
+   * Returns the min_doc_count equivalent to the provided comparison or -1 if it is not a
+   * lower bound on COUNT
+   */
+  private long getMinDocCount(IComparison comparison) {
+    if (!(comparison instanceof SimpleComparison)) return -1;
+    SimpleComparison sc = (SimpleComparison) comparison;
+    if (sc.getLeftColumn().getOp() != Operation.COUNT || sc.getRightValue() == null) return -1;
+    double value = sc.getRightValue().doubleValue();
+    if (value < 0) return -1;
+    if (sc.getComparisonType() == ComparisonExpression.Type.GREATER_THAN) return (long) Math.floor(value) + 1;
+    if (sc.getComparisonType() == ComparisonExpression.Type.GREATER_THAN_OR_EQUAL) return (long) Math.ceil(value);
+    return -1;
+  }
+
+  /**
+   * Translates the comparison into an expression script using bucket paths pointing to the metrics
+   * involved. Returns null if the comparison cannot be expressed as a script
+   */
+  private String toScript(IComparison comparison, Map<String, String> bucketsPaths) {
+    if (comparison instanceof BooleanComparison) {
+      BooleanComparison bc = (BooleanComparison) comparison;
+      String left = toScript(bc.getLeft(), bucketsPaths);
+      String right = left == null ? null : toScript(bc.getRight(), bucketsPaths);
+      if (right == null) return null;
+      return "(" + left + (bc.isMust() ? " && " : " || ") + right + ")";
+    }
+    if (!(comparison instanceof SimpleComparison)) return null;
+    SimpleComparison sc = (SimpleComparison) comparison;
+    String operator;
+    switch (sc.getComparisonType()) {
+      case EQUAL: operator = "=="; break;
+      case NOT_EQUAL: operator = "!="; break;
+      case GREATER_THAN: operator = ">"; break;
+      case GREATER_THAN_OR_EQUAL: operator = ">="; break;
+      case LESS_THAN: operator = "<"; break;
+      case LESS_THAN_OR_EQUAL: operator = "<="; break;
+      default: return null;
+    }
+    String left = getBucketsPathVar(sc.getLeftColumn(), bucketsPaths);
+    String right = sc.getRightColumn() != null ? getBucketsPathVar(sc.getRightColumn(), bucketsPaths)
+        : sc.getRightValue() != null ? sc.getRightValue().toString() : null;
+    if (left == null || right == null) return null;
+    return left + " " + operator + " " + right;
+  }
+
+  /**
+   * Returns the script variable referring to the metric the column is calculated with, registering its
+   * bucket path if needed. Returns null if the column is not a metric calculated by Elasticsearch
+   */
+  private String getBucketsPathVar(Column column, Map<String, String> bucketsPaths) {
+    String path;
+    if (column.hasCalculation()) return null;
+    if (column.getOp() == Operation.COUNT) path = "_count";
+    else if (column.getOp() == Operation.AVG || column.getOp() == Operation.SUM
+        || column.getOp() == Operation.MIN || column.getOp() == Operation.MAX) path = column.getAggName();
+    else return null;
+    // dots and brackets have a special meaning within bucket paths
+    if (path.contains(".") || path.contains("[") || path.contains(">")) return null;
+    for (Map.Entry<String, String> entry : bucketsPaths.entrySet()) {
+      if (entry.getValue().equals(path)) return entry.getKey();
+    }
+    String var = "v" + bucketsPaths.size();
+    bucketsPaths.put(var, path);
+    return var;
   }
 
   /**
@@ -157,7 +357,10 @@ public class GroupParser extends SelectParser {
         break;
     }
     if (index < aggs.size() - 1) result.subAggregation(buildAggregationQuery(aggs, index + 1, state));
-    else addMetrics(result, state.getHeading(), true);
+    else {
+      addMetrics(result, state.getHeading(), true);
+      state.setKeyValue(LEAF_AGGREGATION, result);
+    }
     return result;
   }
 
@@ -170,6 +373,22 @@ public class GroupParser extends SelectParser {
     return filterAgg;
   }
 
+  /**
+   * Returns true if the provided aggregate only heading contains COUNT metrics only, in which case the result
+   * is equal to the total number of hits and no aggregation needs to be executed.
+   *
+   * @param heading
+   * @return
+   */
+  public boolean isCountOnly(Heading heading) {
+    boolean count = false;
+    for (Column column : heading.columns()) {
+      if (column.getOp() == Operation.COUNT) count = true;
+      else if (column.getOp() != Operation.NONE) return false;
+    }
+    return count;
+  }
+
   /**
    * Adds a set of 'leaf aggregations' to the provided parent metric (i.e. count, sum, max etc)
    *
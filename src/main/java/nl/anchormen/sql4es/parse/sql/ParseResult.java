@@ -24,6 +24,9 @@ public class ParseResult {
 	private int limit = -1;
 	private Boolean useCache = false;
 	private Boolean requestScore = false;
+	private boolean bucketsOrderable = false;
+	private boolean singleBucketLevel = false;
+	private boolean countOnly = false;
 	private SQLException exception;
 	
 	public ParseResult(Heading heading, List<QuerySource> sources, QueryBuilder query, AggregationBuilder<?> aggregation,
@@ -137,6 +140,45 @@ public class ParseResult {
 		return this;
 	}
 
+	/**
+	 * @return true if each row of the result corresponds to a single bucket of the terms aggregation 
+	 * which means the ordering and limit can be executed by Elasticsearch
+	 */
+	public boolean getBucketsOrderable() {
+		return bucketsOrderable;
+	}
+
+	public ParseResult setBucketsOrderable(boolean bucketsOrderable) {
+		this.bucketsOrderable = bucketsOrderable;
+		return this;
+	}
+
+	/**
+	 * @return true if the aggregation consists of a single terms or date histogram aggregation containing
+	 * the metrics, in which case the metrics within its buckets can be addressed by sibling pipeline aggregations
+	 */
+	public boolean getSingleBucketLevel() {
+		return singleBucketLevel;
+	}
+
+	public ParseResult setSingleBucketLevel(boolean singleBucketLevel) {
+		this.singleBucketLevel = singleBucketLevel;
+		return this;
+	}
+
+	/**
+	 * @return true if the query only counts the documents matching the query (possibly with calculations on
+	 * the count) in which case the total number of hits can be used instead of an aggregation
+	 */
+	public boolean getCountOnly() {
+		return countOnly;
+	}
+
+	public ParseResult setCountOnly(boolean countOnly) {
+		this.countOnly = countOnly;
+		return this;
+	}
+
 	public void setException(SQLException exception) {
 		this.exception = exception;
 	}
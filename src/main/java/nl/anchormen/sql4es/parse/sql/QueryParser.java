@@ -92,6 +92,7 @@ public class QueryParser extends AstVisitor<ParseResult, Object>{
 		IComparison having = null;
 		List<OrderBy> orderings = new ArrayList<OrderBy>();
 		boolean useCache = false;
+		boolean countOnly = false;
 		ParseResult subQuery = null;
 		
 		// check for distinct in combination with group by
@@ -138,14 +139,22 @@ public class QueryParser extends AstVisitor<ParseResult, Object>{
 		// parse group by and create aggregations accordingly
 		if(node.getGroupBy() != null && node.getGroupBy().size() > 0){
 			aggregation = groupParser.parse(node.getGroupBy(), state);
+			if(subQuery == null && aggregation != null && Utils.getBooleanProp(props, Utils.PROP_CALCULATIONS_PUSHDOWN, false)){
+				groupParser.pushDownCalculations(state);
+			}
 		}else if(heading.aggregateOnly()){
 			aggregation = groupParser.buildFilterAggregation(query, heading);
+			countOnly = groupParser.isCountOnly(heading);
 		}
 		if(state.hasException()) return new ParseResult(state.getException());
 		
-		// parse Having (is executed client side after results have been fetched)
+		// parse Having, the parts which can not be executed by elasticsearch are executed client side after results have been fetched
 		if(node.getHaving().isPresent()){
 			having = node.getHaving().get().accept(havingParser, state);
+			if(state.hasException()) return new ParseResult(state.getException());
+			if(subQuery == null && node.getGroupBy() != null && node.getGroupBy().size() > 0){
+				having = groupParser.pushDownHaving(having, state);
+			}
 		}
 
 		// parse ORDER BY
@@ -159,6 +168,12 @@ public class QueryParser extends AstVisitor<ParseResult, Object>{
 		if(state.hasException()) return new ParseResult(state.getException());
 		
 		ParseResult result = new ParseResult(heading, state.getSources(), query, aggregation, having, orderings, limit, useCache, requestScore);
+		if(subQuery == null) result.setCountOnly(countOnly);
+		if(subQuery == null && node.getGroupBy() != null && node.getGroupBy().size() > 0){
+			result.setSingleBucketLevel(groupParser.isSingleLevel(state));
+			// ORDER BY and LIMIT can be executed on buckets if no rows are filtered client side
+			if(having == null) result.setBucketsOrderable(groupParser.isSingleTermsLevel(state));
+		}
 		if(subQuery != null)try{
 			if(subQuery.getAggregation() == null && result.getAggregation() == null)
 				result = mergeSelectWithSelect(result, subQuery);
@@ -169,7 +184,9 @@ public class QueryParser extends AstVisitor<ParseResult, Object>{
 				
 				if(result.getHeading().aggregateOnly()){
 					AggregationBuilder agg = groupParser.buildFilterAggregation(result.getQuery(), result.getHeading());
-					result.setAggregation(agg).setQuery(null);
+					// the query is kept for counts which are executed without the aggregation
+					if(groupParser.isCountOnly(result.getHeading())) result.setAggregation(agg).setCountOnly(true);
+					else result.setAggregation(agg).setQuery(null);
 				}else{
 					BasicQueryState state2 = new BasicQueryState(sql, result.getHeading(), props);
 					AggregationBuilder agg = groupParser.addDistinctAggregation(state2);
@@ -8,6 +8,8 @@ import java.sql.Types;
 
 import org.junit.Test;
 
+import nl.anchormen.sql4es.model.Utils;
+
 public class AggregationsIT extends Sql4EsBase {
 
 	private String index = "testindex";
@@ -96,6 +98,37 @@ public class AggregationsIT extends Sql4EsBase {
 		st.close();
 	}
 	
+	@Test
+	public void testCountOnly() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 10);
+		
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test").createStatement();
+		ResultSet rs = st.executeQuery("explain select count(*) from "+type+" where intNum >= 4");
+		assert(rs.next());
+		String request = rs.getString(1);
+		assert(request.contains("\"size\" : 0"));
+		assert(!request.contains("\"aggregations\""));
+		rs.close();
+		
+		rs = st.executeQuery("select count(*) as c, count(1) from "+type+" where intNum >= 4");
+		assert(rs.next());
+		assertEquals(6, rs.getLong(1));
+		assertEquals(6, rs.getLong(2));
+		assert(!rs.next());
+		rs.close();
+		
+		rs = st.executeQuery("select count(*) from (select intNum from "+type+" where bool = true)");
+		assert(rs.next());
+		assertEquals(5, rs.getLong(1));
+		rs.close();
+		
+		rs = st.executeQuery("select count(*) from "+type+" where intNum > 100");
+		assert(rs.next());
+		assertEquals(0, rs.getLong(1));
+		rs.close();
+		st.close();
+	}
+	
 	@Test
 	public void testGroupBy() throws Exception{
 		createIndexTypeWithDocs(index, type, true, 100, 1);
@@ -311,6 +344,31 @@ public class AggregationsIT extends Sql4EsBase {
 		st.close();
 	}
 	
+	@Test
+	public void testHavingPushDown() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 100, 1);
+		
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test").createStatement();
+		ResultSet rs = st.executeQuery("explain select bool, intNum, count(*) as c, max(floatNum) as m "
+				+ "from "+type+" GROUP BY bool, intNum HAVING c > 0 AND m >= 50");
+		assert(rs.next());
+		String request = rs.getString(1);
+		assert(request.contains("\"min_doc_count\" : 1"));
+		assert(request.contains("bucket_selector"));
+		rs.close();
+		
+		rs = st.executeQuery("select bool, intNum, count(*) as c, max(floatNum) as m "
+				+ "from "+type+" GROUP BY bool, intNum HAVING c > 0 AND (m >= 50 OR m < 10)");
+		int count = 0;
+		while(rs.next()){
+			count++;
+			assert(rs.getFloat(4) >= 50 || rs.getFloat(4) < 10);
+		}
+		assertEquals(60, count);
+		rs.close();
+		st.close();
+	}
+	
 	@Test
 	public void testGroupByWithOrder() throws Exception{
 		createIndexTypeWithDocs(index, type, true, 100, 1);
@@ -409,6 +467,138 @@ public class AggregationsIT extends Sql4EsBase {
 		}
 		assertEquals(2, count);
 		rs.close();
+		
+		st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test").createStatement();
+		rs = st.executeQuery("select bool, nestedDoc.bool as nb, count(*), max(intNum) m, min(floatNum), avg(doubleNum) "
+				+ "from "+type+" GROUP BY bool, nb ORDER BY m DESC LIMIT 2 OFFSET 1");
+		
+		count = 0;
+		while(rs.next()){
+			count++;
+		}
+		assertEquals(1, count);
+		rs.close();
+		st.close();
+	}
+	
+	@Test
+	public void testClientSideTopN() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 100);
+		
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test").createStatement();
+		ResultSet rs = st.executeQuery("select bool, intNum, count(*) from "+type+" GROUP BY bool, intNum ORDER BY intNum DESC LIMIT 3 OFFSET 1");
+		int count = 0;
+		while(rs.next()){
+			assertEquals(98 - count, rs.getInt(2));
+			assertEquals((98 - count) % 2 == 0, rs.getBoolean(1));
+			count++;
+		}
+		assertEquals(3, count);
+		rs.close();
+		
+		rs = st.executeQuery("select bool, intNum, count(*) from "+type+" GROUP BY bool, intNum ORDER BY intNum ASC");
+		count = 0;
+		while(rs.next()){
+			assertEquals(count, rs.getInt(2));
+			count++;
+		}
+		assertEquals(100, count);
+		rs.close();
+		st.close();
+	}
+	
+	@Test
+	public void testTopNGroupBy() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 100);
+		
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test").createStatement();
+		ResultSet rs = st.executeQuery("explain select intNum, count(*), max(floatNum) as m from "+type+" GROUP BY intNum ORDER BY m DESC LIMIT 5");
+		assert(rs.next());
+		String request = rs.getString(1);
+		assert(request.contains("\"size\" : 5"));
+		assert(request.contains("\"max(floatNum)\" : \"desc\""));
+		rs.close();
+		
+		rs = st.executeQuery("select intNum, count(*), max(floatNum) as m from "+type+" GROUP BY intNum ORDER BY m DESC LIMIT 5");
+		int count = 0;
+		while(rs.next()){
+			assertEquals(99 - count, rs.getInt(1));
+			count++;
+		}
+		assertEquals(5, count);
+		rs.close();
+		
+		rs = st.executeQuery("select intNum, count(*) from "+type+" GROUP BY intNum ORDER BY intNum DESC LIMIT 3 OFFSET 2");
+		count = 0;
+		while(rs.next()){
+			assertEquals(97 - count, rs.getInt(1));
+			count++;
+		}
+		assertEquals(3, count);
+		rs.close();
+		
+		rs = st.executeQuery("select intNum, count(*) from "+type+" GROUP BY intNum LIMIT 4");
+		count = 0;
+		while(rs.next()){
+			assertEquals(count, rs.getInt(1));
+			count++;
+		}
+		assertEquals(4, count);
+		rs.close();
+		st.close();
+	}
+	
+	@Test
+	public void testPartitionedGroupBy() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 100);
+		
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test&"
+				+Utils.PROP_AGGREGATION_PARTITION_SIZE+"=7").createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		ResultSet rs = st.executeQuery("select intNum, count(*) from "+type+" GROUP BY intNum");
+		int count = 0;
+		while(rs.next()){
+			assertEquals(count, rs.getInt(1));
+			assertEquals(1, rs.getLong(2));
+			count++;
+		}
+		assertEquals(100, count);
+		rs.close();
+		
+		rs = st.executeQuery("select intNum, count(*) from "+type+" GROUP BY intNum LIMIT 15");
+		count = 0;
+		while(rs.next()) count++;
+		assertEquals(15, count);
+		rs.close();
+		st.close();
+	}
+	
+	@Test
+	public void testPartitionedGroupByWithMultipleTypes() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 100);
+		addTypeWithDocs(index, "otherdocs", 50);
+		
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test&"
+				+Utils.PROP_AGGREGATION_PARTITION_SIZE+"=7").createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		// all partitions must only aggregate documents of the type queried
+		ResultSet rs = st.executeQuery("select intNum, count(*) from "+type+" GROUP BY intNum");
+		int count = 0;
+		while(rs.next()){
+			assertEquals(count, rs.getInt(1));
+			assertEquals(1, rs.getLong(2));
+			count++;
+		}
+		assertEquals(100, count);
+		rs.close();
+		
+		rs = st.executeQuery("select intNum, count(*) from otherdocs GROUP BY intNum");
+		count = 0;
+		while(rs.next()){
+			assertEquals(count, rs.getInt(1));
+			assertEquals(1, rs.getLong(2));
+			count++;
+		}
+		assertEquals(50, count);
+		rs.close();
 		st.close();
 	}
 	
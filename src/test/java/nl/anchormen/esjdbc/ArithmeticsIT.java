@@ -147,6 +147,45 @@ public class ArithmeticsIT extends Sql4EsBase {
 		assertEquals(2, count);
 	}
 	
+	@Test
+	public void pushedDownComputations() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 10,2);
+		
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test&calculations.pushdown=true").createStatement();
+		ResultSet rs = st.executeQuery("explain select text, (longNum+1)/doubleNum as calc from "+type);
+		assert(rs.next());
+		String request = rs.getString(1);
+		assert(request.contains("script_fields"));
+		assert(!request.contains("\"longNum\""));
+		rs.close();
+		
+		rs = st.executeQuery("select text, (longNum+1)/doubleNum as calc, intNum*10 from "+type+" where intNum > 0");
+		int count = 0;
+		while(rs.next()){
+			assert(rs.getString(1).startsWith("Some text"));
+			assert(rs.getFloat("calc") > 1);
+			assert(rs.getInt(3)%10 == 0);
+			count++;
+		}
+		assertEquals(9, count);
+		rs.close();
+		
+		rs = st.executeQuery("explain select bool, sum(intNum)/count(1) as avg1, avg(intNum) as avg2 from "+type+" group by bool");
+		assert(rs.next());
+		assert(rs.getString(1).contains("bucket_script"));
+		rs.close();
+		
+		rs = st.executeQuery("select bool, sum(intNum)/count(1) as avg1, avg(intNum) as avg2 from "+type+" group by bool");
+		count = 0;
+		while(rs.next()){
+			assertEquals(rs.getFloat(2), rs.getFloat("avg2"), 0.0001);
+			count++;
+		}
+		assertEquals(2, count);
+		rs.close();
+		st.close();
+	}
+	
 	@Test
 	public void offsetComputations() throws Exception{
 		createIndexTypeWithDocs(index, type, true, 10,2);
@@ -202,4 +241,28 @@ public class ArithmeticsIT extends Sql4EsBase {
 		st.close();
 	}
 	
+	@Test
+	public void computationsWithNull() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 10);
+		client().prepareIndex(index, type, "partial").setSource("doubleNum", 5.0).setRefresh(true).get();
+		
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test").createStatement();
+		ResultSet rs = st.executeQuery("select doubleNum, -(intNum+doubleNum)*2 as calc from "+type);
+		int count = 0;
+		int nulls = 0;
+		while(rs.next()){
+			if(rs.getDouble(1) == 5.0 && rs.getObject("calc") == null){
+				assertTrue(rs.wasNull());
+				nulls++;
+			}else{
+				assertEquals(-4 * rs.getDouble(1), rs.getDouble("calc"), 0.0001);
+			}
+			count++;
+		}
+		assertEquals(11, count);
+		assertEquals(1, nulls);
+		rs.close();
+		st.close();
+	}
+	
 }
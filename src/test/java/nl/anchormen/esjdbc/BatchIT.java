@@ -1,6 +1,9 @@
 package nl.anchormen.esjdbc;
 
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -73,5 +76,109 @@ public class BatchIT extends Sql4EsBase {
 		st.close();
 	}
 	
+	@Test
+	public void testPreparedInserts() throws SQLException{
+		Connection conn = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test");
+		Statement st = conn.createStatement();
+		st.executeUpdate("CREATE TABLE monkey (_id String)");
+		
+		PreparedStatement pst = conn.prepareStatement("INSERT INTO monkey (_id, myInt, myString, \"nested.myLong\") VALUES (?, ?, ?, 10)");
+		for(int i=0; i<10; i++){
+			pst.setString(1, "id"+i);
+			pst.setInt(2, i);
+			pst.setString(3, "it's "+i);
+			pst.addBatch();
+		}
+		int[] res = pst.executeBatch();
+		assertEquals(10, res.length);
+		for(int r : res) assertEquals(1, r);
+		
+		pst.setString(1, "id10");
+		pst.setInt(2, 10);
+		pst.setString(3, "single");
+		assertEquals(1, pst.executeUpdate());
+		flush();
+		refresh();
+		
+		ResultSet rs = st.executeQuery("SELECT _id, myInt, myString, nested.myLong FROM monkey WHERE myInt = 3");
+		assertTrue(rs.next());
+		assertEquals("id3", rs.getString("_id"));
+		assertEquals("it's 3", rs.getString("myString"));
+		assertEquals(10, rs.getLong("nested.myLong"));
+		assertFalse(rs.next());
+		
+		rs = st.executeQuery("SELECT count(*) FROM monkey");
+		assertTrue(rs.next());
+		assertEquals(11, rs.getLong(1));
+		st.close();
+		conn.close();
+	}
+	
+	@Test
+	public void testFailedItems() throws SQLException{
+		Connection conn = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test");
+		Statement st = conn.createStatement();
+		st.executeUpdate("CREATE TABLE failing (myInt \"type:integer\")");
+		
+		PreparedStatement pst = conn.prepareStatement("INSERT INTO failing (myInt) VALUES (?)");
+		pst.setInt(1, 1);
+		pst.addBatch();
+		pst.setString(1, "not a number");
+		pst.addBatch();
+		pst.setInt(1, 3);
+		pst.addBatch();
+		try{
+			pst.executeBatch();
+			assert(false);
+		}catch(BatchUpdateException bue){
+			int[] res = bue.getUpdateCounts();
+			assertEquals(3, res.length);
+			assertEquals(1, res[0]);
+			assertEquals(Statement.EXECUTE_FAILED, res[1]);
+			assertEquals(1, res[2]);
+		}
+		
+		pst.setString(1, "not a number");
+		assertEquals(0, pst.executeUpdate());
+		assertNotNull(pst.getWarnings());
+		
+		assertEquals(1, st.executeUpdate("INSERT INTO failing (myInt) VALUES (5), ('not a number')"));
+		assertNotNull(st.getWarnings());
+		assertEquals(1, st.executeUpdate("INSERT INTO failing (myInt) VALUES (6)"));
+		assertNull(st.getWarnings());
+		st.close();
+		conn.close();
+	}
+	
+	@Test
+	public void testCoalescedStatements() throws SQLException{
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test&bulk.actions=7").createStatement();
+		st.executeUpdate("CREATE TABLE monkey (_id String)");
+		for(int i=0; i<25; i++){
+			st.addBatch("INSERT INTO monkey (_id, myInt) VALUES ('id"+i+"', "+i+")");
+		}
+		st.addBatch("INSERT INTO monkey (myInt) VALUES (100), (101)");
+		st.addBatch("CREATE TABLE monkey2 (_id String)");
+		st.addBatch("INSERT INTO monkey2 (myInt) VALUES (1)");
+		int[] res = st.executeBatch();
+		assertEquals(28, res.length);
+		for(int i=0; i<25; i++) assertEquals(1, res[i]);
+		assertEquals(2, res[25]);
+		assertEquals(Statement.SUCCESS_NO_INFO, res[26]);
+		assertEquals(1, res[27]);
+		flush();
+		refresh();
+		
+		ResultSet rs = st.executeQuery("SELECT count(*) FROM monkey");
+		assertTrue(rs.next());
+		assertEquals(27, rs.getLong(1));
+		
+		st.addBatch("DELETE FROM monkey WHERE myInt >= 100");
+		st.addBatch("INSERT INTO monkey (_id, myInt) VALUES ('id25', 25)");
+		res = st.executeBatch();
+		assertEquals(2, res[0]);
+		assertEquals(1, res[1]);
+		st.close();
+	}
 
 }
@@ -1,5 +1,6 @@
 package nl.anchormen.esjdbc;
 
+import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
@@ -145,6 +146,60 @@ public class InsertIT extends Sql4EsBase {
 		st.close();
 		st2.close();
 	}
+	
+	@Test
+	public void bufferedInserts() throws SQLException{
+		Connection conn = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test&write.buffer.size=100&commit.refresh=true");
+		Statement st = conn.createStatement();
+		st.executeUpdate("CREATE TABLE buffered (_id String)");
+		conn.setAutoCommit(false);
+		assertEquals(3, st.executeUpdate("INSERT INTO buffered (myInt) VALUES (1), (2), (3)"));
+		ResultSet rs = st.executeQuery("SELECT count(*) FROM buffered");
+		assert(rs.next());
+		assertEquals(0, rs.getLong(1));
+		
+		conn.commit();
+		rs = st.executeQuery("SELECT count(*) FROM buffered");
+		assert(rs.next());
+		assertEquals(3, rs.getLong(1));
+		
+		assertEquals(2, st.executeUpdate("INSERT INTO buffered (myInt) VALUES (4), (5)"));
+		conn.rollback();
+		conn.commit();
+		rs = st.executeQuery("SELECT count(*) FROM buffered");
+		assert(rs.next());
+		assertEquals(3, rs.getLong(1));
+		
+		assertEquals(1, st.executeUpdate("INSERT INTO buffered (myInt) VALUES (6)"));
+		conn.setAutoCommit(true); // commits the insert
+		refresh();
+		rs = st.executeQuery("SELECT count(*) FROM buffered");
+		assert(rs.next());
+		assertEquals(4, rs.getLong(1));
+		st.close();
+		conn.close();
+	}
+	
+	@Test
+	public void insertInSmallBulks() throws SQLException{
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test&bulk.actions=3&bulk.concurrent.requests=2").createStatement();
+		StringBuilder sql = new StringBuilder("INSERT INTO bulktype (myInt, myString) VALUES ");
+		for(int i=0; i<20; i++){
+			if(i > 0) sql.append(", ");
+			sql.append("("+i+", 'value "+i+"')");
+		}
+		assertEquals(20, st.executeUpdate(sql.toString()));
+		flush();
+		refresh();
+		Utils.sleep(1000);
+		
+		ResultSet rs = st.executeQuery("SELECT count(*) FROM bulktype");
+		assert(rs.next());
+		assertEquals(20, rs.getLong(1));
+		
+		assertEquals(20, st.executeUpdate("DELETE FROM bulktype"));
+		st.close();
+	}
 /*
 	@Test
 	public void insertFromSelect() throws Exception{
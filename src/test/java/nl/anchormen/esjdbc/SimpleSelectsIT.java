@@ -1,18 +1,28 @@
 package nl.anchormen.esjdbc;
 
 import java.sql.Array;
+import java.sql.Connection;
 import java.sql.Date;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
+import java.util.HashSet;
+import java.util.Set;
 
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.SearchContextMissingException;
 import org.elasticsearch.test.ESIntegTestCase.ClusterScope;
 import org.elasticsearch.test.ESIntegTestCase.Scope;
 import org.junit.Test;
 
+import nl.anchormen.sql4es.ColumnVector;
+import nl.anchormen.sql4es.ESResultSet;
+import nl.anchormen.sql4es.jdbc.ESConnection;
+import nl.anchormen.sql4es.jdbc.ESStatement;
 import nl.anchormen.sql4es.model.Utils;
 
 @ClusterScope(scope=Scope.TEST, numDataNodes=1)
@@ -482,6 +492,184 @@ public class SimpleSelectsIT extends Sql4EsBase {
 		st.close();
 	}
 	
+	@Test
+	public void streamForwardOnly() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 25);
+
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test&"+Utils.PROP_FETCH_SIZE+"=4")
+				.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		assertEquals(ResultSet.TYPE_FORWARD_ONLY, st.getResultSetType());
+		ResultSet rs = st.executeQuery("select _id from "+type);
+		assertEquals(ResultSet.TYPE_FORWARD_ONLY, rs.getType());
+		int count = 0;
+		while(rs.next()){
+			count++;
+			assertEquals(count, rs.getRow());
+		}
+		assertEquals(25, count);
+		assertFalse(st.getMoreResults());
+
+		rs = st.executeQuery("select _id from "+type+" limit 10");
+		count = 0;
+		while(rs.next()) count++;
+		assertEquals(10, count);
+
+		try{
+			rs.beforeFirst();
+			fail("Forward only ResultSet must not be able to move backwards");
+		}catch(SQLException e){}
+		st.close();
+	}
+
+	@Test
+	public void prefetchPages() throws Exception{
+		createIndexWithShards(3, 25);
+		String props = Utils.PROP_SCROLL_PREFETCH_DEPTH+"=2&"+Utils.PROP_SCROLL_PREFETCH_PARSE+"=true";
+		assertScrollReadsAll(props, true, false, 0);
+		assertScrollReadsAll(props, true, false, 2500);
+	}
+
+	@Test
+	public void parallelScan() throws Exception{
+		createIndexWithShards(3, 25);
+		String props = Utils.PROP_SCROLL_PARALLEL_THREADS+"=3";
+		assertScrollReadsAll(props, false, true, 0);
+		assertScrollReadsAll(props, false, true, 2500);
+	}
+
+	@Test
+	public void interleavedParallelScans() throws Exception{
+		createIndexWithShards(3, 25);
+		Connection conn = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test&"
+				+Utils.PROP_FETCH_SIZE+"=2&"+Utils.PROP_SCROLL_PARALLEL_THREADS+"=3");
+		ESStatement st1 = (ESStatement)conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		ESStatement st2 = (ESStatement)conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		ResultSet rs1 = st1.executeQuery("select intNum from "+type);
+		ResultSet rs2 = st2.executeQuery("select intNum from "+type);
+		assertTrue(st1.isScanningInParallel());
+		assertTrue(st2.isScanningInParallel());
+		// the scans must not wait for each other's threads
+		Set<Integer> values1 = new HashSet<Integer>();
+		Set<Integer> values2 = new HashSet<Integer>();
+		boolean more1 = true, more2 = true;
+		while(more1 || more2){
+			if(more1 && (more1 = rs1.next())) assertTrue(values1.add(rs1.getInt(1)));
+			if(more2 && (more2 = rs2.next())) assertTrue(values2.add(rs2.getInt(1)));
+		}
+		assertEquals(25, values1.size());
+		assertEquals(25, values2.size());
+		conn.close();
+	}
+
+	private void createIndexWithShards(int shards, int nrDocs) throws Exception{
+		client().admin().indices().prepareCreate(index)
+			.setSettings(Settings.builder().put("index.number_of_shards", shards).put("index.number_of_replicas", 0))
+			.execute().actionGet();
+		addDocs(index, type, nrDocs);
+		refresh();
+	}
+
+	/**
+	 * Scrolls through all 25 docs using a statement configured with the provided properties and checks that
+	 * the expected way of fetching pages is used. When pausing the consumer sleeps longer than the scroll
+	 * timeout after reading the first page. Pages fetched in the background must not be dropped in the 
+	 * meantime: all docs must be returned, or an error if the scroll expired, but never a partial result.
+	 * @param props
+	 * @param prefetching
+	 * @param parallel
+	 * @param pauseMs
+	 * @throws Exception
+	 */
+	private void assertScrollReadsAll(String props, boolean prefetching, boolean parallel, long pauseMs) throws Exception{
+		ESStatement st = (ESStatement)DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test&"
+				+Utils.PROP_FETCH_SIZE+"=2&"+Utils.PROP_SCROLL_TIMEOUT_SEC+"=1&"+props).createStatement();
+		st.executeQuery("select _id, intNum from "+type);
+		assertEquals(prefetching, st.isPrefetching());
+		assertEquals(parallel, st.isScanningInParallel());
+		Set<Integer> values = new HashSet<Integer>();
+		boolean first = true;
+		try{
+			do{
+				ResultSet rs = st.getResultSet();
+				while(rs.next()) assertTrue(values.add(rs.getInt(2)));
+				if(first && pauseMs > 0) Utils.sleep((int)pauseMs);
+				first = false;
+			}while(st.getMoreResults());
+			assertEquals(25, values.size());
+		}catch(SQLException e){
+			if(pauseMs == 0 || !isScrollExpiry(e)) throw e;
+		}
+
+		st.executeQuery("select _id from "+type+" limit 10");
+		assertEquals(prefetching, st.isPrefetching());
+		assertEquals(parallel, st.isScanningInParallel());
+		int count = 0;
+		do{
+			ResultSet rs = st.getResultSet();
+			while(rs.next()) count++;
+		}while(st.getMoreResults());
+		assertEquals(10, count);
+		st.close();
+	}
+
+	/**
+	 * Returns true if the exception was caused by a scroll which expired, either within the driver or within
+	 * Elasticsearch itself
+	 */
+	private boolean isScrollExpiry(Throwable e){
+		for(Throwable t = e; t != null; t = t.getCause()){
+			if(t.getMessage() != null && t.getMessage().startsWith("Scroll expired")) return true;
+			if(t instanceof SearchContextMissingException) return true;
+		}
+		return false;
+	}
+
+	@Test
+	public void sortedScrollAndOffset() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 25);
+
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test&"+Utils.PROP_FETCH_SIZE+"=4")
+				.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		ResultSet rs = st.executeQuery("select intNum from "+type+" order by intNum");
+		int count = 0;
+		while(rs.next()){
+			assertEquals(count, rs.getInt(1));
+			count++;
+		}
+		assertEquals(25, count);
+
+		// deep offset skipped while scrolling
+		rs = st.executeQuery("select intNum from "+type+" order by intNum desc limit 6 offset 7");
+		count = 0;
+		while(rs.next()){
+			assertEquals(24 - 7 - count, rs.getInt(1));
+			count++;
+		}
+		assertEquals(6, count);
+
+		// shallow offset executed using from/size
+		rs = st.executeQuery("select intNum from "+type+" order by intNum limit 2 OFFSET 1");
+		count = 0;
+		while(rs.next()){
+			assertEquals(1 + count, rs.getInt(1));
+			count++;
+		}
+		assertEquals(2, count);
+
+		rs = st.executeQuery("select intNum from "+type+" order by intNum offset 20");
+		count = 0;
+		while(rs.next()) count++;
+		assertEquals(5, count);
+
+		try{
+			st.executeQuery("select intNum from "+type+" order by intNum offset 3000000000");
+			fail("An OFFSET exceeding the maximum offset must be rejected");
+		}catch(SQLException e){
+			assertTrue(e.getMessage().contains("OFFSET 3000000000"));
+		}
+		st.close();
+	}
+
 	@Test
 	public void getID() throws Exception{
 		
@@ -526,6 +714,328 @@ public class SimpleSelectsIT extends Sql4EsBase {
 		st.close();
 	}
 	
+	@Test
+	public void sourceFiltering() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 10, 2);
+		
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test").createStatement();
+		ResultSet rs = st.executeQuery("explain SELECT intNum, nestedDoc.text FROM "+type);
+		assert(rs.next());
+		String request = rs.getString(1);
+		assert(request.contains("\"includes\""));
+		assert(request.contains("\"intNum\""));
+		assert(request.contains("\"nestedDoc.text.*\""));
+		assert(!request.contains("\"floatNum\""));
+		rs.close();
+		
+		rs = st.executeQuery("explain SELECT _id, _score FROM "+type);
+		assert(rs.next());
+		assert(rs.getString(1).contains("\"_source\" : false"));
+		rs.close();
+		
+		rs = st.executeQuery("SELECT _id, intNum FROM "+type+" WHERE intNum < 5");
+		assertEquals(2, rs.getMetaData().getColumnCount());
+		int count = 0;
+		while(rs.next()){
+			assertNotNull(rs.getString(1));
+			assert(rs.getInt(2) < 5);
+			count++;
+		}
+		assertEquals(5, count);
+		
+		rs = st.executeQuery("SELECT _id FROM "+type);
+		count = 0;
+		while(rs.next()){
+			assertNotNull(rs.getString(1));
+			count++;
+		}
+		assertEquals(10, count);
+		st.close();
+	}
+	
+	@Test
+	public void docValueFields() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 10);
+		
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test&"+Utils.PROP_FETCH_DOCVALUES+"=true").createStatement();
+		ResultSet rs = st.executeQuery("explain SELECT intNum, text FROM "+type);
+		assert(rs.next());
+		String request = rs.getString(1);
+		assert(request.contains("\"fielddata_fields\""));
+		assert(request.contains("\"_source\" : false"));
+		rs.close();
+		
+		rs = st.executeQuery("SELECT intNum, floatNum, date, text, bool, numbers FROM "+type+" WHERE intNum < 5 ORDER BY intNum");
+		int count = 0;
+		while(rs.next()){
+			assertEquals(count, rs.getInt(1));
+			assertEquals((float)count, rs.getFloat(2), 0.0001);
+			assertNotNull(rs.getDate(3));
+			assertEquals("Some text for document "+count, rs.getString(4));
+			assertEquals(count%2 == 0, rs.getBoolean(5));
+			assertEquals(5, ((Object[])rs.getArray(6).getArray()).length);
+			count++;
+		}
+		assertEquals(5, count);
+		st.close();
+	}
+	
+	@Test
+	public void columnarValues() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 10);
+		client().prepareIndex(index, type, "partial").setSource("intNum", 10).setRefresh(true).get();
+		// a whole number within a double field is parsed as an Integer
+		client().prepareIndex(index, type, "mixed").setSource("intNum", 11, "doubleNum", 5).setRefresh(true).get();
+		
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test").createStatement();
+		ResultSet rs = st.executeQuery("SELECT intNum, doubleNum, bool, text FROM "+type+" ORDER BY intNum DESC");
+		ESResultSet result = (ESResultSet)rs;
+		assertFalse(result.getVector(result.getHeading().getColumnByLabel("doubleNum").getIndex()).holdsObjects());
+		int expected = 11;
+		while(rs.next()){
+			assertEquals(expected, rs.getInt(1));
+			assertEquals(expected, rs.getLong(1));
+			assertEquals(Integer.class, rs.getObject(1).getClass());
+			assertFalse(rs.wasNull());
+			if(expected == 11){
+				assertEquals(5, rs.getDouble(2), 0.0001);
+				assertEquals(Integer.class, rs.getObject(2).getClass());
+			}else if(expected == 10){
+				assertEquals(0, rs.getDouble(2), 0.0001);
+				assertTrue(rs.wasNull());
+				assertNull(rs.getString(4));
+				assertTrue(rs.wasNull());
+			}else{
+				assertEquals(expected, rs.getDouble(2), 0.0001);
+				assertEquals(Double.class, rs.getObject(2).getClass());
+				assertEquals(expected%2 == 0, rs.getBoolean(3));
+				assertEquals("Some text for document "+expected, rs.getString(4));
+				assertFalse(rs.wasNull());
+			}
+			expected--;
+		}
+		assertEquals(-1, expected);
+		st.close();
+	}
+	
+	@Test
+	public void spillResult() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 10000);
+		
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test&"+Utils.PROP_RESULT_SPILL_MB+"=1").createStatement();
+		ResultSet rs = st.executeQuery("SELECT * FROM "+type+" ORDER BY intNum DESC");
+		assertTrue(((ESResultSet)rs).isSpilled());
+		int expected = 9999;
+		while(rs.next()){
+			assertEquals(expected, rs.getInt("intNum"));
+			assertEquals(expected, rs.getDouble("doubleNum"), 0.0001);
+			assertEquals("Some text for document "+expected, rs.getString("text"));
+			expected--;
+		}
+		assertEquals(-1, expected);
+		
+		rs = st.executeQuery("SELECT intNum, text FROM "+type+" ORDER BY intNum LIMIT 5");
+		expected = 0;
+		while(rs.next()){
+			assertEquals(expected, rs.getInt(1));
+			assertEquals("Some text for document "+expected, rs.getString(2));
+			expected++;
+		}
+		assertEquals(5, expected);
+		st.close();
+	}
+	
+	@Test
+	public void spillAndChangeValueKind() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 10000);
+		// the last document holds values of another kind, which are parsed after the first rows have been spilled
+		client().prepareIndex(index, type, "last").setSource("intNum", 10000, "bool", "yes", "doubleNum", 5).setRefresh(true).get();
+		
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test&"+Utils.PROP_RESULT_SPILL_MB+"=1").createStatement();
+		ResultSet rs = st.executeQuery("SELECT * FROM "+type+" ORDER BY intNum");
+		ESResultSet result = (ESResultSet)rs;
+		assertTrue(result.isSpilled());
+		ColumnVector bools = result.getVector(result.getHeading().getColumnByLabel("bool").getIndex());
+		assertTrue(bools.holdsObjects());
+		assertTrue(bools.isSpilled());
+		assertFalse(result.getVector(result.getHeading().getColumnByLabel("doubleNum").getIndex()).holdsObjects());
+		int expected = 0;
+		while(rs.next()){
+			assertEquals(expected, rs.getInt("intNum"));
+			if(expected < 10000){
+				assertEquals(expected%2 == 0, rs.getObject("bool"));
+				assertEquals(expected, rs.getDouble("doubleNum"), 0.0001);
+			}else{
+				assertEquals("yes", rs.getObject("bool"));
+				assertEquals(5, rs.getObject("doubleNum"));
+			}
+			expected++;
+		}
+		assertEquals(10001, expected);
+		st.close();
+	}
+	
+	@Test
+	public void memoryBreaker() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 10000);
+		
+		Connection conn = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test&"+Utils.PROP_BREAKER_STATEMENT_MB+"=1");
+		ESStatement st = (ESStatement)conn.createStatement();
+		ResultSet rs = st.executeQuery("SELECT intNum FROM "+type+" WHERE intNum < 5");
+		int count = 0;
+		while(rs.next()) count++;
+		assertEquals(5, count);
+		assertTrue(st.getMemoryBreaker().getUsed() > 0);
+		rs.close();
+		assertEquals(0, st.getMemoryBreaker().getUsed());
+		
+		try{
+			st.executeQuery("SELECT * FROM "+type);
+			fail("statement memory limit should have been exceeded");
+		}catch(SQLException e){
+			assertTrue(e.getMessage().contains("statement memory limit"));
+		}
+		assertEquals(1, st.getMemoryBreaker().getTrips());
+		assertEquals(0, ((ESConnection)conn).getMemoryBreaker().getTrips());
+		
+		// the limit can be changed for a single statement
+		st.getMemoryBreaker().setLimit(0);
+		rs = st.executeQuery("SELECT * FROM "+type);
+		count = 0;
+		while(rs.next()) count++;
+		assertEquals(10000, count);
+		st.close();
+		assertEquals(0, ((ESConnection)conn).getMemoryBreaker().getUsed());
+		conn.close();
+	}
+	
+	@Test
+	public void resultCache() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 10);
+		
+		Connection conn = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test&"+Utils.PROP_RESULT_CACHE_SIZE_MB+"=10");
+		Statement st = conn.createStatement();
+		String sql = "SELECT intNum FROM "+type+" WHERE intNum < 5";
+		ResultSet rs = st.executeQuery(sql);
+		int count = 0;
+		while(rs.next()) count++;
+		assertEquals(5, count);
+		
+		// documents added outside of the driver are not visible while the result is cached
+		client().prepareIndex(index, type, "extra").setSource("intNum", 1).setRefresh(true).get();
+		rs = st.executeQuery("SELECT intNum  FROM "+type+"\nWHERE intNum < 5");
+		count = 0;
+		while(rs.next()) count++;
+		assertEquals(5, count);
+		long[] stats = ((ESConnection)conn).getResultCache().getStats();
+		assertEquals(1, stats[0]);
+		assertEquals(1, stats[2]);
+		
+		// writes executed through the driver invalidate the cache
+		st.executeUpdate("INSERT INTO "+type+" (intNum) VALUES (2)");
+		flush();
+		refresh();
+		rs = st.executeQuery(sql);
+		count = 0;
+		while(rs.next()) count++;
+		assertEquals(7, count);
+		st.close();
+		conn.close();
+	}
+	
+	@Test
+	public void sharedResultCacheWithOtherProperties() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 10);
+		client().prepareIndex(index, type, "partial").setSource("intNum", 10).setRefresh(true).get();
+		
+		String url = "jdbc:sql4es://localhost:9300/"+index+"?test&"+Utils.PROP_RESULT_CACHE_SIZE_MB+"=10&"+Utils.PROP_RESULT_CACHE_SHARED+"=true";
+		Connection conn1 = DriverManager.getConnection(url);
+		Connection conn2 = DriverManager.getConnection(url+"&"+Utils.PROP_CALCULATIONS_PUSHDOWN+"=true");
+		assertTrue(((ESConnection)conn1).getResultCache() == ((ESConnection)conn2).getResultCache());
+		String sql = "SELECT intNum, doubleNum*2 AS dbl FROM "+type+" WHERE intNum = 10";
+		
+		// the missing value is NULL within the driver and 0 when calculated by elasticsearch
+		ResultSet rs = conn1.createStatement().executeQuery(sql);
+		assertTrue(rs.next());
+		rs.getDouble(2);
+		assertTrue(rs.wasNull());
+		long misses = ((ESConnection)conn1).getResultCache().getStats()[3];
+		
+		rs = conn2.createStatement().executeQuery(sql);
+		assertTrue(rs.next());
+		assertEquals(0, rs.getDouble(2), 0.0001);
+		assertFalse(rs.wasNull());
+		assertEquals(misses + 1, ((ESConnection)conn2).getResultCache().getStats()[3]);
+		conn1.close();
+		conn2.close();
+	}
+	
+	@Test
+	public void planCache() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 10);
+		
+		Connection conn = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test&"+Utils.PROP_PLAN_CACHE_SIZE+"=10");
+		Statement st = conn.createStatement();
+		String sql = "SELECT intNum, intNum*2 AS dbl FROM "+type+" WHERE intNum < 5 ORDER BY intNum DESC";
+		for(int i=0; i<3; i++){
+			ResultSet rs = st.executeQuery(sql);
+			assertEquals(2, rs.getMetaData().getColumnCount());
+			int count = 0;
+			int prev = Integer.MAX_VALUE;
+			while(rs.next()){
+				assertTrue(rs.getInt(1) < prev);
+				prev = rs.getInt(1);
+				assertEquals(prev*2, rs.getDouble("dbl"), 0.001);
+				count++;
+			}
+			assertEquals(5, count);
+		}
+		assertEquals(2, ((ESConnection)conn).getPlanCache().size());
+		
+		// selecting all fields alters the heading of each execution
+		for(int i=0; i<2; i++){
+			ResultSet rs = st.executeQuery("SELECT * FROM "+type+" WHERE intNum = 3");
+			assertTrue(rs.next());
+			assertEquals(3, rs.getInt("intNum"));
+			assertFalse(rs.next());
+		}
+		st.close();
+		conn.close();
+	}
+	
+	@Test
+	public void preparedStatementBinding() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 10);
+		
+		Connection conn = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test");
+		PreparedStatement pst = conn.prepareStatement("SELECT intNum FROM "+type+" WHERE intNum >= ? AND intNum < ?");
+		for(int i=0; i<3; i++){
+			pst.setInt(1, i);
+			pst.setLong(2, i+5);
+			ResultSet rs = pst.executeQuery();
+			int count = 0;
+			while(rs.next()){
+				assertTrue(rs.getInt(1) >= i && rs.getInt(1) < i+5);
+				count++;
+			}
+			assertEquals(5, count);
+		}
+		
+		// string values are escaped
+		pst = conn.prepareStatement("SELECT intNum FROM "+type+" WHERE text = ?");
+		pst.setString(1, "it's");
+		assertFalse(pst.executeQuery().next());
+		
+		// question marks within quotes are not parameters
+		pst = conn.prepareStatement("SELECT intNum FROM "+type+" WHERE text <> 'a?' AND intNum = ?");
+		pst.setInt(1, 3);
+		ResultSet rs = pst.executeQuery();
+		assertTrue(rs.next());
+		assertEquals(3, rs.getInt(1));
+		assertFalse(rs.next());
+		conn.close();
+	}
+	
 	@Test
 	public void search() throws Exception{
 		createIndexTypeWithDocs(index, type, true, 10);
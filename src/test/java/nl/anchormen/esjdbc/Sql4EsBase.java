@@ -40,17 +40,7 @@ public class Sql4EsBase extends ESIntegTestCase {
 	 */
 	protected void createIndexTypeWithDocs(String index, String type, boolean withMapping, int nrDocs) throws IOException{
 		if(withMapping){
-			String mapping = AccessController.doPrivileged(new PrivilegedAction<String>(){
-				@Override
-				public String run() {
-					try {
-						return new String(Files.readAllBytes(Paths.get("src/test/resources/TestDocumentMapping.json")));
-					} catch (IOException e) {
-						return null;
-					}
-				}
-			});
-			if(mapping == null) throw new IOException("Unable to read TestDocumentMapping.json");
+			String mapping = readMapping();
 			client().admin().indices().prepareCreate(index).addMapping(type, mapping).execute().actionGet();
 		}else{
 			createIndex(index);
@@ -61,17 +51,7 @@ public class Sql4EsBase extends ESIntegTestCase {
 	
 	protected void createIndexTypeWithDocs(String index, String type, boolean withMapping, int nrDocs, int history) throws IOException{
 		if(withMapping){
-			String mapping = AccessController.doPrivileged(new PrivilegedAction<String>(){
-				@Override
-				public String run() {
-					try {
-						return new String(Files.readAllBytes(Paths.get("src/test/resources/TestDocumentMapping.json")));
-					} catch (IOException e) {
-						return null;
-					}
-				}
-			});
-			if(mapping == null) throw new IOException("Unable to read TestDocumentMapping.json");
+			String mapping = readMapping();
 			client().admin().indices().prepareCreate(index).addMapping(type, mapping).execute().actionGet();
 		}else{
 			createIndex(index);
@@ -80,6 +60,34 @@ public class Sql4EsBase extends ESIntegTestCase {
 		refresh();
 	}
 	
+	/**
+	 * Adds a type using the test mapping to an existing index and fills it with a number of docs
+	 * @param index
+	 * @param type
+	 * @param nrDocs
+	 * @throws IOException
+	 */
+	protected void addTypeWithDocs(String index, String type, int nrDocs) throws IOException{
+		client().admin().indices().preparePutMapping(index).setType(type).setSource(readMapping()).execute().actionGet();
+		if(nrDocs > 0) addDocs(index, type, nrDocs);
+		refresh();
+	}
+	
+	private String readMapping() throws IOException{
+		String mapping = AccessController.doPrivileged(new PrivilegedAction<String>(){
+			@Override
+			public String run() {
+				try {
+					return new String(Files.readAllBytes(Paths.get("src/test/resources/TestDocumentMapping.json")));
+				} catch (IOException e) {
+					return null;
+				}
+			}
+		});
+		if(mapping == null) throw new IOException("Unable to read TestDocumentMapping.json");
+		return mapping;
+	}
+	
 	/**
 	 * Adds the specified number of docs to the type within index
 	 * @param index
@@ -332,4 +332,33 @@ public class SubqueryIT extends Sql4EsBase {
 		st.close();
 
 	}
+	
+	@Test
+	public void testPipelineAggregations() throws Exception{
+		createIndexTypeWithDocs(index, type, true, 100);
+		
+		Statement st = DriverManager.getConnection("jdbc:sql4es://localhost:9300/"+index+"?test").createStatement();
+		String inner = "(select bool, sum(intNum) as s, max(floatNum) as m from "+type+" GROUP BY bool)";
+		ResultSet rs = st.executeQuery("explain select max(s), min(s), avg(m) from "+inner);
+		assert(rs.next());
+		String request = rs.getString(1);
+		assert(request.contains("stats_bucket"));
+		assert(request.contains("avg_bucket"));
+		rs.close();
+		
+		rs = st.executeQuery("select max(s), min(s), avg(m) from "+inner);
+		assert(rs.next());
+		assertEquals(2500, rs.getDouble(1), 0.001);
+		assertEquals(2450, rs.getDouble(2), 0.001);
+		assertEquals(98.5, rs.getDouble(3), 0.001);
+		assert(!rs.next());
+		rs.close();
+		
+		rs = st.executeQuery("select sum(s) from "+inner);
+		assert(rs.next());
+		assertEquals(4950, rs.getDouble(1), 0.001);
+		rs.close();
+		st.close();
+	}
+
 }